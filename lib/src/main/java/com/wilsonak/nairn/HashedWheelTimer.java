@@ -0,0 +1,348 @@
+package com.wilsonak.nairn;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Runs tasks after a delay from a single thread, for any number of tasks, in the style of the
+ * Varghese and Lauck hashed timing wheel.
+ * <p/>
+ * Time is divided into ticks and the wheel has a power of two number of buckets, one per tick,
+ * each a doubly linked list of timeouts. A timeout goes in the bucket its deadline falls in, with
+ * a count of the whole turns of the wheel it must wait first. Each tick the thread walks one
+ * bucket, running the timeouts which are due and counting down the rest. Scheduling and
+ * cancelling only add to a concurrent queue, which the thread drains at the next tick, so both
+ * are O(1) and never contend with the thread walking the wheel. While there are no timeouts at
+ * all the thread parks rather than ticking, so an idle timer costs nothing.
+ * <p/>
+ * Tasks run at or after their deadline, up to about one tick late, on the timer thread. They
+ * should be short, as a slow task delays every other timeout on the timer, and work of any size
+ * should be handed on to an executor. Exceptions thrown by tasks are passed to the error
+ * callback, or to the timer thread's uncaught exception handler if there is none.
+ * <p/>
+ * The thread only wakes each tick while there are timeouts waiting, but then wakes every tick
+ * even if none are due for a long while. {@link #getShared()} returns a timer with a 1ms tick,
+ * for short delays which must be kept to closely, and {@link #getSharedCoarse()} one with a
+ * 100ms tick, for long delays which may run late, such as expiry. Both are shared by the
+ * library's components, so thread count and memory stay the same however many of them there
+ * are.
+ */
+public final class HashedWheelTimer implements AutoCloseable {
+    private static final int RUNNING = 0;
+    private static final int STOPPED = 1;
+
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long tickNanos;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+    private final Consumer<Throwable> errorCallback;
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean idle;
+    private volatile int pending;
+    private long tick;
+
+    /**
+     * Initialises a new instance of the {@code HashedWheelTimer} class and starts its thread
+     *
+     * @param tickDuration  how often the wheel moves on, which is the timer's precision
+     * @param unit          the unit of the tick duration
+     * @param wheelSize     number of buckets, rounded up to a power of two. Timeouts further away
+     *                      than a turn of the wheel wait for one or more turns.
+     * @param errorCallback called with exceptions thrown by tasks, may be null
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int wheelSize, Consumer<Throwable> errorCallback) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick duration and wheel size must be positive");
+        }
+
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+
+        this.mask = size - 1;
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        this.errorCallback = errorCallback;
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, "nairn-wheel-timer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * @return the timer with a 1ms tick shared by the library's components, which cannot be closed
+     */
+    public static HashedWheelTimer getShared() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * @return the timer with a 100ms tick shared by the library's components, which cannot be closed
+     */
+    public static HashedWheelTimer getSharedCoarse() {
+        return SharedCoarse.INSTANCE;
+    }
+
+    /**
+     * Run a task once after a delay.
+     *
+     * @param task  the task
+     * @param delay time to wait before running the task
+     * @param unit  the unit of the delay
+     * @return cancels the task
+     * @throws IllegalStateException if the timer has been closed
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (state.get() != RUNNING) {
+            throw new IllegalStateException("Timer has been closed");
+        }
+
+        var timeout = new Timeout(this, task, System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay)));
+        added.add(timeout);
+        if (idle) {
+            LockSupport.unpark(worker);
+        }
+
+        return timeout;
+    }
+
+    /**
+     * @return the number of timeouts waiting to run, as of the last tick
+     */
+    public int getPendingCount() {
+        return pending;
+    }
+
+    private void run() {
+        while (state.get() == RUNNING) {
+            if (pending == 0 && added.isEmpty()) {
+                waitForTimeout();
+                continue;
+            }
+
+            long now = waitForNextTick();
+            if (now < 0) {
+                break;
+            }
+
+            removeCancelled();
+            transferAdded();
+            wheel[(int)(tick & mask)].expire(now);
+            tick++;
+        }
+    }
+
+    /**
+     * Park until a timeout is scheduled, then move the wheel on to the current time. The wheel is
+     * empty, so no bucket is skipped over.
+     */
+    private void waitForTimeout() {
+        idle = true;
+        while (added.isEmpty() && state.get() == RUNNING) {
+            LockSupport.park(this);
+        }
+
+        idle = false;
+        tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+    }
+
+    /**
+     * @return the time since the timer started, or -1 if it was closed while waiting
+     */
+    private long waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long now = System.nanoTime() - startTime;
+            if (now >= deadline) {
+                return now;
+            }
+
+            LockSupport.parkNanos(this, deadline - now);
+            if (state.get() != RUNNING) {
+                return -1;
+            }
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+
+            // Timeouts already due go in the current bucket, to run on this tick
+            long due = Math.max(tick, timeout.deadline / tickNanos);
+            timeout.remainingRounds = (due - tick) / wheel.length;
+            wheel[(int)(due & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable e) {
+            if (errorCallback != null) {
+                errorCallback.accept(e);
+            } else {
+                worker.getUncaughtExceptionHandler().uncaughtException(worker, e);
+            }
+        }
+    }
+
+    /**
+     * Stop the timer thread. Tasks which have not yet run never will. When called from a task the
+     * thread stops once the task returns.
+     *
+     * @throws IllegalStateException if this is a shared timer
+     */
+    @Override
+    public void close() {
+        if (this == Shared.INSTANCE || this == SharedCoarse.INSTANCE) {
+            throw new IllegalStateException("The shared timer cannot be closed");
+        }
+
+        if (state.compareAndSet(RUNNING, STOPPED) && Thread.currentThread() != worker) {
+            LockSupport.unpark(worker);
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A task scheduled on a {@code HashedWheelTimer}.
+     */
+    public static final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stop the task from running, if it has not already.
+         *
+         * @return true if the task was cancelled, false if it has run or was already cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) {
+                return false;
+            }
+
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * @return true if the task has been run
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    /**
+     * The timeouts in one slot of the wheel. Only touched by the timer thread.
+     */
+    private final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+
+            pending++;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            pending--;
+        }
+
+        void expire(long now) {
+            Timeout timeout = head;
+            // A task may close the timer, after which no more are run
+            while (timeout != null && state.get() == RUNNING) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0 && timeout.deadline <= now) {
+                    remove(timeout);
+                    if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                        runTask(timeout.task);
+                    }
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                }
+
+                timeout = next;
+            }
+        }
+    }
+
+    private static final class Shared {
+        private static final HashedWheelTimer INSTANCE = new HashedWheelTimer(1, TimeUnit.MILLISECONDS, 1024, null);
+    }
+
+    private static final class SharedCoarse {
+        private static final HashedWheelTimer INSTANCE = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 512, null);
+    }
+}
@@ -0,0 +1,80 @@
+package com.wilsonak.nairn;
+
+/**
+ * Hash mixing and index selection for routing keys to a fixed number of slots.
+ * <p/>
+ * Raw {@code hashCode()} values for similar keys, e.g. {@code "ORDER-1001"} and {@code "ORDER-1002"},
+ * differ only in their low bits and cluster badly when reduced to a slot. Hashes are put through
+ * the MurmurHash3 finalisers so every input bit affects every output bit before they are reduced.
+ */
+public final class KeyHashing {
+    private KeyHashing() {
+    }
+
+    /**
+     * Mix a 32 bit hash with the MurmurHash3 {@code fmix32} finaliser.
+     *
+     * @param hash the hash to mix
+     * @return the mixed hash
+     */
+    public static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /**
+     * Mix a 64 bit key with the MurmurHash3 {@code fmix64} finaliser and fold it to 32 bits.
+     *
+     * @param key the key to mix
+     * @return the mixed hash
+     */
+    public static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int)(key ^ (key >>> 32));
+    }
+
+    /**
+     * Reduce a mixed hash to an index in {@code [0, size)}. Power of two sizes are masked, other
+     * sizes use a multiply and shift which avoids the division in {@code hash % size}.
+     *
+     * @param hash a mixed hash
+     * @param size the number of slots, must be positive
+     * @return the slot index
+     */
+    public static int index(int hash, int size) {
+        if ((size & (size - 1)) == 0) {
+            return hash & (size - 1);
+        }
+
+        return (int)(((hash & 0xffffffffL) * size) >>> 32);
+    }
+
+    /**
+     * Jump consistent hash (Lamping and Veach). Maps a key to one of {@code buckets} buckets such
+     * that growing from {@code n} to {@code n + 1} buckets moves only about {@code 1 / (n + 1)} of
+     * the keys, all of them to the new bucket, and shrinking moves only the keys in the removed bucket.
+     *
+     * @param key     the key
+     * @param buckets the number of buckets, must be positive
+     * @return the bucket in {@code [0, buckets)}
+     */
+    public static int jump(long key, int buckets) {
+        long bucket = -1;
+        long next = 0;
+        while (next < buckets) {
+            bucket = next;
+            key = key * 2862933555777941757L + 1;
+            next = (long)((bucket + 1) * ((double)(1L << 31) / (double)((key >>> 33) + 1)));
+        }
+
+        return (int)bucket;
+    }
+}
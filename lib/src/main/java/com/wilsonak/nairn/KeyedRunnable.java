@@ -2,26 +2,112 @@ package com.wilsonak.nairn;
 
 import com.wilsonak.nairn.hashpool.HashPoolExecutorService;
 
+import java.util.function.ToIntFunction;
+
 /**
  * An identifiable {@code Runnable}. Identity used to select a thread pool by {@link HashPoolExecutorService}.
+ * <p/>
+ * The routing hash is mixed with {@link KeyHashing} once, when the {@code KeyedRunnable} is created.
+ * Numeric keys and precomputed hashes are routed without building a {@code String} identifier.
  */
 public class KeyedRunnable implements Runnable {
-    private final String id;
+    private final Object key;
+    private final long numericKey;
+    private final boolean numeric;
+    private final int hash;
     private final Runnable runnable;
+    private final Priority priority;
 
     public KeyedRunnable(String id, Runnable runnable) {
-        this.id = id;
+        this(id, Priority.NORMAL, runnable);
+    }
+
+    /**
+     * Initialises a new instance of the {@code KeyedRunnable} class with a priority.
+     *
+     * @param id       the identifier
+     * @param priority how urgently the task should run
+     * @param runnable the task to run
+     */
+    public KeyedRunnable(String id, Priority priority, Runnable runnable) {
+        this(id, 0, false, KeyHashing.mix(id == null ? 0 : id.hashCode()), runnable, priority);
+    }
+
+    /**
+     * Initialises a new instance of the {@code KeyedRunnable} class with a precomputed hash.
+     *
+     * @param id       the identifier
+     * @param hash     hash of the identifier, need not be well distributed
+     * @param runnable the task to run
+     */
+    public KeyedRunnable(String id, int hash, Runnable runnable) {
+        this(id, 0, false, KeyHashing.mix(hash), runnable, Priority.NORMAL);
+    }
+
+    /**
+     * Initialises a new instance of the {@code KeyedRunnable} class with a numeric key.
+     *
+     * @param key      the key, {@code int} keys are widened
+     * @param runnable the task to run
+     */
+    public KeyedRunnable(long key, Runnable runnable) {
+        this(null, key, true, KeyHashing.mix(key), runnable, Priority.NORMAL);
+    }
+
+    /**
+     * Initialises a new instance of the {@code KeyedRunnable} class with an arbitrary key.
+     *
+     * @param key          the key
+     * @param hashFunction computes the hash of the key
+     * @param runnable     the task to run
+     * @param <K>          the type of the key
+     */
+    public <K> KeyedRunnable(K key, ToIntFunction<? super K> hashFunction, Runnable runnable) {
+        this(key, 0, false, KeyHashing.mix(hashFunction.applyAsInt(key)), runnable, Priority.NORMAL);
+    }
+
+    private KeyedRunnable(Object key, long numericKey, boolean numeric, int hash, Runnable runnable, Priority priority) {
+        this.key = key;
+        this.numericKey = numericKey;
+        this.numeric = numeric;
+        this.hash = hash;
         this.runnable = runnable;
+        this.priority = priority;
     }
 
+    /**
+     * @return the identifier, built on each call for numeric keys, may be null
+     */
     public String getId() {
-        return id;
+        if (numeric) {
+            return Long.toString(numericKey);
+        }
+
+        return key == null ? null : key.toString();
+    }
+
+    /**
+     * @return the key as given, boxed on each call for numeric keys, may be null
+     */
+    public Object getKey() {
+        return numeric ? Long.valueOf(numericKey) : key;
+    }
+
+    /**
+     * @return the mixed routing hash
+     */
+    public int getHash() {
+        return hash;
     }
 
     public Runnable getRunnable() {
         return runnable;
     }
 
+    public Priority getPriority() {
+        return priority;
+    }
+
     @Override
     public void run() {
         runnable.run();
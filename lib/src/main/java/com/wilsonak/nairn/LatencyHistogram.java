@@ -0,0 +1,118 @@
+package com.wilsonak.nairn;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed memory, lock-free histogram of non-negative {@code long} values such as latencies in
+ * nanoseconds, in the style of HdrHistogram.
+ * <p/>
+ * Values are counted in log-linear buckets: each power of two range is split into
+ * {@value #SUB_BUCKETS} equal sub-buckets, so every recorded value is known to within about 3%
+ * whatever its magnitude. The whole {@code long} range fits in under two thousand counters,
+ * allocated up front, and recording is a single atomic increment.
+ * <p/>
+ * Readings taken while values are being recorded are not a consistent snapshot, but each counter
+ * is exact.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * Number of sub-buckets each power of two range is split into.
+     */
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int indexOf(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return shift * SUB_BUCKETS + (int)(value >>> shift);
+    }
+
+    private static long highestValueAt(int index) {
+        int shift = Math.max(0, index / SUB_BUCKETS - 1);
+        long top = index - (long)shift * SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /**
+     * Count a value.
+     *
+     * @param value the value, negative values are counted as zero
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * @return the largest value recorded, or zero if none have been
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, or zero if none have been
+     */
+    public double getMean() {
+        long count = total.get();
+        return count == 0 ? 0 : (double)sum.get() / count;
+    }
+
+    /**
+     * Find the value below which a given percentage of recorded values fall.
+     *
+     * @param percentile between 0 and 100
+     * @return the highest value in the bucket holding the percentile, no more than {@link #getMax()}
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long)Math.ceil(Math.min(100, percentile) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    /**
+     * Clear all counts.
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
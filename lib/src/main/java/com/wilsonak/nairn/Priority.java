@@ -0,0 +1,39 @@
+package com.wilsonak.nairn;
+
+import com.wilsonak.nairn.hashpool.HashPoolExecutorService;
+
+/**
+ * How urgently a {@link KeyedRunnable} should run. A {@link HashPoolExecutorService} with priority
+ * lanes queues each priority separately on every pool and runs the more urgent tasks first, while
+ * the weights guarantee less urgent ones a share of each pool so that they are never starved.
+ */
+public enum Priority {
+    /**
+     * Latency critical work, given up to 16 turns for each turn of a {@link #LOW} task.
+     */
+    HIGH(16),
+
+    /**
+     * The default.
+     */
+    NORMAL(4),
+
+    /**
+     * Work which can wait, such as heartbeats.
+     */
+    LOW(1);
+
+    private final int weight;
+
+    Priority(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * @return the number of tasks of this priority a pool runs in each round while busier lanes
+     * are waiting
+     */
+    public int getWeight() {
+        return weight;
+    }
+}
@@ -1,5 +1,8 @@
 package com.wilsonak.nairn.cache;
 
+import com.wilsonak.nairn.HashedWheelTimer;
+
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.function.Function;
@@ -7,14 +10,21 @@ import java.util.function.Function;
 /**
  * Implementation of a {@code Function} which wraps a function
  * and caches the result in a thread-safe manner.
+ * <p/>
+ * Results may be given a lifetime, after which they are removed and the next call for the input
+ * calls the function again. Removals are scheduled on a {@link HashedWheelTimer}, by default the
+ * coarse shared timer, so expiring caches add no threads and results may outlive their lifetime
+ * by up to a tenth of a second. Clearing the cache cancels the removals of the results cleared.
  *
  * @param <T> the input type
  * @param <R> the result type
  * @see "Brian Goetz, Java Concurreny in Practice, p. 108"
  */
 public class CacheFunction<T, R> implements Function<T, R> {
-    private final Map<T, Future<R>> cache = new ConcurrentHashMap<>();
+    private final Map<T, Entry<R>> cache = new ConcurrentHashMap<>();
     private final Function<T, R> function;
+    private final long expireAfterNanos;
+    private final HashedWheelTimer timer;
 
     /**
      * Initialise a new instance of the {@code CacheFunction} class.
@@ -23,6 +33,33 @@ public class CacheFunction<T, R> implements Function<T, R> {
      */
     public CacheFunction(Function<T, R> function) {
         this.function = function;
+        this.expireAfterNanos = 0;
+        this.timer = null;
+    }
+
+    /**
+     * Initialise a new instance of the {@code CacheFunction} class whose results expire.
+     *
+     * @param function    the function to wrap, results will be cached
+     * @param expireAfter how long a result is cached for once calculated
+     * @param unit        the unit of the expiry time
+     */
+    public CacheFunction(Function<T, R> function, long expireAfter, TimeUnit unit) {
+        this(function, expireAfter, unit, HashedWheelTimer.getSharedCoarse());
+    }
+
+    /**
+     * Initialise a new instance of the {@code CacheFunction} class whose results expire.
+     *
+     * @param function    the function to wrap, results will be cached
+     * @param expireAfter how long a result is cached for once calculated
+     * @param unit        the unit of the expiry time
+     * @param timer       removes expired results
+     */
+    public CacheFunction(Function<T, R> function, long expireAfter, TimeUnit unit, HashedWheelTimer timer) {
+        this.function = function;
+        this.expireAfterNanos = unit.toNanos(expireAfter);
+        this.timer = timer;
     }
 
     @Override
@@ -30,11 +67,19 @@ public class CacheFunction<T, R> implements Function<T, R> {
         while (true) {
             Future<R> result = cache.get(t);
             if (result == null) {
-                FutureTask<R> task = new FutureTask<>(() -> function.apply(t));
+                Entry<R> task = new Entry<>(() -> function.apply(t));
                 result = cache.putIfAbsent(t, task);
                 if (result == null) {
                     result = task;
                     task.run();
+                    if (timer != null) {
+                        // Only remove this result, not one calculated after a clear
+                        task.expiry = timer.schedule(() -> cache.remove(t, task), expireAfterNanos, TimeUnit.NANOSECONDS);
+                        if (cache.get(t) != task) {
+                            // Cleared before the removal was scheduled
+                            task.cancelExpiry();
+                        }
+                    }
                 }
             }
 
@@ -59,6 +104,28 @@ public class CacheFunction<T, R> implements Function<T, R> {
      * Clear the contents of the cache.
      */
     public void clear() {
-        cache.clear();
+        for (Iterator<Entry<R>> it = cache.values().iterator(); it.hasNext(); ) {
+            Entry<R> entry = it.next();
+            it.remove();
+            entry.cancelExpiry();
+        }
+    }
+
+    /**
+     * A cached result and the timeout which removes it.
+     */
+    private static class Entry<R> extends FutureTask<R> {
+        private volatile HashedWheelTimer.Timeout expiry;
+
+        public Entry(Callable<R> callable) {
+            super(callable);
+        }
+
+        public void cancelExpiry() {
+            HashedWheelTimer.Timeout timeout = expiry;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
     }
 }
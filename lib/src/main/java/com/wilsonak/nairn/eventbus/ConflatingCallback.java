@@ -0,0 +1,53 @@
+package com.wilsonak.nairn.eventbus;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * A callback which only wants the latest event for each identifier. Events waiting to be delivered
+ * are held here rather than in the executor's queue, one per identifier, and a newer event
+ * replaces an older one in place.
+ * <p/>
+ * An identifier has a delivery task scheduled only while it has a pending event, so however fast
+ * events are published a slow subscriber has no more tasks queued than it has identifiers.
+ *
+ * @param <T> the type of object to be processed by the consumer
+ */
+class ConflatingCallback<T> extends FilteredCallback<T> {
+    private static final Object NULL_ID = new Object();
+
+    private final Map<Object, T> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Initialises a new instance of the {@code ConflatingCallback} class
+     *
+     * @param consumer called with the latest event for each identifier
+     * @param sequence orders subscribers by when they subscribed
+     */
+    public ConflatingCallback(Consumer<? super T> consumer, long sequence) {
+        super(consumer, null, sequence);
+    }
+
+    /**
+     * Hold an event for delivery, replacing any pending event with the same identifier.
+     *
+     * @param id    the event's identifier
+     * @param event the event
+     * @return true if the identifier had no pending event, so a delivery must be scheduled
+     */
+    public boolean offer(String id, T event) {
+        return pending.put(id == null ? NULL_ID : id, event) == null;
+    }
+
+    /**
+     * Take the pending event for an identifier. Once taken, the next event offered for the
+     * identifier schedules a new delivery.
+     *
+     * @param id the event's identifier
+     * @return the latest event offered for the identifier
+     */
+    public T take(String id) {
+        return pending.remove(id == null ? NULL_ID : id);
+    }
+}
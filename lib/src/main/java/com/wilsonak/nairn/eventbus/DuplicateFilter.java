@@ -0,0 +1,178 @@
+package com.wilsonak.nairn.eventbus;
+
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers the keys of recently published events so that repeats within a time window can be
+ * dropped, in a fixed amount of memory.
+ * <p/>
+ * The window is split into buckets, each an open addressing hash set of 64 bit fingerprints of
+ * the keys seen while it was current. A key is a duplicate if any live bucket holds its
+ * fingerprint. When time moves past a bucket's span the oldest bucket is cleared and reused, so
+ * a key is remembered for at least the window and at most one bucket longer. The sets are sized
+ * up front for a maximum number of keys per window; once a bucket is full, further keys pass
+ * without being remembered rather than evicting others.
+ * <p/>
+ * Large filters are split into stripes by fingerprint, each with its own buckets and lock, so
+ * publishers of different keys rarely wait on each other and clearing a bucket only holds up
+ * one stripe. Each stripe is sized for its share of the maximum keys with some room to spare,
+ * so the maximum is then approximate.
+ * <p/>
+ * Fingerprints are 64 bit hashes of the key strings, so a distinct key is mistaken for a
+ * duplicate only on a 64 bit collision.
+ */
+class DuplicateFilter {
+    private static final int KEYS_PER_STRIPE = 1024;
+    private static final int MAX_STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 8 - 1) << 1;
+
+    private final Function<? super Event, String> keyFunction;
+    private final LongSupplier clock;
+    private final long bucketNanos;
+    private final Stripe[] stripes;
+
+    /**
+     * Initialises a new instance of the {@code DuplicateFilter} class
+     *
+     * @param keyFunction  finds the key of an event, null keys are never duplicates
+     * @param windowNanos  how long a key is remembered for, in nanoseconds
+     * @param maxKeys      most distinct keys expected in a window
+     */
+    public DuplicateFilter(Function<? super Event, String> keyFunction, long windowNanos, int maxKeys) {
+        this(keyFunction, windowNanos, maxKeys, 4, System::nanoTime);
+    }
+
+    /**
+     * Initialises a new instance of the {@code DuplicateFilter} class
+     *
+     * @param keyFunction  finds the key of an event, null keys are never duplicates
+     * @param windowNanos  how long a key is remembered for, in nanoseconds
+     * @param maxKeys      most distinct keys expected in a window
+     * @param bucketCount  number of buckets the window is split into
+     * @param clock        the time in nanoseconds
+     */
+    public DuplicateFilter(Function<? super Event, String> keyFunction,
+                           long windowNanos,
+                           int maxKeys,
+                           int bucketCount,
+                           LongSupplier clock) {
+        if (windowNanos <= 0 || maxKeys <= 0 || bucketCount <= 0) {
+            throw new IllegalArgumentException("Window, maximum keys and bucket count must be positive");
+        }
+
+        this.keyFunction = keyFunction;
+        this.clock = clock;
+        this.bucketNanos = Math.max(1, windowNanos / bucketCount);
+
+        // Small filters keep one stripe and an exact maximum
+        int stripeCount = Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, maxKeys / KEYS_PER_STRIPE)));
+        int limit = stripeCount == 1 ? maxKeys : maxKeys / stripeCount + maxKeys / stripeCount / 8;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(bucketCount, limit);
+        }
+    }
+
+    /**
+     * Check an event against the window and remember its key.
+     *
+     * @param event the event being published
+     * @return true if an event with the same key was seen within the window
+     */
+    public boolean isDuplicate(Event event) {
+        String key = keyFunction.apply(event);
+        if (key == null) {
+            return false;
+        }
+
+        long fingerprint = fingerprint(key);
+        long epoch = Math.floorDiv(clock.getAsLong(), bucketNanos);
+
+        // The high bits pick the stripe, the low bits the slot within it
+        return stripes[(int)(fingerprint >>> 32) & (stripes.length - 1)].isDuplicate(fingerprint, epoch);
+    }
+
+    /**
+     * @return a well mixed 64 bit hash of the key, never zero as that marks an empty slot
+     */
+    private static long fingerprint(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * The buckets for a share of the fingerprints, guarded by its own lock.
+     */
+    private static class Stripe {
+        private final long[][] buckets;
+        private final long[] bucketEpochs;
+        private final int[] sizes;
+        private final int limit;
+
+        public Stripe(int bucketCount, int limit) {
+            // Keys can arrive in a burst within one bucket, so each holds a full window's worth at half load
+            this.limit = limit;
+            int capacity = Integer.highestOneBit(Math.max(1, limit * 2 - 1)) << 1;
+
+            // One more bucket than the window needs, the current one being only partly through its span
+            this.buckets = new long[bucketCount + 1][capacity];
+            this.bucketEpochs = new long[bucketCount + 1];
+            this.sizes = new int[bucketCount + 1];
+            Arrays.fill(bucketEpochs, Long.MIN_VALUE);
+        }
+
+        public synchronized boolean isDuplicate(long fingerprint, long epoch) {
+            long oldest = epoch - buckets.length + 1;
+            for (int i = 0; i < buckets.length; i++) {
+                if (bucketEpochs[i] >= oldest && contains(buckets[i], fingerprint)) {
+                    return true;
+                }
+            }
+
+            int current = (int)Math.floorMod(epoch, (long)buckets.length);
+            if (bucketEpochs[current] != epoch) {
+                Arrays.fill(buckets[current], 0);
+                sizes[current] = 0;
+                bucketEpochs[current] = epoch;
+            }
+
+            if (sizes[current] < limit) {
+                add(buckets[current], fingerprint);
+                sizes[current]++;
+            }
+
+            return false;
+        }
+
+        private static boolean contains(long[] set, long fingerprint) {
+            int mask = set.length - 1;
+            for (int i = (int)fingerprint & mask; set[i] != 0; i = (i + 1) & mask) {
+                if (set[i] == fingerprint) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private static void add(long[] set, long fingerprint) {
+            int mask = set.length - 1;
+            int i = (int)fingerprint & mask;
+            while (set[i] != 0) {
+                i = (i + 1) & mask;
+            }
+
+            set[i] = fingerprint;
+        }
+    }
+}
@@ -1,9 +1,19 @@
 package com.wilsonak.nairn.eventbus;
 
+import com.wilsonak.nairn.Priority;
+
 /**
  * An input to the {@link EventBus}. {@code Event} objects are
  * published to subscribers via the bus.
  */
 public interface Event {
     String getId();
+
+    /**
+     * @return how urgently subscribers should be called, on an executor with priority lanes such
+     * as a {@code HashPoolExecutorService} built with them. Normal unless an event class overrides it.
+     */
+    default Priority getPriority() {
+        return Priority.NORMAL;
+    }
 }
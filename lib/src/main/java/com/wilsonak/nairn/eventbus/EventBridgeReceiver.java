@@ -0,0 +1,239 @@
+package com.wilsonak.nairn.eventbus;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Publishes events sent by {@link EventBridgeSender}s in other processes on the same host to an
+ * {@link EventBus}, listening on a Unix domain socket.
+ * <p/>
+ * Each sender's connection has a reader thread, which reads as many frames as the socket has
+ * ready into one buffer, decodes every complete frame and publishes them together through
+ * {@link EventBus#publishEvents(java.util.Collection)}. Events from one sender are published in
+ * the order they were sent, so each identifier's events keep their order on a bus which orders
+ * them by identifier.
+ * <p/>
+ * Errors decoding or publishing a batch are passed to the error callback and the connection
+ * carries on. A connection which fails, or sends a frame longer than the maximum frame size, is
+ * closed.
+ */
+public class EventBridgeReceiver implements AutoCloseable {
+    /**
+     * Default largest frame, in bytes, a sender may send.
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final List<SocketChannel> connections = new CopyOnWriteArrayList<>();
+    private final List<Thread> readers = new CopyOnWriteArrayList<>();
+    private final EventBus bus;
+    private final EventCodec codec;
+    private final Consumer<Throwable> errorCallback;
+    private final Path socketPath;
+    private final int maxFrameSize;
+    private final ServerSocketChannel server;
+    private final Thread acceptor;
+    private volatile boolean closed;
+
+    /**
+     * Initialises a new instance of the {@code EventBridgeReceiver} class, listening for senders
+     *
+     * @param bus           the bus to publish events to
+     * @param socketPath    the socket file to create, which must not exist
+     * @param codec         converts bytes to events, as the senders' codec produced them
+     * @param errorCallback called with errors reading, decoding or publishing events, may be null
+     * @throws IOException if the socket cannot be created
+     */
+    public EventBridgeReceiver(EventBus bus, Path socketPath, EventCodec codec, Consumer<Throwable> errorCallback) throws IOException {
+        this(bus, socketPath, codec, errorCallback, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Initialises a new instance of the {@code EventBridgeReceiver} class, listening for senders
+     *
+     * @param bus           the bus to publish events to
+     * @param socketPath    the socket file to create, which must not exist
+     * @param codec         converts bytes to events, as the senders' codec produced them
+     * @param errorCallback called with errors reading, decoding or publishing events, may be null
+     * @param maxFrameSize  largest frame in bytes a sender may send before it is disconnected
+     * @throws IOException if the socket cannot be created
+     */
+    public EventBridgeReceiver(EventBus bus,
+                               Path socketPath,
+                               EventCodec codec,
+                               Consumer<Throwable> errorCallback,
+                               int maxFrameSize) throws IOException {
+        this.bus = bus;
+        this.codec = codec;
+        this.errorCallback = errorCallback;
+        this.socketPath = socketPath;
+        this.maxFrameSize = maxFrameSize;
+        this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+
+        this.acceptor = new Thread(this::runAcceptor, "eventbus-bridge-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return the socket file senders connect to
+     */
+    public Path getSocketPath() {
+        return socketPath;
+    }
+
+    /**
+     * @return the number of senders connected
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    private void runAcceptor() {
+        while (true) {
+            SocketChannel connection;
+            try {
+                connection = server.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    report(e);
+                }
+
+                return;
+            }
+
+            connections.add(connection);
+            Thread reader = new Thread(() -> runReader(connection), "eventbus-bridge-reader");
+            reader.setDaemon(true);
+            readers.add(reader);
+            reader.start();
+        }
+    }
+
+    private void runReader(SocketChannel connection) {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        List<Event> batch = new ArrayList<>();
+        try {
+            while (connection.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.remaining() >= Integer.BYTES) {
+                    int length = buffer.getInt(buffer.position());
+                    if (length < 0) {
+                        throw new IOException("Corrupt frame of length " + length);
+                    }
+
+                    if (length > maxFrameSize) {
+                        throw new IOException("Frame of length " + length + " is longer than the maximum of " + maxFrameSize);
+                    }
+
+                    if (buffer.remaining() - Integer.BYTES < length) {
+                        break;
+                    }
+
+                    byte[] bytes = new byte[length];
+                    buffer.position(buffer.position() + Integer.BYTES).get(bytes);
+                    decode(bytes, batch);
+                }
+
+                buffer.compact();
+                if (!buffer.hasRemaining()) {
+                    // A frame bigger than the buffer, which is no bigger than the largest frame allowed
+                    int capacity = (int)Math.min((long)buffer.capacity() * 2, (long)maxFrameSize + Integer.BYTES);
+                    buffer = ByteBuffer.allocate(capacity).put(buffer.flip());
+                }
+
+                publish(batch);
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                report(e);
+            }
+        } finally {
+            publish(batch);
+            connections.remove(connection);
+            readers.remove(Thread.currentThread());
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Already finished with
+            }
+        }
+    }
+
+    private void decode(byte[] bytes, List<Event> batch) {
+        try {
+            batch.add(codec.decode(bytes));
+        } catch (RuntimeException e) {
+            report(e);
+        }
+    }
+
+    private void publish(List<Event> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            bus.publishEvents(batch);
+        } catch (RuntimeException e) {
+            report(e);
+        }
+
+        batch.clear();
+    }
+
+    private void report(Throwable e) {
+        if (errorCallback != null) {
+            errorCallback.accept(e);
+        }
+    }
+
+    /**
+     * Stop listening, disconnect the senders and remove the socket file. Events already read are
+     * published before this returns.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        try {
+            // No connections can be added once the acceptor has stopped
+            server.close();
+            acceptor.join();
+            for (SocketChannel connection : connections) {
+                connection.close();
+            }
+
+            for (Thread reader : readers) {
+                reader.join();
+            }
+
+            Files.deleteIfExists(socketPath);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.wilsonak.nairn.eventbus;
+
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Forwards events from an {@link EventBus} to {@link EventBridgeReceiver}s in other processes on
+ * the same host, over Unix domain sockets.
+ * <p/>
+ * Each event forwarded is encoded once, on the subscriber's thread, and queued for a single
+ * writer thread. The writer takes everything queued, up to a limit, and sends it to every peer
+ * with one gathering write of the frames' lengths and bytes, so a busy bus costs a system call
+ * per batch rather than per event. Frames are sent in the order they were queued, and the bus
+ * calls a subscriber in order for each identifier, so receivers see each identifier's events in
+ * the order they were published.
+ * <p/>
+ * The queue holds a limited number of frames. An event forwarded while it is full is dropped and
+ * the error callback told, rather than holding up the bus's thread. Peers are written without
+ * blocking, and a peer which cannot be written to, or takes in no bytes for longer than the
+ * write timeout, is dropped and the error passed to the error callback. The others carry on.
+ */
+public class EventBridgeSender implements AutoCloseable {
+    /**
+     * Default number of encoded events which may wait for the writer thread.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 64 * 1024;
+
+    /**
+     * Default time in milliseconds a peer may go without taking in any bytes before it is dropped.
+     */
+    public static final long DEFAULT_WRITE_TIMEOUT = 5000;
+
+    private static final int MAX_BATCH = 512;
+    private static final byte[] STOP = new byte[0];
+
+    private final List<Peer> peers = new CopyOnWriteArrayList<>();
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<byte[]> queue;
+    private final EventBus bus;
+    private final EventCodec codec;
+    private final Consumer<Throwable> errorCallback;
+    private final long writeTimeoutNanos;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * Initialises a new instance of the {@code EventBridgeSender} class, connected to each of the
+     * peers. Nothing is forwarded until {@link #forward(Class)} is called.
+     *
+     * @param bus           the bus to forward events from
+     * @param codec         converts events to bytes, as the receivers' codec expects
+     * @param peers         socket files of the receivers
+     * @param errorCallback called with errors writing to peers, may be null
+     * @throws IOException if a peer cannot be connected to
+     */
+    public EventBridgeSender(EventBus bus, EventCodec codec, Collection<Path> peers, Consumer<Throwable> errorCallback) throws IOException {
+        this(bus, codec, peers, errorCallback, DEFAULT_QUEUE_SIZE, DEFAULT_WRITE_TIMEOUT);
+    }
+
+    /**
+     * Initialises a new instance of the {@code EventBridgeSender} class, connected to each of the
+     * peers. Nothing is forwarded until {@link #forward(Class)} is called.
+     *
+     * @param bus           the bus to forward events from
+     * @param codec         converts events to bytes, as the receivers' codec expects
+     * @param peers         socket files of the receivers
+     * @param errorCallback called with errors writing to peers and with dropped events, may be null
+     * @param queueSize     number of encoded events which may wait for the writer thread
+     * @param writeTimeout  milliseconds a peer may go without taking in any bytes before it is dropped
+     * @throws IOException if a peer cannot be connected to
+     */
+    public EventBridgeSender(EventBus bus,
+                             EventCodec codec,
+                             Collection<Path> peers,
+                             Consumer<Throwable> errorCallback,
+                             int queueSize,
+                             long writeTimeout) throws IOException {
+        this.bus = bus;
+        this.codec = codec;
+        this.errorCallback = errorCallback;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeout);
+        try {
+            for (Path peer : peers) {
+                this.peers.add(new Peer(SocketChannel.open(UnixDomainSocketAddress.of(peer))));
+            }
+        } catch (IOException e) {
+            closePeers();
+            throw e;
+        }
+
+        this.writer = new Thread(this::runWriter, "eventbus-bridge-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Forward events of a class to the peers. Only events of the class itself are forwarded, not
+     * those of its subclasses.
+     *
+     * @param eventType the class of event to forward
+     * @return closed to stop forwarding the class
+     */
+    public Subscription forward(Class<? extends Event> eventType) {
+        if (closed) {
+            throw new IllegalStateException("Bridge has been closed");
+        }
+
+        Subscription subscription = bus.addSubscriber(eventType, this::send);
+        subscriptions.add(subscription);
+        return () -> {
+            subscriptions.remove(subscription);
+            subscription.close();
+        };
+    }
+
+    private void send(Event event) {
+        if (!closed && !queue.offer(codec.encode(event))) {
+            report(new IllegalStateException("Bridge queue is full, event " + event.getId() + " dropped"));
+        }
+    }
+
+    private void report(Throwable e) {
+        if (errorCallback != null) {
+            errorCallback.accept(e);
+        }
+    }
+
+    /**
+     * @return the number of peers still connected
+     */
+    public int getPeerCount() {
+        return peers.size();
+    }
+
+    private void runWriter() {
+        List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            queue.drainTo(batch, MAX_BATCH - 1);
+            int count = batch.indexOf(STOP);
+            stopping = count >= 0;
+            writeBatch(batch, stopping ? count : batch.size());
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<byte[]> batch, int count) {
+        if (count == 0) {
+            return;
+        }
+
+        // Every frame is its length then its bytes, gathered into one write
+        ByteBuffer lengths = ByteBuffer.allocate(count * Integer.BYTES);
+        ByteBuffer[] buffers = new ByteBuffer[count * 2];
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = batch.get(i);
+            lengths.putInt(i * Integer.BYTES, bytes.length);
+            buffers[i * 2] = lengths.slice(i * Integer.BYTES, Integer.BYTES);
+            buffers[i * 2 + 1] = ByteBuffer.wrap(bytes);
+            total += Integer.BYTES + bytes.length;
+        }
+
+        for (Peer peer : peers) {
+            for (ByteBuffer buffer : buffers) {
+                buffer.rewind();
+            }
+
+            try {
+                peer.write(buffers, total);
+            } catch (IOException e) {
+                peers.remove(peer);
+                peer.close();
+                report(e);
+            }
+        }
+    }
+
+    private void closePeers() {
+        peers.forEach(Peer::close);
+        peers.clear();
+    }
+
+    /**
+     * Stop forwarding, send the events already queued and disconnect from the peers.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        subscriptions.forEach(Subscription::close);
+        subscriptions.clear();
+        try {
+            // The writer makes room, dropping any peer which stops it for too long
+            queue.put(STOP);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        closePeers();
+    }
+
+    /**
+     * A connection to a receiver, written without blocking. The selector is only used to wait
+     * for the socket to take more bytes.
+     */
+    private class Peer {
+        private final SocketChannel channel;
+        private final Selector selector;
+        private final SelectionKey key;
+
+        public Peer(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            try {
+                this.selector = Selector.open();
+                channel.configureBlocking(false);
+                this.key = channel.register(selector, SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                closeQuietly(channel);
+                throw e;
+            }
+        }
+
+        public void write(ByteBuffer[] buffers, long total) throws IOException {
+            long deadline = System.nanoTime() + writeTimeoutNanos;
+            for (long written = 0; written < total; ) {
+                long count = channel.write(buffers);
+                if (count > 0) {
+                    written += count;
+                    deadline = System.nanoTime() + writeTimeoutNanos;
+                    continue;
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new IOException("Peer " + channel.getRemoteAddress() + " stopped reading");
+                }
+
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                selector.selectedKeys().remove(key);
+            }
+        }
+
+        public void close() {
+            closeQuietly(channel);
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing more can be done with it
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing more can be done with it
+        }
+    }
+}
@@ -1,13 +1,18 @@
 package com.wilsonak.nairn.eventbus;
 
+import com.wilsonak.nairn.hashpool.KeyedSerialExecutorService;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 /**
  * An event bus which registers subscribers and publishes events to them
  */
-public interface EventBus {
+public interface EventBus extends AutoCloseable {
     /**
      * Publish an event to all relevant subscribers
      *
@@ -15,14 +20,35 @@ public interface EventBus {
      */
     void publishEvent(Event event);
 
+    /**
+     * Publish an event to all relevant subscribers and find out when they have finished. Exceptions
+     * from subscribers still go to the unhandled exception callback, and the first one also
+     * completes the future exceptionally. Conflating subscribers are not waited for, as a newer
+     * event may replace this one.
+     *
+     * @param event the event to publish
+     * @return completed when every subscriber for the event has run
+     */
+    CompletableFuture<Void> publishEventAsync(Event event);
+
+    /**
+     * Publish a batch of events, in order. Cheaper than publishing them one at a time, as the
+     * subscribers for each event class are looked up once and the tasks are handed to the executor
+     * together.
+     *
+     * @param events the events to publish
+     */
+    void publishEvents(Collection<? extends Event> events);
+
     /**
      * Make a subscription. Events published of the given type will be sent to the consumer.
      *
      * @param clazz    subscribe to events of this class
      * @param consumer to be called when the class is published
      * @param <T>      the type of event to subscribe to
+     * @return closed to unsubscribe
      */
-    <T extends Event> void addSubscriber(Class<T> clazz, Consumer<T> consumer);
+    <T extends Event> Subscription addSubscriber(Class<T> clazz, Consumer<T> consumer);
 
     /**
      * Make a subscription. Events published of the given type will be sent to the consumer if they pass the filter.
@@ -31,8 +57,112 @@ public interface EventBus {
      * @param consumer to be called when the class is published
      * @param filter   events that pass the filter will be sent to the consumer
      * @param <T>      the type of event to subscribe to
+     * @return closed to unsubscribe
      */
-    <T extends Event> void addSubscriberForFilteredEvents(Class<T> clazz, Consumer<T> consumer, Predicate<T> filter);
+    <T extends Event> Subscription addSubscriberForFilteredEvents(Class<T> clazz, Consumer<T> consumer, Predicate<T> filter);
+
+    /**
+     * Make a subscription to the events of a type with a given identifier. Quicker than filtering on
+     * the identifier with {@link #addSubscriberForFilteredEvents(Class, Consumer, Predicate)}, as
+     * publishing looks the identifier up rather than testing every subscriber's filter.
+     *
+     * @param clazz    subscribe to events of this class
+     * @param id       subscribe to events with this identifier
+     * @param consumer to be called when a matching event is published
+     * @param <T>      the type of event to subscribe to
+     * @return closed to unsubscribe
+     */
+    <T extends Event> Subscription addSubscriberForId(Class<T> clazz, String id, Consumer<T> consumer);
+
+    /**
+     * Make a subscription which only wants the latest event for each identifier. When the
+     * subscriber falls behind, a newer event replaces the one waiting for delivery with the same
+     * identifier rather than queuing behind it, so the subscriber has at most one event waiting
+     * per identifier. A ring buffer bus delivers every event to conflating subscribers.
+     *
+     * @param clazz    subscribe to events of this class
+     * @param consumer to be called with the latest event for an identifier
+     * @param <T>      the type of event to subscribe to
+     * @return closed to unsubscribe
+     */
+    <T extends Event> Subscription addConflatingSubscriber(Class<T> clazz, Consumer<T> consumer);
+
+    /**
+     * Make a subscription which first replays the events of the class recorded in the bus's
+     * {@link EventJournal}, on the calling thread, then receives live events. Events published
+     * during the replay are held and delivered once it is done, so none are missed or repeated.
+     *
+     * @param clazz    subscribe to events of this class
+     * @param position journal position to replay from, zero for the start or from
+     *                 {@link EventJournal#getPositionAt(long)} to start at a time
+     * @param consumer to be called with the replayed and then the live events
+     * @param <T>      the type of event to subscribe to
+     * @return closed to unsubscribe
+     * @throws IllegalStateException if the bus has no journal
+     */
+    <T extends Event> Subscription addSubscriberWithReplay(Class<T> clazz, long position, Consumer<T> consumer);
+
+    /**
+     * Subscribe each method of an object annotated with {@link Subscribe}, including those it
+     * inherits. The methods are bound once, here, into consumers which call them directly, so
+     * there is no reflection when events are published.
+     *
+     * @param subscriber the object whose methods are to be called
+     * @return closed to unsubscribe all of the object's methods
+     * @throws IllegalArgumentException if an annotated method is static or does not take a single
+     *                                  {@code Event}
+     */
+    Subscription registerSubscribers(Object subscriber);
+
+    /**
+     * Make a subscription to a class and all of its subclasses, or to every event class which
+     * implements an interface. Unlike {@link #addSubscriber(Class, Consumer)} the type need not be
+     * an {@code Event} itself.
+     *
+     * @param clazz    subscribe to events which are instances of this class or interface
+     * @param consumer to be called when a matching event is published
+     * @param <T>      the type of event to subscribe to
+     * @return closed to unsubscribe
+     */
+    <T> Subscription addSubscriberForSubtypes(Class<T> clazz, Consumer<? super T> consumer);
+
+    /**
+     * @return the publish counts and subscriber timings recorded by the bus
+     * @throws IllegalStateException if metrics were not enabled through {@link EventBusBuilder#metrics()}
+     */
+    EventBusMetrics getMetrics();
+
+    /**
+     * View the events of a class as a reactive stream. Each subscriber to the publisher gets its own
+     * subscription to the bus and is sent events only as it requests them, the rest waiting in a
+     * buffer of bounded size. The publisher never completes.
+     *
+     * @param clazz            publish events of this class
+     * @param bufferSize       most events held for each subscriber beyond its demand
+     * @param overflowStrategy what to do with an event when a subscriber's buffer is full
+     * @param <T>              the type of event to publish
+     * @return a publisher of the bus's events
+     */
+    default <T extends Event> Flow.Publisher<T> asPublisher(Class<T> clazz, int bufferSize, OverflowStrategy overflowStrategy) {
+        return new EventPublisher<>(this, clazz, bufferSize, overflowStrategy);
+    }
+
+    /**
+     * Release any threads owned by the bus, after delivering the events already published. Does
+     * nothing for buses which run subscribers on the publishing thread or an executor.
+     */
+    @Override
+    default void close() {
+    }
+
+    /**
+     * Start building an {@code EventBus} with options beyond the factory methods.
+     *
+     * @return a new builder
+     */
+    static EventBusBuilder builder() {
+        return new EventBusBuilder();
+    }
 
     /**
      * Initialises a new single threaded {@code EventBus} instance. All subscribers are
@@ -69,4 +199,70 @@ public interface EventBus {
     static EventBus newMultiThreadedEventBus(Executor executor, Consumer<Throwable> unhandledExceptionCallback) {
         return new EventBusImpl(executor, unhandledExceptionCallback);
     }
+
+    /**
+     * Initialises a new multi threaded {@code EventBus} instance for subscribers which block.
+     * Subscribers run on virtual threads, or on a cached pool of daemon threads before Java 21,
+     * through a serial lane per event identifier, so events with the same identifier are still
+     * processed one at a time in the order they were published. Close the bus to finish the
+     * events already published and release the threads.
+     *
+     * @see KeyedSerialExecutorService#newVirtualThreadExecutorService()
+     */
+    static EventBus newVirtualThreadEventBus() {
+        return newVirtualThreadEventBus(null);
+    }
+
+    /**
+     * Initialises a new multi threaded {@code EventBus} instance for subscribers which block.
+     * Subscribers run on virtual threads, or on a cached pool of daemon threads before Java 21,
+     * through a serial lane per event identifier, so events with the same identifier are still
+     * processed one at a time in the order they were published. Close the bus to finish the
+     * events already published and release the threads.
+     *
+     * @param unhandledExceptionCallback called with unhandled exceptions from the subscribers
+     * @see KeyedSerialExecutorService#newVirtualThreadExecutorService()
+     */
+    static EventBus newVirtualThreadEventBus(Consumer<Throwable> unhandledExceptionCallback) {
+        return new EventBusImpl(KeyedSerialExecutorService.newVirtualThreadExecutorService(), true,
+                unhandledExceptionCallback, false, null, null, null);
+    }
+
+    /**
+     * Initialises a new multi threaded {@code EventBus} instance split into partitions, each with
+     * its own subscriptions and worker thread. Events are sent to a partition by their identifier,
+     * so publishers of different identifiers share no state and events with the same identifier
+     * are processed in the order they were published. Close the bus to stop the threads.
+     *
+     * @param partitions number of partitions, typically the number of cores
+     */
+    static EventBus newPartitionedEventBus(int partitions) {
+        return new PartitionedEventBus(partitions, null);
+    }
+
+    /**
+     * Initialises a new multi threaded {@code EventBus} instance split into partitions, each with
+     * its own subscriptions and worker thread. Events are sent to a partition by their identifier,
+     * so publishers of different identifiers share no state and events with the same identifier
+     * are processed in the order they were published. Close the bus to stop the threads.
+     *
+     * @param partitions                 number of partitions, typically the number of cores
+     * @param unhandledExceptionCallback called with unhandled exceptions from the subscribers
+     */
+    static EventBus newPartitionedEventBus(int partitions, Consumer<Throwable> unhandledExceptionCallback) {
+        return new PartitionedEventBus(partitions, unhandledExceptionCallback);
+    }
+
+    /**
+     * Initialises a new multi threaded {@code EventBus} instance which hands events to its own
+     * consumer threads through a pre-allocated ring buffer. Close the bus to stop the threads.
+     *
+     * @param bufferSize      number of events the ring holds, rounded up to a power of two
+     * @param consumerThreads number of threads delivering events to subscribers
+     * @param waitStrategy    how the consumer threads wait for events
+     * @see EventBusBuilder#ringDispatcher(int, int, WaitStrategy)
+     */
+    static EventBus newRingBufferEventBus(int bufferSize, int consumerThreads, WaitStrategy waitStrategy) {
+        return new EventBusImpl(null, bufferSize, consumerThreads, waitStrategy);
+    }
 }
@@ -0,0 +1,145 @@
+package com.wilsonak.nairn.eventbus;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Builds an {@link EventBus}. Created through {@link EventBus#builder()}. Without an executor
+ * the bus is single threaded.
+ */
+public class EventBusBuilder {
+    private Executor executor = new LocalThreadExecutor();
+    private Consumer<Throwable> unhandledExceptionCallback;
+    private boolean fusedDispatch;
+    private int ringBufferSize;
+    private int consumerThreads;
+    private WaitStrategy waitStrategy;
+    private EventJournal journal;
+    private boolean metrics;
+    private Function<? super Event, String> duplicateKey;
+    private long duplicateWindowNanos;
+    private int duplicateMaxKeys;
+
+    EventBusBuilder() {
+    }
+
+    /**
+     * @param executor runs the subscribers
+     * @return this builder
+     */
+    public EventBusBuilder executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * @param unhandledExceptionCallback called with unhandled exceptions from the subscribers
+     * @return this builder
+     */
+    public EventBusBuilder unhandledExceptionCallback(Consumer<Throwable> unhandledExceptionCallback) {
+        this.unhandledExceptionCallback = unhandledExceptionCallback;
+        return this;
+    }
+
+    /**
+     * Submit one task per event which calls each subscriber in turn, rather than one task per
+     * subscriber. A slow subscriber then delays the later subscribers for the same event.
+     *
+     * @return this builder
+     */
+    public EventBusBuilder fusedDispatch() {
+        this.fusedDispatch = true;
+        return this;
+    }
+
+    /**
+     * Deliver events through a pre-allocated ring buffer to a fixed set of consumer threads rather
+     * than through an executor. Publishing allocates nothing and waits when the ring is full. Each
+     * subscriber is served by one of the consumer threads and sees events in the order they were
+     * published. The bus must be closed to stop the threads.
+     *
+     * @param bufferSize      number of events the ring holds, rounded up to a power of two
+     * @param consumerThreads number of threads delivering events to subscribers
+     * @param waitStrategy    how the consumer threads wait for events
+     * @return this builder
+     */
+    public EventBusBuilder ringDispatcher(int bufferSize, int consumerThreads, WaitStrategy waitStrategy) {
+        this.ringBufferSize = bufferSize;
+        this.consumerThreads = consumerThreads;
+        this.waitStrategy = waitStrategy;
+        return this;
+    }
+
+    /**
+     * Append every published event to a journal, so that subscribers can replay earlier events
+     * through {@link EventBus#addSubscriberWithReplay(Class, long, Consumer)}. Publishing is
+     * serialised on the journal. Not available with a ring dispatcher.
+     *
+     * @param journal records the published events
+     * @return this builder
+     */
+    public EventBusBuilder journal(EventJournal journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    /**
+     * Count the events published of each class, and count and time each subscriber's deliveries,
+     * to be read through {@link EventBus#getMetrics()}. Recording costs two clock reads per
+     * delivery and a counter update per publish, and nothing at all when not enabled.
+     *
+     * @return this builder
+     */
+    public EventBusBuilder metrics() {
+        this.metrics = true;
+        return this;
+    }
+
+    /**
+     * Drop events whose identifier was already published within a time window, before they reach
+     * any subscriber. Events without an identifier are always published. Memory is fixed, between
+     * 80 and 160 bytes per key, and keys beyond the maximum in a window are not remembered.
+     *
+     * @param window  how long an identifier is remembered for
+     * @param unit    the unit of the window
+     * @param maxKeys most distinct identifiers expected in a window
+     * @return this builder
+     */
+    public EventBusBuilder deduplicate(long window, TimeUnit unit, int maxKeys) {
+        return deduplicate(window, unit, maxKeys, Event::getId);
+    }
+
+    /**
+     * Drop events whose key was already published within a time window, before they reach any
+     * subscriber. Events with a null key are always published.
+     *
+     * @param window      how long a key is remembered for
+     * @param unit        the unit of the window
+     * @param maxKeys     most distinct keys expected in a window
+     * @param keyFunction finds the key identifying an event
+     * @return this builder
+     * @see #deduplicate(long, TimeUnit, int)
+     */
+    public EventBusBuilder deduplicate(long window, TimeUnit unit, int maxKeys, Function<? super Event, String> keyFunction) {
+        this.duplicateKey = keyFunction;
+        this.duplicateWindowNanos = unit.toNanos(window);
+        this.duplicateMaxKeys = maxKeys;
+        return this;
+    }
+
+    public EventBus build() {
+        EventBusMetrics eventBusMetrics = metrics ? new EventBusMetrics() : null;
+        DuplicateFilter duplicateFilter = duplicateKey == null ? null : new DuplicateFilter(duplicateKey, duplicateWindowNanos, duplicateMaxKeys);
+        if (waitStrategy != null) {
+            if (journal != null) {
+                throw new IllegalStateException("A journal cannot be used with a ring dispatcher");
+            }
+
+            return new EventBusImpl(unhandledExceptionCallback, ringBufferSize, consumerThreads, waitStrategy, eventBusMetrics, duplicateFilter);
+        }
+
+        return new EventBusImpl(executor, unhandledExceptionCallback, fusedDispatch, journal, eventBusMetrics, duplicateFilter);
+    }
+}
@@ -1,22 +1,106 @@
 package com.wilsonak.nairn.eventbus;
 
 import com.wilsonak.nairn.KeyedRunnable;
+import com.wilsonak.nairn.hashpool.HashPoolExecutorService;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 /**
  * Implementation of {@code EventBus}. Instantiated through static methods on that interface.
+ * <p/>
+ * By default each subscriber call is a separate task on the executor. With fused dispatch one
+ * task is submitted per event and calls the subscribers in order, which saves an allocation and a
+ * hand-off per subscriber. Since all the tasks for an event share its identifier they would have
+ * run on the same thread of a {@code HashPoolExecutorService} anyway.
+ * <p/>
+ * Publishing does not search the subscriptions. Each concrete event class has an immutable
+ * dispatch table, cached in a {@link ClassValue}, listing the subscribers for the class itself
+ * and those for any superclass or interface it has, in the order they subscribed. Each table has
+ * its own version. Subscribing to a class moves that class's table on to a new version, and
+ * subscribing to a supertype moves on the tables of the classes below it that have been
+ * published, so a stale table is rebuilt the next time its class is published and the tables of
+ * unrelated classes are left alone.
+ * <p/>
+ * Subscribers for a single event identifier are kept apart, in a hash index per event class
+ * which the dispatch table refers to, so publishing only touches the subscribers for the event's
+ * identifier rather than testing a filter for each one. Each identifier has its own small
+ * copy-on-write array, so subscribing for an identifier does not copy the other identifiers'
+ * subscribers. Identifier subscribers are called after the other subscribers for the event.
+ * <p/>
+ * Conflating subscribers are also kept apart in the dispatch table. Rather than a task per event
+ * they have one pending event per identifier, replaced by each newer event, and a task is only
+ * submitted for an identifier when it has no pending event, so a slow conflating subscriber
+ * cannot fill the executor's queue.
+ * <p/>
+ * Subscriptions are held in concurrent hash sets, so subscribing and unsubscribing cost O(1)
+ * rather than the full copy of a {@code CopyOnWriteArrayList}. Closing a subscription deactivates
+ * its callback at once and moves the tables it was in on to a new version, so however many
+ * subscriptions come and go between two publishes of a class its table is rebuilt only once.
+ * <p/>
+ * With a ring dispatcher there is no executor. Publishing stores the event in a pre-allocated
+ * {@link RingDispatcher} and allocates nothing, and a fixed set of consumer threads delivers it.
+ * Each subscription belongs to one consumer thread, chosen in turn as they subscribe, so every
+ * subscriber, identifier subscribers included, sees events in the order they were published.
+ * Subscribers are looked up when the event is delivered rather than when it is published.
+ * <p/>
+ * An asynchronous publish counts its tasks down to completing a future, or with a ring dispatcher
+ * counts down the consumer threads. Publishing a batch looks each event class's dispatch table up
+ * once and, on a {@link HashPoolExecutorService}, hands all the tasks over in one call.
+ * <p/>
+ * With an {@link EventJournal} each event is appended before it is dispatched. A subscriber
+ * replaying the journal is registered and notes the end of the journal atomically with respect to
+ * publishers, then replays up to that point while live events are held back for it.
+ * <p/>
+ * With {@link EventBusMetrics} each publish is counted against its class and timed, and each
+ * callback carries its own {@link SubscriberMetrics}. Without them the callbacks carry null and
+ * nothing is counted or timed.
+ * <p/>
+ * With a {@link DuplicateFilter} each event is checked against the keys of recent events before
+ * anything else, and a duplicate is dropped before it reaches the journal, the ring or the
+ * executor.
  */
 class EventBusImpl implements EventBus {
-    private final Map<Class<? extends Event>, Collection<FilteredCallback<? extends Event>>> events = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Set<FilteredCallback<?>>> events = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Set<FilteredCallback<?>>> hierarchyEvents = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Map<String, FilteredCallback<Object>[]>> idEvents = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Set<Class<?>> tabledClasses = ConcurrentHashMap.newKeySet();
+    private final ClassValue<TableCache> dispatchTables = new ClassValue<>() {
+        @Override
+        protected TableCache computeValue(Class<?> type) {
+            tabledClasses.add(type);
+            return new TableCache();
+        }
+    };
+
     private final Executor threadPool;
+    private final boolean ownsThreadPool;
     private final Consumer<Throwable> unhandledExceptionCallback;
+    private final boolean fusedDispatch;
+    private final RingDispatcher ring;
+    private final EventJournal journal;
+    private final EventBusMetrics metrics;
+    private final DuplicateFilter duplicateFilter;
 
     /**
      * Initialises a new instance of the {@code EventBusImpl} class
@@ -25,50 +109,813 @@ class EventBusImpl implements EventBus {
      * @param unhandledExceptionCallback called with unhandled exceptions from the subscribers
      */
     public EventBusImpl(Executor threadPool, Consumer<Throwable> unhandledExceptionCallback) {
+        this(threadPool, unhandledExceptionCallback, false);
+    }
+
+    /**
+     * Initialises a new instance of the {@code EventBusImpl} class
+     *
+     * @param threadPool                 used to execute subscriber methods
+     * @param unhandledExceptionCallback called with unhandled exceptions from the subscribers
+     * @param fusedDispatch              true to submit one task per event rather than one per subscriber
+     */
+    public EventBusImpl(Executor threadPool, Consumer<Throwable> unhandledExceptionCallback, boolean fusedDispatch) {
+        this(threadPool, unhandledExceptionCallback, fusedDispatch, null);
+    }
+
+    /**
+     * Initialises a new instance of the {@code EventBusImpl} class
+     *
+     * @param threadPool                 used to execute subscriber methods
+     * @param unhandledExceptionCallback called with unhandled exceptions from the subscribers
+     * @param fusedDispatch              true to submit one task per event rather than one per subscriber
+     * @param journal                    records published events for replay, may be null
+     */
+    public EventBusImpl(Executor threadPool,
+                        Consumer<Throwable> unhandledExceptionCallback,
+                        boolean fusedDispatch,
+                        EventJournal journal) {
+        this(threadPool, unhandledExceptionCallback, fusedDispatch, journal, null, null);
+    }
+
+    /**
+     * Initialises a new instance of the {@code EventBusImpl} class
+     *
+     * @param threadPool                 used to execute subscriber methods
+     * @param unhandledExceptionCallback called with unhandled exceptions from the subscribers
+     * @param fusedDispatch              true to submit one task per event rather than one per subscriber
+     * @param journal                    records published events for replay, may be null
+     * @param metrics                    records publish counts and subscriber timings, may be null
+     * @param duplicateFilter            drops repeated events, may be null
+     */
+    public EventBusImpl(Executor threadPool,
+                        Consumer<Throwable> unhandledExceptionCallback,
+                        boolean fusedDispatch,
+                        EventJournal journal,
+                        EventBusMetrics metrics,
+                        DuplicateFilter duplicateFilter) {
+        this(threadPool, false, unhandledExceptionCallback, fusedDispatch, journal, metrics, duplicateFilter);
+    }
+
+    /**
+     * Initialises a new instance of the {@code EventBusImpl} class
+     *
+     * @param threadPool                 used to execute subscriber methods
+     * @param ownsThreadPool             true if the thread pool was made for this bus and should be shut
+     *                                   down when it is closed
+     * @param unhandledExceptionCallback called with unhandled exceptions from the subscribers
+     * @param fusedDispatch              true to submit one task per event rather than one per subscriber
+     * @param journal                    records published events for replay, may be null
+     * @param metrics                    records publish counts and subscriber timings, may be null
+     * @param duplicateFilter            drops repeated events, may be null
+     */
+    public EventBusImpl(Executor threadPool,
+                        boolean ownsThreadPool,
+                        Consumer<Throwable> unhandledExceptionCallback,
+                        boolean fusedDispatch,
+                        EventJournal journal,
+                        EventBusMetrics metrics,
+                        DuplicateFilter duplicateFilter) {
         this.threadPool = threadPool;
+        this.ownsThreadPool = ownsThreadPool;
+        this.unhandledExceptionCallback = unhandledExceptionCallback;
+        this.fusedDispatch = fusedDispatch;
+        this.ring = null;
+        this.journal = journal;
+        this.metrics = metrics;
+        this.duplicateFilter = duplicateFilter;
+    }
+
+    /**
+     * Initialises a new instance of the {@code EventBusImpl} class which delivers events through a
+     * ring buffer
+     *
+     * @param unhandledExceptionCallback called with unhandled exceptions from the subscribers
+     * @param bufferSize                 number of events the ring holds, rounded up to a power of two
+     * @param consumerThreads            number of threads delivering events to subscribers
+     * @param waitStrategy               how the consumer threads wait for events
+     */
+    public EventBusImpl(Consumer<Throwable> unhandledExceptionCallback,
+                        int bufferSize,
+                        int consumerThreads,
+                        WaitStrategy waitStrategy) {
+        this(unhandledExceptionCallback, bufferSize, consumerThreads, waitStrategy, null, null);
+    }
+
+    /**
+     * Initialises a new instance of the {@code EventBusImpl} class which delivers events through a
+     * ring buffer
+     *
+     * @param unhandledExceptionCallback called with unhandled exceptions from the subscribers
+     * @param bufferSize                 number of events the ring holds, rounded up to a power of two
+     * @param consumerThreads            number of threads delivering events to subscribers
+     * @param waitStrategy               how the consumer threads wait for events
+     * @param metrics                    records publish counts and subscriber timings, may be null
+     * @param duplicateFilter            drops repeated events, may be null
+     */
+    public EventBusImpl(Consumer<Throwable> unhandledExceptionCallback,
+                        int bufferSize,
+                        int consumerThreads,
+                        WaitStrategy waitStrategy,
+                        EventBusMetrics metrics,
+                        DuplicateFilter duplicateFilter) {
+        this.threadPool = null;
+        this.ownsThreadPool = false;
         this.unhandledExceptionCallback = unhandledExceptionCallback;
+        this.fusedDispatch = false;
+        this.journal = null;
+        this.metrics = metrics;
+        this.duplicateFilter = duplicateFilter;
+        this.ring = new RingDispatcher(bufferSize, consumerThreads, waitStrategy, this::deliver);
+        ring.start();
     }
 
-    private <T extends Event> void execute(FilteredCallback<T> fc, T event) {
+    /**
+     * @param publishedAt when the event was published, if the subscriber has metrics
+     * @return the exception thrown by the subscriber, or null
+     */
+    private <T> Throwable execute(FilteredCallback<T> fc, T event, long publishedAt) {
+        SubscriberMetrics subscriberMetrics = fc.getMetrics();
+        long startedAt = subscriberMetrics == null ? 0 : System.nanoTime();
         try {
-            if (fc.getFilter() == null || fc.getFilter().test(event)) {
-                fc.getConsumer().accept(event);
+            if (fc.isActive()) {
+                if (fc.getFilter() == null || fc.getFilter().test(event)) {
+                    fc.getConsumer().accept(event);
+                    if (subscriberMetrics != null) {
+                        subscriberMetrics.onComplete(publishedAt, startedAt, System.nanoTime(), false);
+                    }
+                } else if (subscriberMetrics != null) {
+                    subscriberMetrics.onFiltered();
+                }
             }
+
+            return null;
         } catch (Throwable e) {
+            if (subscriberMetrics != null) {
+                subscriberMetrics.onComplete(publishedAt, startedAt, System.nanoTime(), true);
+            }
+
             if (unhandledExceptionCallback != null) {
                 unhandledExceptionCallback.accept(e);
             }
+
+            return e;
         }
     }
 
-    private <T extends Event> void doPublish(Class<T> clazz, Event event) {
-        /*
-         * This double cast is certainly not ideal. It is safe however - we know what the type of
-         * object is in the map because we put it there. Also the subscriber methods guaranteed
-         * that the clazz and consumer are the same type.
-         */
-        @SuppressWarnings("unchecked")
-        var subscribers = (Iterable<FilteredCallback<T>>)(Iterable<?>)events.get(clazz);
+    /**
+     * @return the first exception thrown by the subscribers or the failure passed in, or null
+     */
+    private Throwable executeAll(FilteredCallback<Object>[] subscribers, Event event, long publishedAt, Throwable failure) {
+        for (FilteredCallback<Object> subscriber : subscribers) {
+            Throwable e = execute(subscriber, event, publishedAt);
+            if (failure == null) {
+                failure = e;
+            }
+        }
+
+        return failure;
+    }
+
+    /**
+     * Call the subscribers belonging to one of the ring's consumer threads.
+     */
+    private void deliver(Event event, int group) {
+        Completion completion = null;
+        if (event instanceof TrackedEvent) {
+            completion = ((TrackedEvent)event).completion;
+            event = ((TrackedEvent)event).event;
+        }
+
+        DispatchTable table = getDispatchTable(event.getClass());
+        Throwable failure = executeGroup(table.subscribers, event, group, null);
+        failure = executeGroup(table.getIdSubscribers(event.getId()), event, group, failure);
+        failure = executeGroup(table.conflatingSubscribers, event, group, failure);
+        if (completion != null) {
+            completion.done(failure);
+        }
+    }
+
+    private Throwable executeGroup(FilteredCallback<Object>[] subscribers, Event event, int group, Throwable failure) {
+        int groups = ring.getConsumers();
+        for (FilteredCallback<Object> subscriber : subscribers) {
+            if (subscriber.getSequence() % groups == group) {
+                Throwable e = execute(subscriber, event, SubscriberMetrics.NOT_TIMED);
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+
+        return failure;
+    }
+
+    private void submitConflating(ConflatingCallback<Object> subscriber, Event event, long publishedAt) {
+        String id = event.getId();
+        if (!subscriber.isActive() || !subscriber.offer(id, event)) {
+            return;
+        }
+
+        try {
+            threadPool.execute(new KeyedRunnable(id, event.getPriority(), () -> execute(subscriber, subscriber.take(id), publishedAt)));
+        } catch (RuntimeException e) {
+            // Let the next event for the identifier try again
+            subscriber.take(id);
+            throw e;
+        }
+    }
+
+    /**
+     * Submit the tasks for an event.
+     *
+     * @param event      the event
+     * @param table      the dispatch table for the event's class
+     * @param completion counts the tasks for an asynchronous publish, may be null
+     * @param batch      collects the tasks rather than executing them, may be null
+     */
+    private void doPublish(Event event, DispatchTable table, Completion completion, List<KeyedRunnable> batch) {
+        long publishedAt = published(event);
+        FilteredCallback<Object>[] subscribers = table.subscribers;
+        FilteredCallback<Object>[] idSubscribers = table.getIdSubscribers(event.getId());
+        if (fusedDispatch) {
+            if (subscribers.length > 0 || idSubscribers.length > 0) {
+                submit(completion, batch, new KeyedRunnable(event.getId(), event.getPriority(), () -> {
+                    Throwable failure = executeAll(subscribers, event, publishedAt, null);
+                    failure = executeAll(idSubscribers, event, publishedAt, failure);
+                    if (completion != null) {
+                        completion.done(failure);
+                    }
+                }));
+            }
+        } else {
+            for (FilteredCallback<Object> subscriber : subscribers) {
+                submit(completion, batch, new KeyedRunnable(event.getId(), event.getPriority(), () -> executeTracked(subscriber, event, publishedAt, completion)));
+            }
+
+            for (FilteredCallback<Object> subscriber : idSubscribers) {
+                submit(completion, batch, new KeyedRunnable(event.getId(), event.getPriority(), () -> executeTracked(subscriber, event, publishedAt, completion)));
+            }
+        }
+
+        for (ConflatingCallback<Object> subscriber : table.conflatingSubscribers) {
+            submitConflating(subscriber, event, publishedAt);
+        }
+    }
+
+    /**
+     * Count an event against its class, if metrics are being recorded.
+     *
+     * @return the time the event was published, or {@link SubscriberMetrics#NOT_TIMED}
+     */
+    private long published(Event event) {
+        if (metrics == null) {
+            return SubscriberMetrics.NOT_TIMED;
+        }
+
+        metrics.onPublish(event.getClass());
+        return System.nanoTime();
+    }
+
+    /**
+     * @return true if the event repeats one published within the duplicate window
+     */
+    private boolean isDuplicate(Event event) {
+        if (duplicateFilter == null || !duplicateFilter.isDuplicate(event)) {
+            return false;
+        }
+
+        if (metrics != null) {
+            metrics.onDuplicate();
+        }
+
+        return true;
+    }
+
+    private void executeTracked(FilteredCallback<Object> subscriber, Event event, long publishedAt, Completion completion) {
+        Throwable failure = execute(subscriber, event, publishedAt);
+        if (completion != null) {
+            completion.done(failure);
+        }
+    }
+
+    private void submit(Completion completion, List<KeyedRunnable> batch, KeyedRunnable task) {
+        if (completion != null) {
+            completion.add(1);
+        }
+
+        if (batch != null) {
+            batch.add(task);
+        } else {
+            threadPool.execute(task);
+        }
+    }
+
+    /**
+     * Look up the subscribers for an event and add it to the journal, if there is one. Done under
+     * the journal's lock so that a subscriber replaying the journal either finds the event there or
+     * is among the subscribers it is published to, never both or neither.
+     */
+    private DispatchTable prepare(Event event) {
+        if (journal == null) {
+            return getDispatchTable(event.getClass());
+        }
+
+        synchronized (journal) {
+            DispatchTable table = getDispatchTable(event.getClass());
+            journal.append(event);
+            return table;
+        }
+    }
+
+    private DispatchTable getDispatchTable(Class<?> clazz) {
+        TableCache cache = dispatchTables.get(clazz);
+        DispatchTable table = cache.table.get();
+        long current = cache.version.get();
+        if (table.version == current) {
+            return table;
+        }
+
+        DispatchTable rebuilt = new DispatchTable(current, buildTable(clazz), idEvents.get(clazz));
+
+        // Two publishers may rebuild at once, don't let the older table win
+        while (table.version < current && !cache.table.compareAndSet(table, rebuilt)) {
+            table = cache.table.get();
+        }
+
+        return rebuilt;
+    }
+
+    /**
+     * Move on the dispatch tables a change to the subscriptions for a class affects.
+     *
+     * @param clazz        the class subscribed to
+     * @param hierarchical true if the subscription also covers subtypes of the class
+     */
+    private void invalidate(Class<?> clazz, boolean hierarchical) {
+        if (!hierarchical) {
+            dispatchTables.get(clazz).version.incrementAndGet();
+            return;
+        }
+
+        // A class first published after this looks builds its table from the updated subscriptions
+        for (Class<?> type : tabledClasses) {
+            if (clazz.isAssignableFrom(type)) {
+                dispatchTables.get(type).version.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Flatten the subscribers for a class and all of its supertypes. The table version must be
+     * read before calling so that a concurrent subscription invalidates the result.
+     */
+    @SuppressWarnings("unchecked")
+    private FilteredCallback<Object>[] buildTable(Class<?> clazz) {
+        List<FilteredCallback<?>> result = new ArrayList<>(events.getOrDefault(clazz, Set.of()));
+        for (Class<?> type : getHierarchy(clazz)) {
+            result.addAll(hierarchyEvents.getOrDefault(type, Set.of()));
+        }
+
+        result.sort(Comparator.comparingInt((FilteredCallback<?> c) -> c.getOrder()).thenComparingLong(FilteredCallback::getSequence));
+        return (FilteredCallback<Object>[])result.toArray(new FilteredCallback<?>[0]);
+    }
+
+    private static Set<Class<?>> getHierarchy(Class<?> clazz) {
+        Set<Class<?>> result = new LinkedHashSet<>();
+        Deque<Class<?>> pending = new ArrayDeque<>();
+        pending.add(clazz);
+        while (!pending.isEmpty()) {
+            Class<?> type = pending.poll();
+            if (result.add(type)) {
+                if (type.getSuperclass() != null) {
+                    pending.add(type.getSuperclass());
+                }
+
+                pending.addAll(List.of(type.getInterfaces()));
+            }
+        }
 
-        if (subscribers != null) {
-            subscribers.forEach(s -> threadPool.execute(new KeyedRunnable(event.getId(), () -> execute(s, clazz.cast(event)))));
+        return result;
+    }
+
+    private <T> Subscription subscribe(Map<Class<?>, Set<FilteredCallback<?>>> registry,
+                                       Class<T> clazz,
+                                       Consumer<? super T> consumer,
+                                       Predicate<? super T> filter) {
+        return subscribe(registry, clazz, new FilteredCallback<T>(consumer, filter, sequence.incrementAndGet()));
+    }
+
+    private <T> Subscription subscribe(Map<Class<?>, Set<FilteredCallback<?>>> registry,
+                                       Class<T> clazz,
+                                       FilteredCallback<T> callback) {
+        track(callback, clazz, null);
+        boolean hierarchical = registry == hierarchyEvents;
+        var consumers = registry.computeIfAbsent(clazz, k -> ConcurrentHashMap.newKeySet());
+        consumers.add(callback);
+        invalidate(clazz, hierarchical);
+        return () -> {
+            if (callback.deactivate()) {
+                untrack(callback);
+                consumers.remove(callback);
+                invalidate(clazz, hierarchical);
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Subscription subscribeForId(Class<T> clazz, String id, Consumer<? super T> consumer, int order) {
+        var callback = (FilteredCallback<Object>)(FilteredCallback<?>)new FilteredCallback<>(consumer, null, sequence.incrementAndGet(), order);
+        track(callback, clazz, id);
+        Map<String, FilteredCallback<Object>[]> index = idEvents.computeIfAbsent(clazz, k -> new ConcurrentHashMap<>());
+        FilteredCallback<Object>[] single = Arrays.copyOf(DispatchTable.NONE, 1);
+        single[0] = callback;
+        index.merge(id, single, (current, added) -> {
+            int position = current.length;
+            while (position > 0 && current[position - 1].getOrder() > order) {
+                position--;
+            }
+
+            FilteredCallback<Object>[] result = Arrays.copyOf(current, current.length + 1);
+            System.arraycopy(current, position, result, position + 1, current.length - position);
+            result[position] = callback;
+            return result;
+        });
+
+        // Whoever made the index may not have moved the version on yet, and the dispatch table
+        // for the class must pick the index up before this subscription is returned
+        invalidate(clazz, false);
+
+        Map<String, FilteredCallback<Object>[]> subscribers = index;
+        return () -> {
+            if (callback.deactivate()) {
+                untrack(callback);
+                subscribers.computeIfPresent(id, (key, current) -> remove(current, callback));
+            }
+        };
+    }
+
+    private void track(FilteredCallback<?> callback, Class<?> clazz, String id) {
+        if (metrics != null) {
+            var subscriberMetrics = new SubscriberMetrics(clazz, id, callback.getSequence());
+            callback.setMetrics(subscriberMetrics);
+            metrics.onSubscribe(subscriberMetrics);
         }
     }
 
+    private void untrack(FilteredCallback<?> callback) {
+        if (metrics != null) {
+            metrics.onUnsubscribe(callback.getMetrics());
+        }
+    }
+
+    /**
+     * @return a copy of the array without the callback, or null if that leaves it empty
+     */
+    private static FilteredCallback<Object>[] remove(FilteredCallback<Object>[] callbacks, FilteredCallback<Object> callback) {
+        if (callbacks.length == 1) {
+            return callbacks[0] == callback ? null : callbacks;
+        }
+
+        FilteredCallback<Object>[] result = Arrays.copyOf(callbacks, callbacks.length - 1);
+        for (int i = 0, j = 0; i < callbacks.length; i++) {
+            if (callbacks[i] != callback) {
+                if (j == result.length) {
+                    // Not found
+                    return callbacks;
+                }
+
+                result[j++] = callbacks[i];
+            }
+        }
+
+        return result;
+    }
+
     @Override
     public void publishEvent(Event event) {
-        doPublish(event.getClass(), event);
+        if (isDuplicate(event)) {
+            return;
+        }
+
+        if (ring != null) {
+            published(event);
+            ring.publish(event);
+        } else {
+            doPublish(event, prepare(event), null, null);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> publishEventAsync(Event event) {
+        if (isDuplicate(event)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        var completion = new Completion();
+        if (ring != null) {
+            completion.add(ring.getConsumers());
+            published(event);
+            ring.publish(new TrackedEvent(event, completion));
+        } else {
+            doPublish(event, prepare(event), completion, null);
+        }
+
+        // Release the publisher's own count, the tasks may all have run already
+        completion.done(null);
+        return completion.future;
+    }
+
+    @Override
+    public void publishEvents(Collection<? extends Event> events) {
+        if (duplicateFilter != null) {
+            List<Event> unique = new ArrayList<>(events.size());
+            for (Event event : events) {
+                if (!isDuplicate(event)) {
+                    unique.add(event);
+                }
+            }
+
+            events = unique;
+        }
+
+        if (ring != null) {
+            for (Event event : events) {
+                published(event);
+                ring.publish(event);
+            }
+            return;
+        }
+
+        Map<Class<?>, DispatchTable> tables = new IdentityHashMap<>();
+        if (journal != null) {
+            // As for a single event, but the tables are reused across the batch so hold the lock throughout
+            synchronized (journal) {
+                for (Event event : events) {
+                    tables.computeIfAbsent(event.getClass(), this::getDispatchTable);
+                    journal.append(event);
+                }
+            }
+        }
+
+        List<KeyedRunnable> batch = new ArrayList<>();
+        for (Event event : events) {
+            doPublish(event, tables.computeIfAbsent(event.getClass(), this::getDispatchTable), null, batch);
+        }
+
+        if (threadPool instanceof HashPoolExecutorService) {
+            ((HashPoolExecutorService)threadPool).executeAll(batch);
+        } else {
+            batch.forEach(threadPool::execute);
+        }
+    }
+
+    @Override
+    public EventBusMetrics getMetrics() {
+        if (metrics == null) {
+            throw new IllegalStateException("Metrics are not enabled");
+        }
+
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        if (ring != null) {
+            ring.close();
+        }
+
+        if (ownsThreadPool && threadPool instanceof ExecutorService) {
+            ExecutorService executorService = (ExecutorService)threadPool;
+            executorService.shutdown();
+            try {
+                executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public <T extends Event> Subscription addSubscriber(Class<T> clazz, Consumer<T> consumer) {
+        return subscribe(events, clazz, consumer, null);
+    }
+
+    @Override
+    public <T extends Event> Subscription addSubscriberForFilteredEvents(Class<T> clazz, Consumer<T> consumer, Predicate<T> filter) {
+        return subscribe(events, clazz, consumer, filter);
+    }
+
+    @Override
+    public <T extends Event> Subscription addSubscriberForId(Class<T> clazz, String id, Consumer<T> consumer) {
+        return subscribeForId(clazz, id, consumer, 0);
     }
 
     @Override
-    public <T extends Event> void addSubscriber(Class<T> clazz, Consumer<T> consumer) {
-        var consumers = events.computeIfAbsent(clazz, k -> new CopyOnWriteArrayList<>());
-        consumers.add(new FilteredCallback<>(consumer, null));
+    public <T extends Event> Subscription addConflatingSubscriber(Class<T> clazz, Consumer<T> consumer) {
+        return subscribe(events, clazz, new ConflatingCallback<T>(consumer, sequence.incrementAndGet()));
     }
 
     @Override
-    public <T extends Event> void addSubscriberForFilteredEvents(Class<T> clazz, Consumer<T> consumer, Predicate<T> filter) {
-        var consumers = events.computeIfAbsent(clazz, k -> new CopyOnWriteArrayList<>());
-        consumers.add(new FilteredCallback<>(consumer, filter));
+    public <T extends Event> Subscription addSubscriberWithReplay(Class<T> clazz, long position, Consumer<T> consumer) {
+        if (journal == null) {
+            throw new IllegalStateException("Event bus has no journal");
+        }
+
+        var replaying = new ReplayingConsumer<T>(consumer);
+        Subscription subscription;
+        long end;
+        synchronized (journal) {
+            subscription = subscribe(events, clazz, replaying, null);
+            end = journal.getPosition();
+        }
+
+        journal.replay(position, end, event -> {
+            if (event.getClass() == clazz) {
+                replaying.deliver(clazz.cast(event));
+            }
+        });
+
+        replaying.goLive();
+        return subscription;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Subscription registerSubscribers(Object subscriber) {
+        List<Subscription> subscriptions = new ArrayList<>();
+        for (SubscriberMethod method : SubscriberMethod.forClass(subscriber.getClass())) {
+            var eventType = (Class<Object>)(Class<?>)method.getEventType();
+            Consumer<Object> consumer = method.bindTo(subscriber);
+            if (method.getId() == null) {
+                var callback = new FilteredCallback<>(consumer, null, sequence.incrementAndGet(), method.getOrder());
+                subscriptions.add(subscribe(events, eventType, callback));
+            } else {
+                subscriptions.add(subscribeForId(eventType, method.getId(), consumer, method.getOrder()));
+            }
+        }
+
+        return () -> subscriptions.forEach(Subscription::close);
+    }
+
+    @Override
+    public <T> Subscription addSubscriberForSubtypes(Class<T> clazz, Consumer<? super T> consumer) {
+        return subscribe(hierarchyEvents, clazz, consumer, null);
+    }
+
+    /**
+     * Holds back live events while a subscriber replays the journal, then passes them on once it
+     * has caught up.
+     */
+    private class ReplayingConsumer<T> implements Consumer<T> {
+        private final Consumer<T> consumer;
+        private List<T> held = new ArrayList<>();
+
+        public ReplayingConsumer(Consumer<T> consumer) {
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void accept(T event) {
+            synchronized (this) {
+                if (held != null) {
+                    held.add(event);
+                    return;
+                }
+            }
+
+            consumer.accept(event);
+        }
+
+        public void deliver(T event) {
+            try {
+                consumer.accept(event);
+            } catch (Throwable e) {
+                if (unhandledExceptionCallback != null) {
+                    unhandledExceptionCallback.accept(e);
+                }
+            }
+        }
+
+        public void goLive() {
+            while (true) {
+                List<T> pending;
+                synchronized (this) {
+                    if (held.isEmpty()) {
+                        held = null;
+                        return;
+                    }
+
+                    pending = held;
+                    held = new ArrayList<>();
+                }
+
+                pending.forEach(this::deliver);
+            }
+        }
+    }
+
+    /**
+     * Completes a future once every task of an asynchronous publish has run. The count starts at
+     * one for the publisher itself, so tasks which finish while others are still being submitted
+     * cannot complete it early.
+     */
+    private static class Completion {
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final AtomicInteger remaining = new AtomicInteger(1);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        public void add(int count) {
+            remaining.addAndGet(count);
+        }
+
+        public void done(Throwable e) {
+            if (e != null) {
+                failure.compareAndSet(null, e);
+            }
+
+            if (remaining.decrementAndGet() == 0) {
+                Throwable first = failure.get();
+                if (first == null) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(first);
+                }
+            }
+        }
+    }
+
+    /**
+     * Carries the completion of an asynchronous publish through the ring.
+     */
+    private static class TrackedEvent implements Event {
+        private final Event event;
+        private final Completion completion;
+
+        public TrackedEvent(Event event, Completion completion) {
+            this.event = event;
+            this.completion = completion;
+        }
+
+        @Override
+        public String getId() {
+            return event.getId();
+        }
+    }
+
+    /**
+     * The cached dispatch table for one event class and the version it must match to be current.
+     */
+    private static class TableCache {
+        private final AtomicLong version = new AtomicLong();
+        private final AtomicReference<DispatchTable> table = new AtomicReference<>(DispatchTable.EMPTY);
+    }
+
+    /**
+     * The subscribers for one event class as of a version of its subscriptions.
+     */
+    private static class DispatchTable {
+        @SuppressWarnings("unchecked")
+        private static final FilteredCallback<Object>[] NONE = (FilteredCallback<Object>[])new FilteredCallback<?>[0];
+        @SuppressWarnings("unchecked")
+        private static final ConflatingCallback<Object>[] NONE_CONFLATING = (ConflatingCallback<Object>[])new ConflatingCallback<?>[0];
+        private static final DispatchTable EMPTY = new DispatchTable(-1, NONE, null);
+
+        private final long version;
+        private final FilteredCallback<Object>[] subscribers;
+        private final ConflatingCallback<Object>[] conflatingSubscribers;
+        private final Map<String, FilteredCallback<Object>[]> idSubscribers;
+
+        /**
+         * @param version       version of the class's subscriptions the table was built from
+         * @param subscribers   subscribers for the class in order, conflating ones are split out
+         * @param idSubscribers index of the class's identifier subscribers, may be null
+         */
+        @SuppressWarnings("unchecked")
+        public DispatchTable(long version,
+                             FilteredCallback<Object>[] subscribers,
+                             Map<String, FilteredCallback<Object>[]> idSubscribers) {
+            List<FilteredCallback<Object>> plain = new ArrayList<>(subscribers.length);
+            List<ConflatingCallback<Object>> conflating = new ArrayList<>();
+            for (FilteredCallback<Object> subscriber : subscribers) {
+                if (subscriber instanceof ConflatingCallback) {
+                    conflating.add((ConflatingCallback<Object>)subscriber);
+                } else {
+                    plain.add(subscriber);
+                }
+            }
+
+            this.version = version;
+            this.subscribers = conflating.isEmpty() ? subscribers : plain.toArray(NONE);
+            this.conflatingSubscribers = conflating.toArray(NONE_CONFLATING);
+            this.idSubscribers = idSubscribers;
+        }
+
+        public FilteredCallback<Object>[] getIdSubscribers(String id) {
+            if (idSubscribers == null || id == null) {
+                return NONE;
+            }
+
+            return idSubscribers.getOrDefault(id, NONE);
+        }
     }
 }
@@ -0,0 +1,90 @@
+package com.wilsonak.nairn.eventbus;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Publish counts per event class and the {@link SubscriberMetrics} of each subscriber of an
+ * {@link EventBus}, recorded when metrics are enabled through {@link EventBusBuilder#metrics()}
+ * and read through {@link EventBus#getMetrics()}.
+ * <p/>
+ * Without metrics the bus has no recorder at all, so publishing and delivering do no more than a
+ * null check.
+ */
+public final class EventBusMetrics {
+    private final Map<Class<?>, LongAdder> published = new ConcurrentHashMap<>();
+    private final Set<SubscriberMetrics> subscribers = ConcurrentHashMap.newKeySet();
+    private final LongAdder duplicates = new LongAdder();
+    private final long createdAt = System.nanoTime();
+
+    void onPublish(Class<?> eventType) {
+        published.computeIfAbsent(eventType, k -> new LongAdder()).increment();
+    }
+
+    void onDuplicate() {
+        duplicates.increment();
+    }
+
+    void onSubscribe(SubscriberMetrics metrics) {
+        subscribers.add(metrics);
+    }
+
+    void onUnsubscribe(SubscriberMetrics metrics) {
+        subscribers.remove(metrics);
+    }
+
+    /**
+     * @return the number of events published of each concrete class, as of this call
+     */
+    public Map<Class<?>, Long> getPublishedCounts() {
+        return published.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().sum()));
+    }
+
+    /**
+     * @param eventType a concrete event class
+     * @return the number of events of the class published
+     */
+    public long getPublishedCount(Class<?> eventType) {
+        LongAdder count = published.get(eventType);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * @return the number of events dropped as duplicates, which are not counted as published
+     */
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    /**
+     * @param eventType a concrete event class
+     * @return events of the class published per second since the bus was created
+     */
+    public double getPublishRate(Class<?> eventType) {
+        long elapsed = System.nanoTime() - createdAt;
+        return elapsed <= 0 ? 0 : getPublishedCount(eventType) * (double)TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    /**
+     * @return the metrics of the current subscribers, in the order they subscribed
+     */
+    public List<SubscriberMetrics> getSubscribers() {
+        return subscribers.stream()
+                          .sorted(Comparator.comparingLong(SubscriberMetrics::getSequence))
+                          .collect(Collectors.toList());
+    }
+
+    /**
+     * @param eventType the class subscribed to
+     * @return the metrics of the current subscribers to the class, in the order they subscribed
+     */
+    public List<SubscriberMetrics> getSubscribers(Class<?> eventType) {
+        return getSubscribers().stream().filter(m -> m.getEventType() == eventType).collect(Collectors.toList());
+    }
+}
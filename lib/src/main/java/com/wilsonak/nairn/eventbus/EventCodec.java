@@ -0,0 +1,20 @@
+package com.wilsonak.nairn.eventbus;
+
+/**
+ * Converts events to and from bytes, for an {@link EventJournal} or an event bridge. The encoding
+ * must identify the class of the event, as each journal record or bridge frame holds only the
+ * bytes produced here.
+ */
+public interface EventCodec {
+    /**
+     * @param event the event to encode
+     * @return the event's bytes
+     */
+    byte[] encode(Event event);
+
+    /**
+     * @param bytes bytes returned by {@link #encode(Event)}
+     * @return the event
+     */
+    Event decode(byte[] bytes);
+}
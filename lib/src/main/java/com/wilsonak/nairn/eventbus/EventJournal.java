@@ -0,0 +1,290 @@
+package com.wilsonak.nairn.eventbus;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An append-only log of events in memory-mapped segment files. Attached to an {@link EventBus}
+ * through {@link EventBusBuilder#journal(EventJournal)} it records every published event, so that
+ * subscribers added later, or after a restart, can replay what they missed with
+ * {@link EventBus#addSubscriberWithReplay(Class, long, Consumer)}.
+ * <p/>
+ * Each segment is a file of a fixed size, named by its index, mapped in full when it is created.
+ * A record is its total length, the time it was appended in milliseconds and the bytes from the
+ * {@link EventCodec}. The length is written last, so a record cut short by a crash reads as the
+ * end of the journal when it is reopened. A record which does not fit in the rest of a segment
+ * starts the next one.
+ * <p/>
+ * Positions are byte offsets across all the segments. Appends are serialised and make their
+ * records visible to readers by advancing the position, so reading needs no lock and runs at the
+ * speed of a sequential scan of memory.
+ */
+public class EventJournal implements AutoCloseable {
+    /**
+     * Default size of a segment file, 64MB.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    private static final int HEADER = Integer.BYTES + Long.BYTES;
+    private static final int END_OF_SEGMENT = -1;
+    private static final String SUFFIX = ".journal";
+
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+    private final Path directory;
+    private final EventCodec codec;
+    private final int segmentSize;
+    private volatile long position;
+    private boolean closed;
+
+    /**
+     * Initialises a new instance of the {@code EventJournal} class with the default segment size,
+     * continuing any journal already in the directory
+     *
+     * @param directory holds the segment files, created if missing
+     * @param codec     converts events to and from bytes
+     * @throws IOException if the segments cannot be created or mapped
+     */
+    public EventJournal(Path directory, EventCodec codec) throws IOException {
+        this(directory, codec, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Initialises a new instance of the {@code EventJournal} class, continuing any journal already
+     * in the directory
+     *
+     * @param directory   holds the segment files, created if missing
+     * @param codec       converts events to and from bytes
+     * @param segmentSize size of each segment file in bytes, which must be the same each time the
+     *                    journal is opened
+     * @throws IOException if the segments cannot be created or mapped
+     */
+    public EventJournal(Path directory, EventCodec codec, int segmentSize) throws IOException {
+        if (segmentSize < HEADER * 2) {
+            throw new IllegalArgumentException("Segment size is too small");
+        }
+
+        this.directory = Files.createDirectories(directory);
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        recover();
+    }
+
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).sorted().collect(Collectors.toList());
+        }
+
+        for (int i = 0; i < files.size(); i++) {
+            if (!files.get(i).equals(segmentPath(i))) {
+                throw new IOException("Journal segment " + segmentPath(i) + " is missing");
+            }
+
+            segments.add(map(i));
+        }
+
+        if (segments.isEmpty()) {
+            return;
+        }
+
+        // Earlier segments are complete, find where the last one stops
+        int index = segments.size() - 1;
+        MappedByteBuffer buffer = segments.get(index);
+        int offset = 0;
+        while (segmentSize - offset >= HEADER) {
+            int length = buffer.getInt(offset);
+            if (length == END_OF_SEGMENT) {
+                offset = segmentSize;
+                break;
+            }
+
+            if (length < HEADER || length > segmentSize - offset) {
+                break;
+            }
+
+            offset += length;
+        }
+
+        position = (long)index * segmentSize + offset;
+    }
+
+    private Path segmentPath(int index) {
+        return directory.resolve(String.format("%010d%s", index, SUFFIX));
+    }
+
+    private MappedByteBuffer map(int index) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(index),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    /**
+     * Add an event to the end of the journal.
+     *
+     * @param event the event
+     * @return the position of the event's record
+     */
+    public synchronized long append(Event event) {
+        if (closed) {
+            throw new IllegalStateException("Journal has been closed");
+        }
+
+        byte[] bytes = codec.encode(event);
+        int length = HEADER + bytes.length;
+        if (length > segmentSize) {
+            throw new IllegalArgumentException("Event of " + bytes.length + " bytes does not fit in a journal segment");
+        }
+
+        long start = position;
+        int index = (int)(start / segmentSize);
+        int offset = (int)(start % segmentSize);
+        if (offset + length > segmentSize) {
+            if (segmentSize - offset >= HEADER) {
+                segments.get(index).putInt(offset, END_OF_SEGMENT);
+            }
+
+            index++;
+            offset = 0;
+            start = (long)index * segmentSize;
+        }
+
+        if (index == segments.size()) {
+            try {
+                segments.add(map(index));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        MappedByteBuffer buffer = segments.get(index);
+        buffer.putLong(offset + Integer.BYTES, System.currentTimeMillis());
+        buffer.put(offset + HEADER, bytes);
+        buffer.putInt(offset, length);
+        position = start + length;
+        return start;
+    }
+
+    /**
+     * @return the position the next record will be appended at, or after
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Find the first record appended at or after a time.
+     *
+     * @param timestamp milliseconds since the epoch
+     * @return the position of the record, or {@link #getPosition()} if there is none
+     */
+    public long getPositionAt(long timestamp) {
+        long end = position;
+        int first = 0;
+        for (int i = 1; i < segments.size() && (long)i * segmentSize < end; i++) {
+            // Each segment starts with a record, skip the segments which end before the time
+            if (segments.get(i).getLong(Integer.BYTES) >= timestamp) {
+                break;
+            }
+
+            first = i;
+        }
+
+        long[] found = {end};
+        read((long)first * segmentSize, end, (record, buffer, offset) -> {
+            if (buffer.getLong(offset + Integer.BYTES) >= timestamp) {
+                found[0] = record;
+                return false;
+            }
+
+            return true;
+        });
+
+        return found[0];
+    }
+
+    /**
+     * Read every event from a position to the current end of the journal.
+     *
+     * @param from     position of a record, or zero to read from the start
+     * @param consumer called with each event in turn
+     * @return the position after the last event read, to continue from
+     */
+    public long replay(long from, Consumer<? super Event> consumer) {
+        return replay(from, position, consumer);
+    }
+
+    /**
+     * Read the events between two positions.
+     *
+     * @param from     position of a record, or zero to read from the start
+     * @param to       stop at this position, from {@link #getPosition()}
+     * @param consumer called with each event in turn
+     * @return the position after the last event read, to continue from
+     */
+    public long replay(long from, long to, Consumer<? super Event> consumer) {
+        return read(from, Math.min(to, position), (record, buffer, offset) -> {
+            byte[] bytes = new byte[buffer.getInt(offset) - HEADER];
+            buffer.get(offset + HEADER, bytes);
+            consumer.accept(codec.decode(bytes));
+            return true;
+        });
+    }
+
+    private long read(long from, long to, RecordVisitor visitor) {
+        long current = from;
+        while (current < to) {
+            int index = (int)(current / segmentSize);
+            int offset = (int)(current % segmentSize);
+            MappedByteBuffer buffer = segments.get(index);
+            if (segmentSize - offset < HEADER || buffer.getInt(offset) == END_OF_SEGMENT) {
+                current = (long)(index + 1) * segmentSize;
+                continue;
+            }
+
+            if (!visitor.visit(current, buffer, offset)) {
+                return current;
+            }
+
+            current += buffer.getInt(offset);
+        }
+
+        return current;
+    }
+
+    /**
+     * Write the records appended so far through to the disk.
+     */
+    public void force() {
+        segments.forEach(MappedByteBuffer::force);
+    }
+
+    /**
+     * Stop accepting events and write the journal through to the disk. Events can still be
+     * replayed.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        force();
+    }
+
+    private interface RecordVisitor {
+        /**
+         * @return false to stop reading
+         */
+        boolean visit(long position, MappedByteBuffer buffer, int offset);
+    }
+}
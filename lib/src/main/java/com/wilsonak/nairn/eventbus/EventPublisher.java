@@ -0,0 +1,192 @@
+package com.wilsonak.nairn.eventbus;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A {@link Flow.Publisher} of the events of one class on an {@link EventBus}. Created through
+ * {@link EventBus#asPublisher(Class, int, OverflowStrategy)}.
+ * <p/>
+ * Each {@link Flow.Subscriber} gets its own bus subscription and a bounded buffer. Events are
+ * passed to {@code onNext} only as the subscriber requests them, and while it has no demand they
+ * wait in the buffer, so a slow subscriber holds no more than the buffer's worth of events. When
+ * the buffer is full the {@link OverflowStrategy} decides what to give up.
+ * <p/>
+ * Signals to a subscriber are serialised by a work-in-progress counter: whichever thread brings
+ * new events or new demand drains the buffer, and any other thread arriving meanwhile leaves it
+ * more work rather than waiting.
+ *
+ * @param <T> the type of event published
+ */
+class EventPublisher<T extends Event> implements Flow.Publisher<T> {
+    private final EventBus eventBus;
+    private final Class<T> clazz;
+    private final int bufferSize;
+    private final OverflowStrategy overflowStrategy;
+
+    /**
+     * Initialises a new instance of the {@code EventPublisher} class
+     *
+     * @param eventBus         the bus to subscribe to
+     * @param clazz            events of this class are published
+     * @param bufferSize       most events held for each subscriber beyond its demand
+     * @param overflowStrategy what to do with an event when a subscriber's buffer is full
+     */
+    public EventPublisher(EventBus eventBus, Class<T> clazz, int bufferSize, OverflowStrategy overflowStrategy) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be at least one");
+        }
+
+        this.eventBus = eventBus;
+        this.clazz = clazz;
+        this.bufferSize = bufferSize;
+        this.overflowStrategy = Objects.requireNonNull(overflowStrategy);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        var subscription = new BufferedSubscription(Objects.requireNonNull(subscriber));
+        subscriber.onSubscribe(subscription);
+        subscription.attach(eventBus.addSubscriber(clazz, subscription));
+    }
+
+    /**
+     * Links one {@code Flow.Subscriber} to its bus subscription.
+     */
+    private class BufferedSubscription implements Flow.Subscription, Consumer<T> {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final ArrayDeque<T> buffer = new ArrayDeque<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile Subscription busSubscription;
+        private volatile Throwable error;
+        private volatile boolean cancelled;
+
+        public BufferedSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public void attach(Subscription busSubscription) {
+            this.busSubscription = busSubscription;
+            if (cancelled) {
+                busSubscription.close();
+            }
+        }
+
+        @Override
+        public void accept(T event) {
+            if (cancelled) {
+                return;
+            }
+
+            synchronized (buffer) {
+                if (buffer.size() < bufferSize) {
+                    buffer.add(event);
+                } else if (overflowStrategy == OverflowStrategy.LATEST) {
+                    buffer.poll();
+                    buffer.add(event);
+                } else if (overflowStrategy == OverflowStrategy.ERROR) {
+                    error = new IllegalStateException("Subscriber buffer of " + bufferSize + " events overflowed");
+                } else {
+                    return;
+                }
+            }
+
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Requested " + n + " events, must be positive");
+            } else {
+                long current;
+                while (!requested.compareAndSet(current = requested.get(), addCapped(current, n))) {
+                    Thread.onSpinWait();
+                }
+            }
+
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            Subscription subscription = busSubscription;
+            if (subscription != null) {
+                subscription.close();
+            }
+
+            // Only clear the buffer if no other thread is draining it
+            if (wip.getAndIncrement() == 0) {
+                clear();
+            }
+        }
+
+        private void clear() {
+            synchronized (buffer) {
+                buffer.clear();
+            }
+        }
+
+        private T poll() {
+            synchronized (buffer) {
+                return buffer.poll();
+            }
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+            while (true) {
+                if (cancelled) {
+                    clear();
+                    return;
+                }
+
+                Throwable failure = error;
+                if (failure != null) {
+                    cancel();
+                    clear();
+                    subscriber.onError(failure);
+                    return;
+                }
+
+                long demand = requested.get();
+                long emitted = 0;
+                T event;
+                while (emitted != demand && !cancelled && error == null && (event = poll()) != null) {
+                    try {
+                        subscriber.onNext(event);
+                    } catch (Throwable e) {
+                        cancel();
+                        throw e;
+                    }
+
+                    emitted++;
+                }
+
+                if (emitted != 0 && demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static long addCapped(long a, long b) {
+        long result = a + b;
+        return result < 0 ? Long.MAX_VALUE : result;
+    }
+}
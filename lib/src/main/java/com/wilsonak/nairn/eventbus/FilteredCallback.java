@@ -1,27 +1,87 @@
 package com.wilsonak.nairn.eventbus;
 
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 /**
- * References a Consumer and a possible filter for the Event Bus implementation.
+ * References a Consumer and a possible filter for the Event Bus implementation. Deactivated when
+ * the subscription is closed, so that dispatch tables still holding it skip it.
  *
  * @param <T> the type of object to be processed by the consumer
  */
 class FilteredCallback<T> {
-    private final Consumer<T> consumer;
-    private final Predicate<T> filter;
+    private final Consumer<? super T> consumer;
+    private final Predicate<? super T> filter;
+    private final long sequence;
+    private final int order;
+    private final AtomicBoolean active = new AtomicBoolean(true);
+    private SubscriberMetrics metrics;
 
-    public FilteredCallback(Consumer<T> consumer, Predicate<T> filter) {
+    /**
+     * Initialises a new instance of the {@code FilteredCallback} class
+     *
+     * @param consumer called with events
+     * @param filter   events must pass the filter to be sent to the consumer, may be null
+     * @param sequence orders subscribers by when they subscribed
+     */
+    public FilteredCallback(Consumer<? super T> consumer, Predicate<? super T> filter, long sequence) {
+        this(consumer, filter, sequence, 0);
+    }
+
+    /**
+     * Initialises a new instance of the {@code FilteredCallback} class
+     *
+     * @param consumer called with events
+     * @param filter   events must pass the filter to be sent to the consumer, may be null
+     * @param sequence orders subscribers by when they subscribed
+     * @param order    orders subscribers ahead of the sequence, lowest first
+     */
+    public FilteredCallback(Consumer<? super T> consumer, Predicate<? super T> filter, long sequence, int order) {
         this.consumer = consumer;
         this.filter = filter;
+        this.sequence = sequence;
+        this.order = order;
     }
 
-    public Consumer<T> getConsumer() {
+    public Consumer<? super T> getConsumer() {
         return consumer;
     }
 
-    public Predicate<T> getFilter() {
+    public Predicate<? super T> getFilter() {
         return filter;
     }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    /**
+     * @return the subscriber's metrics, or null if the bus does not record them
+     */
+    public SubscriberMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics records the subscriber's deliveries, set before the callback is subscribed
+     */
+    public void setMetrics(SubscriberMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public boolean isActive() {
+        return active.get();
+    }
+
+    /**
+     * @return true if the callback was active
+     */
+    public boolean deactivate() {
+        return active.getAndSet(false);
+    }
 }
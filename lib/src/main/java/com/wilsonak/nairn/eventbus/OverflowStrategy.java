@@ -0,0 +1,22 @@
+package com.wilsonak.nairn.eventbus;
+
+/**
+ * What a {@link java.util.concurrent.Flow.Publisher} from {@link EventBus#asPublisher} does with
+ * an event when a subscriber's buffer is full because it has not requested enough.
+ */
+public enum OverflowStrategy {
+    /**
+     * Discard the new event, keeping those already buffered.
+     */
+    DROP,
+
+    /**
+     * Discard the oldest buffered event to make room, so the subscriber sees the latest events.
+     */
+    LATEST,
+
+    /**
+     * Cancel the subscription and signal {@code onError} to the subscriber.
+     */
+    ERROR
+}
@@ -0,0 +1,170 @@
+package com.wilsonak.nairn.eventbus;
+
+import com.wilsonak.nairn.KeyHashing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * An {@code EventBus} split into partitions, each a bus of its own with its own subscriptions,
+ * dispatch tables and worker thread. Instantiated through
+ * {@link EventBus#newPartitionedEventBus(int)}.
+ * <p/>
+ * An event is published to the partition chosen by a hash of its identifier, so a publisher
+ * touches only that partition's tables and queue and publishers of different identifiers do not
+ * share cache lines. Each partition's worker runs the subscribers of an event in one task, in the
+ * order the events were published, which keeps events with the same identifier in order.
+ * <p/>
+ * Subscribing to a class subscribes in every partition, since any identifier may be published,
+ * so a subscription is more expensive than on a single bus. Subscribing to an identifier
+ * subscribes only in the partition which owns it. Events without an identifier all go to one
+ * partition.
+ */
+class PartitionedEventBus implements EventBus {
+    private final EventBusImpl[] partitions;
+    private final ExecutorService[] workers;
+
+    /**
+     * Initialises a new instance of the {@code PartitionedEventBus} class
+     *
+     * @param partitionCount             number of partitions, each with a worker thread
+     * @param unhandledExceptionCallback called with unhandled exceptions from the subscribers
+     */
+    public PartitionedEventBus(int partitionCount, Consumer<Throwable> unhandledExceptionCallback) {
+        if (partitionCount <= 0) {
+            throw new IllegalArgumentException("Number of partitions must be positive");
+        }
+
+        this.partitions = new EventBusImpl[partitionCount];
+        this.workers = new ExecutorService[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            String name = "eventbus-partition-" + i;
+            workers[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            partitions[i] = new EventBusImpl(workers[i], unhandledExceptionCallback, true);
+        }
+    }
+
+    /**
+     * @return the number of partitions
+     */
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    private int indexOf(String id) {
+        return KeyHashing.index(KeyHashing.mix(id == null ? 0 : id.hashCode()), partitions.length);
+    }
+
+    private EventBusImpl partitionOf(String id) {
+        return partitions[indexOf(id)];
+    }
+
+    private Subscription subscribeAll(Function<EventBusImpl, Subscription> subscribe) {
+        List<Subscription> subscriptions = new ArrayList<>(partitions.length);
+        for (EventBusImpl partition : partitions) {
+            subscriptions.add(subscribe.apply(partition));
+        }
+
+        return () -> subscriptions.forEach(Subscription::close);
+    }
+
+    @Override
+    public void publishEvent(Event event) {
+        partitionOf(event.getId()).publishEvent(event);
+    }
+
+    @Override
+    public CompletableFuture<Void> publishEventAsync(Event event) {
+        return partitionOf(event.getId()).publishEventAsync(event);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void publishEvents(Collection<? extends Event> events) {
+        List<Event>[] batches = (List<Event>[])new List<?>[partitions.length];
+        for (Event event : events) {
+            int partition = indexOf(event.getId());
+            if (batches[partition] == null) {
+                batches[partition] = new ArrayList<>();
+            }
+
+            batches[partition].add(event);
+        }
+
+        for (int i = 0; i < partitions.length; i++) {
+            if (batches[i] != null) {
+                partitions[i].publishEvents(batches[i]);
+            }
+        }
+    }
+
+    @Override
+    public <T extends Event> Subscription addSubscriber(Class<T> clazz, Consumer<T> consumer) {
+        return subscribeAll(partition -> partition.addSubscriber(clazz, consumer));
+    }
+
+    @Override
+    public <T extends Event> Subscription addSubscriberForFilteredEvents(Class<T> clazz, Consumer<T> consumer, Predicate<T> filter) {
+        return subscribeAll(partition -> partition.addSubscriberForFilteredEvents(clazz, consumer, filter));
+    }
+
+    @Override
+    public <T extends Event> Subscription addSubscriberForId(Class<T> clazz, String id, Consumer<T> consumer) {
+        return partitionOf(id).addSubscriberForId(clazz, id, consumer);
+    }
+
+    @Override
+    public <T extends Event> Subscription addConflatingSubscriber(Class<T> clazz, Consumer<T> consumer) {
+        return subscribeAll(partition -> partition.addConflatingSubscriber(clazz, consumer));
+    }
+
+    @Override
+    public <T extends Event> Subscription addSubscriberWithReplay(Class<T> clazz, long position, Consumer<T> consumer) {
+        throw new IllegalStateException("Event bus has no journal");
+    }
+
+    @Override
+    public Subscription registerSubscribers(Object subscriber) {
+        return subscribeAll(partition -> partition.registerSubscribers(subscriber));
+    }
+
+    @Override
+    public <T> Subscription addSubscriberForSubtypes(Class<T> clazz, Consumer<? super T> consumer) {
+        return subscribeAll(partition -> partition.addSubscriberForSubtypes(clazz, consumer));
+    }
+
+    @Override
+    public EventBusMetrics getMetrics() {
+        throw new IllegalStateException("Metrics are not enabled");
+    }
+
+    /**
+     * Stop the partitions' worker threads once they have delivered the events already published.
+     */
+    @Override
+    public void close() {
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+
+        try {
+            for (ExecutorService worker : workers) {
+                worker.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.wilsonak.nairn.eventbus;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands published events to consumer threads through a pre-allocated ring of slots, after the
+ * LMAX Disruptor.
+ * <p/>
+ * Publishers claim a sequence number from a shared cursor, wait until every consumer has moved
+ * past the slot's previous lap, store the event in the slot and mark it available with the
+ * sequence's lap number. Each consumer thread follows the ring with its own sequence, taking every
+ * contiguous available slot in one pass, so all consumers see every event in the order it was
+ * claimed. Nothing is allocated per event and publishers and consumers share no locks, except
+ * with the {@link WaitStrategy#BLOCKING} strategy where consumers sleep on a condition.
+ * <p/>
+ * Consumer sequences are padded onto their own cache lines so that consumers and the publishers
+ * reading them do not falsely share.
+ * <p/>
+ * A consumer clears the slots of each batch which every other consumer has already passed,
+ * before it lets publishers reuse them, so the ring does not normally keep delivered events
+ * reachable until they are overwritten. Two consumers finishing together may each leave a slot
+ * to the other, in which case it is simply overwritten on the next lap.
+ * <p/>
+ * Once closing, consumers stop at the last claimed sequence. A publisher which claims a sequence
+ * after closing began cannot know whether a consumer will still reach it, so it fills the slot
+ * with nothing and is refused rather than have its event silently dropped.
+ */
+class RingDispatcher {
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long SLEEP_NANOS = 100_000;
+
+    /**
+     * Called on a consumer thread for each event.
+     */
+    interface Handler {
+        /**
+         * @param event the event
+         * @param group the index of the consumer thread
+         */
+        void onEvent(Event event, int group);
+    }
+
+    private final Event[] slots;
+    private final AtomicIntegerArray available;
+    private final int mask;
+    private final int indexShift;
+    private final AtomicLong cursor = new AtomicLong(-1);
+    private final Sequence gatingCache = new Sequence();
+    private final Sequence[] consumerSequences;
+    private final Thread[] threads;
+    private final WaitStrategy waitStrategy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final Handler handler;
+    private volatile boolean closing;
+
+    /**
+     * Initialises a new instance of the {@code RingDispatcher} class
+     *
+     * @param size         number of slots, rounded up to a power of two
+     * @param consumers    number of consumer threads
+     * @param waitStrategy how consumers wait for events
+     * @param handler      called on the consumer threads with each event
+     */
+    public RingDispatcher(int size, int consumers, WaitStrategy waitStrategy, Handler handler) {
+        int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        this.slots = new Event[capacity];
+        this.available = new AtomicIntegerArray(capacity);
+        this.mask = capacity - 1;
+        this.indexShift = Integer.numberOfTrailingZeros(capacity);
+        this.waitStrategy = waitStrategy;
+        this.handler = handler;
+        for (int i = 0; i < capacity; i++) {
+            available.set(i, -1);
+        }
+
+        this.consumerSequences = new Sequence[Math.max(1, consumers)];
+        this.threads = new Thread[consumerSequences.length];
+        for (int i = 0; i < consumerSequences.length; i++) {
+            int group = i;
+            consumerSequences[i] = new Sequence();
+            threads[i] = new Thread(() -> runConsumer(group), "eventbus-ring-" + i);
+            threads[i].setDaemon(true);
+        }
+    }
+
+    /**
+     * Start the consumer threads.
+     */
+    public void start() {
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * @return the number of consumer threads
+     */
+    public int getConsumers() {
+        return threads.length;
+    }
+
+    /**
+     * Add an event to the ring, waiting for a free slot if the ring is full.
+     *
+     * @param event the event
+     * @throws IllegalStateException if the ring has been closed
+     */
+    public void publish(Event event) {
+        if (closing) {
+            throw new IllegalStateException("Event bus has been closed");
+        }
+
+        long sequence = cursor.incrementAndGet();
+
+        // Consumers read the cursor after seeing closing, so a claim made before closing is seen
+        // here will be delivered. After that they may have gone.
+        boolean refused = closing;
+        long wrapPoint = sequence - slots.length;
+        if (wrapPoint > gatingCache.get()) {
+            long minimum;
+            while (wrapPoint > (minimum = getMinimumSequence())) {
+                if (closing && !isAlive()) {
+                    throw new IllegalStateException("Event bus has been closed");
+                }
+
+                LockSupport.parkNanos(1);
+            }
+
+            gatingCache.set(minimum);
+        }
+
+        // A consumer still running must be able to move past the slot even if it is refused
+        int index = (int)sequence & mask;
+        slots[index] = refused ? null : event;
+        available.set(index, (int)(sequence >>> indexShift));
+        if (waitStrategy == WaitStrategy.BLOCKING && waiters.get() > 0) {
+            signalAll();
+        }
+
+        if (refused) {
+            throw new IllegalStateException("Event bus has been closed");
+        }
+    }
+
+    /**
+     * Stop accepting events and wait for the consumers to finish those already published.
+     */
+    public void close() {
+        closing = true;
+        signalAll();
+        for (Thread thread : threads) {
+            if (thread != Thread.currentThread()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean isAlive() {
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isAvailable(long sequence) {
+        return available.get((int)sequence & mask) == (int)(sequence >>> indexShift);
+    }
+
+    private long getMinimumSequence() {
+        long minimum = Long.MAX_VALUE;
+        for (Sequence sequence : consumerSequences) {
+            minimum = Math.min(minimum, sequence.get());
+        }
+
+        return minimum;
+    }
+
+    private void signalAll() {
+        lock.lock();
+        try {
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runConsumer(int group) {
+        Sequence sequence = consumerSequences[group];
+        long next = sequence.get() + 1;
+        int idle = 0;
+        while (true) {
+            if (isAvailable(next)) {
+                long last = next;
+                while (isAvailable(last + 1)) {
+                    last++;
+                }
+
+                for (long s = next; s <= last; s++) {
+                    Event event = slots[(int)s & mask];
+                    if (event != null) {
+                        handler.onEvent(event, group);
+                    }
+                }
+
+                clear(group, next, last);
+                sequence.set(last);
+                next = last + 1;
+                idle = 0;
+            } else if (closing && next > cursor.get()) {
+                return;
+            } else {
+                idle = idle(idle, next);
+            }
+        }
+    }
+
+    /**
+     * Clear the slots of a batch which every other consumer has already passed. Publishers cannot
+     * reuse them until this consumer moves its sequence on, so they are not yet being written.
+     */
+    private void clear(int group, long first, long last) {
+        long upTo = last;
+        for (int i = 0; i < consumerSequences.length; i++) {
+            if (i != group) {
+                upTo = Math.min(upTo, consumerSequences[i].get());
+            }
+        }
+
+        for (long s = first; s <= upTo; s++) {
+            slots[(int)s & mask] = null;
+        }
+    }
+
+    private int idle(int counter, long next) {
+        if (counter < SPIN_TRIES || waitStrategy == WaitStrategy.BUSY_SPIN) {
+            Thread.onSpinWait();
+            return counter + 1;
+        }
+
+        switch (waitStrategy) {
+            case YIELDING:
+                Thread.yield();
+                return counter;
+            case SLEEPING:
+                if (counter < SPIN_TRIES + YIELD_TRIES) {
+                    Thread.yield();
+                    return counter + 1;
+                }
+
+                LockSupport.parkNanos(SLEEP_NANOS);
+                return counter;
+            default:
+                await(next);
+                return counter;
+        }
+    }
+
+    private void await(long next) {
+        lock.lock();
+        waiters.incrementAndGet();
+        try {
+            // Publishers check for waiters after marking a slot available, so one of us sees the other
+            if (!isAvailable(next) && !closing) {
+                published.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cache line padding either side of a sequence number.
+     */
+    private static class LeftPadding {
+        protected long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    private static class SequenceValue extends LeftPadding {
+        protected volatile long value = -1;
+    }
+
+    private static class RightPadding extends SequenceValue {
+        protected long p9, p10, p11, p12, p13, p14, p15;
+    }
+
+    private static final class Sequence extends RightPadding {
+        public long get() {
+            return value;
+        }
+
+        public void set(long value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.wilsonak.nairn.eventbus;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method as an event subscriber, to be registered by
+ * {@link EventBus#registerSubscribers(Object)}. The method must be an instance method with a
+ * single parameter, the class of {@link Event} it subscribes to.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Subscribe {
+    /**
+     * @return only receive events with this identifier, or all events of the class if empty
+     */
+    String id() default "";
+
+    /**
+     * @return subscribers for the same events with a lower order are called first, those with
+     * the same order in the order they subscribed
+     */
+    int order() default 0;
+}
@@ -0,0 +1,157 @@
+package com.wilsonak.nairn.eventbus;
+
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * A method annotated with {@link Subscribe}, ready to be bound to instances of its class.
+ * <p/>
+ * Each method is turned into a {@link Consumer} factory with {@link LambdaMetafactory}, the same
+ * way the compiler turns a method reference into a lambda, so calling the bound consumer is a
+ * direct call which the JIT can inline. Classes are scanned once and their methods cached. Where
+ * a lambda cannot be generated, for example for a class in a module which is open to reflection
+ * but not to this one, the consumer calls a method handle instead.
+ */
+class SubscriberMethod {
+    private static final ClassValue<List<SubscriberMethod>> METHODS = new ClassValue<>() {
+        @Override
+        protected List<SubscriberMethod> computeValue(Class<?> type) {
+            return scan(type);
+        }
+    };
+
+    private final Class<? extends Event> eventType;
+    private final String id;
+    private final int order;
+    private final MethodHandle factory;
+    private final MethodHandle handle;
+
+    /**
+     * Initialises a new instance of the {@code SubscriberMethod} class
+     *
+     * @param eventType the method's parameter type
+     * @param subscribe the method's annotation
+     * @param factory   creates a consumer from an instance, or null to call the handle
+     * @param handle    calls the method
+     */
+    public SubscriberMethod(Class<? extends Event> eventType, Subscribe subscribe, MethodHandle factory, MethodHandle handle) {
+        this.eventType = eventType;
+        this.id = subscribe.id().isEmpty() ? null : subscribe.id();
+        this.order = subscribe.order();
+        this.factory = factory;
+        this.handle = handle;
+    }
+
+    /**
+     * @param type the class of a subscriber object
+     * @return the subscriber methods of the class and its superclasses, lowest order first
+     * @throws IllegalArgumentException if an annotated method cannot be a subscriber
+     */
+    public static List<SubscriberMethod> forClass(Class<?> type) {
+        return METHODS.get(type);
+    }
+
+    private static List<SubscriberMethod> scan(Class<?> type) {
+        List<SubscriberMethod> result = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            Method[] methods = c.getDeclaredMethods();
+            Arrays.sort(methods, Comparator.comparing(Method::getName));
+            for (Method method : methods) {
+                Subscribe subscribe = method.getAnnotation(Subscribe.class);
+                // An annotated override replaces the method it overrides
+                if (subscribe != null && !method.isBridge() && seen.add(method.getName() + Arrays.toString(method.getParameterTypes()))) {
+                    result.add(bind(method, subscribe));
+                }
+            }
+        }
+
+        result.sort(Comparator.comparingInt(SubscriberMethod::getOrder));
+        return List.copyOf(result);
+    }
+
+    private static SubscriberMethod bind(Method method, Subscribe subscribe) {
+        Class<?>[] parameters = method.getParameterTypes();
+        if (Modifier.isStatic(method.getModifiers()) || parameters.length != 1 || !Event.class.isAssignableFrom(parameters[0])) {
+            throw new IllegalArgumentException("Subscriber method " + method + " must be an instance method taking one Event");
+        }
+
+        Class<?> owner = method.getDeclaringClass();
+        MethodHandles.Lookup lookup;
+        MethodHandle handle;
+        try {
+            lookup = MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+            handle = lookup.unreflect(method);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Subscriber method " + method + " is not accessible", e);
+        }
+
+        MethodHandle factory = null;
+        try {
+            factory = LambdaMetafactory.metafactory(lookup,
+                                                    "accept",
+                                                    MethodType.methodType(Consumer.class, owner),
+                                                    MethodType.methodType(void.class, Object.class),
+                                                    handle,
+                                                    MethodType.methodType(void.class, parameters[0]))
+                    .getTarget();
+        } catch (LambdaConversionException e) {
+            // Fall back to the method handle
+        }
+
+        return new SubscriberMethod(parameters[0].asSubclass(Event.class), subscribe, factory, handle);
+    }
+
+    public Class<? extends Event> getEventType() {
+        return eventType;
+    }
+
+    /**
+     * @return the identifier to subscribe to, or null for all events of the type
+     */
+    public String getId() {
+        return id;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    /**
+     * @param target an instance of the class the method was found in
+     * @return calls the method on the instance
+     */
+    @SuppressWarnings("unchecked")
+    public Consumer<Object> bindTo(Object target) {
+        if (factory != null) {
+            try {
+                return (Consumer<Object>)factory.invoke(target);
+            } catch (Throwable e) {
+                throw new IllegalStateException("Cannot bind subscriber method", e);
+            }
+        }
+
+        MethodHandle bound = handle.bindTo(target);
+        return event -> {
+            try {
+                bound.invoke(event);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+}
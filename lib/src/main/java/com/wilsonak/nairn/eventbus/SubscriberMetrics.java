@@ -0,0 +1,121 @@
+package com.wilsonak.nairn.eventbus;
+
+import com.wilsonak.nairn.LatencyHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and latency histograms for one subscriber of an {@link EventBus}, recorded when metrics
+ * are enabled through {@link EventBusBuilder#metrics()}.
+ * <p/>
+ * Wait time runs from an event being published to the subscriber being called with it, run time
+ * from the call starting to it returning, both in nanoseconds. A bus with a ring dispatcher does
+ * not time the wait.
+ */
+public final class SubscriberMetrics {
+    /**
+     * Publish time of an event which was not timed.
+     */
+    static final long NOT_TIMED = Long.MIN_VALUE;
+
+    private final Class<?> eventType;
+    private final String id;
+    private final long sequence;
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder filtered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+    private final LatencyHistogram runTime = new LatencyHistogram();
+
+    /**
+     * Initialises a new instance of the {@code SubscriberMetrics} class
+     *
+     * @param eventType the class the subscriber subscribed to
+     * @param id        the identifier the subscriber subscribed to, or null for all events
+     * @param sequence  orders subscribers by when they subscribed
+     */
+    SubscriberMetrics(Class<?> eventType, String id, long sequence) {
+        this.eventType = eventType;
+        this.id = id;
+        this.sequence = sequence;
+    }
+
+    void onFiltered() {
+        filtered.increment();
+    }
+
+    void onComplete(long publishedAt, long startedAt, long finishedAt, boolean threw) {
+        if (threw) {
+            failed.increment();
+        } else {
+            delivered.increment();
+        }
+
+        if (publishedAt != NOT_TIMED) {
+            waitTime.record(startedAt - publishedAt);
+        }
+
+        runTime.record(finishedAt - startedAt);
+    }
+
+    /**
+     * @return the class the subscriber subscribed to
+     */
+    public Class<?> getEventType() {
+        return eventType;
+    }
+
+    /**
+     * @return the identifier the subscriber subscribed to, or null for all events of the type
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the position of the subscriber among all the bus's subscriptions, starting at one
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the number of events the subscriber handled without throwing
+     */
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    /**
+     * @return the number of events the subscriber's filter turned away
+     */
+    public long getFilteredCount() {
+        return filtered.sum();
+    }
+
+    /**
+     * @return the number of events for which the subscriber, or its filter, threw
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return time from events being published to the subscriber being called, in nanoseconds
+     */
+    public LatencyHistogram getWaitTime() {
+        return waitTime;
+    }
+
+    /**
+     * @return time taken by the subscriber to handle events, in nanoseconds
+     */
+    public LatencyHistogram getRunTime() {
+        return runTime;
+    }
+
+    @Override
+    public String toString() {
+        return eventType.getSimpleName() + (id == null ? "" : "[" + id + "]") + "#" + sequence;
+    }
+}
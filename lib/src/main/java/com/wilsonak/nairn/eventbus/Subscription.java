@@ -0,0 +1,14 @@
+package com.wilsonak.nairn.eventbus;
+
+/**
+ * A handle on a subscription made with an {@link EventBus}, closed to unsubscribe.
+ */
+public interface Subscription extends AutoCloseable {
+    /**
+     * Stop sending events to the subscriber. Events not yet delivered when this returns are
+     * dropped, although a call to the subscriber already under way on another thread may still
+     * complete. Closing more than once has no further effect.
+     */
+    @Override
+    void close();
+}
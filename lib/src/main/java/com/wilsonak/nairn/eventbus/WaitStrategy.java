@@ -0,0 +1,28 @@
+package com.wilsonak.nairn.eventbus;
+
+/**
+ * How the consumer threads of a ring buffer {@link EventBus} wait for events to be published,
+ * trading latency against CPU use.
+ */
+public enum WaitStrategy {
+    /**
+     * Spin on the ring. Lowest latency, but each consumer keeps a core busy.
+     */
+    BUSY_SPIN,
+
+    /**
+     * Spin briefly, then yield the thread between checks.
+     */
+    YIELDING,
+
+    /**
+     * Spin, then yield, then sleep for short periods. Little CPU when idle at the cost of latency
+     * when events arrive after a quiet spell.
+     */
+    SLEEPING,
+
+    /**
+     * Wait on a condition signalled by publishers. Least CPU, highest latency.
+     */
+    BLOCKING
+}
@@ -0,0 +1,26 @@
+package com.wilsonak.nairn.hashpool;
+
+/**
+ * What a {@link HashPoolExecutorService} with bounded queues does when a task is submitted to a
+ * pool whose queue is full.
+ */
+public enum BackpressurePolicy {
+    /**
+     * Wait for space in the queue. The submitter is parked through {@code java.util.concurrent}
+     * locks rather than monitors, so a blocked virtual thread does not pin its carrier.
+     * <p/>
+     * A task which submits to the full queue of its own pool would wait for itself, so it is
+     * rejected with a {@link java.util.concurrent.RejectedExecutionException} instead.
+     */
+    BLOCK,
+
+    /**
+     * Throw a {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    REJECT,
+
+    /**
+     * Discard the oldest task waiting in the queue to make room.
+     */
+    DROP_OLDEST
+}
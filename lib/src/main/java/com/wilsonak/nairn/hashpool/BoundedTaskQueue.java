@@ -0,0 +1,116 @@
+package com.wilsonak.nairn.hashpool;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link TaskQueue} over a lock-free {@link MpscLinkedQueue} which accepts no more than a fixed
+ * number of tasks. Space is reserved with a compare-and-set on a counter before the task is linked
+ * in, and given back whenever a task is claimed, whether by the worker, a producer dropping the
+ * oldest task or a producer taking its own task back.
+ * <p/>
+ * Tasks the pool has already accepted, such as those held back while their key moved slots, are
+ * added with {@link #add(Runnable, int)} and may take the queue over capacity rather than wait.
+ */
+class BoundedTaskQueue implements TaskQueue {
+    private final MpscLinkedQueue<Runnable> queue = new MpscLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int capacity;
+
+    /**
+     * Initialises a new instance of the {@code BoundedTaskQueue} class
+     *
+     * @param capacity maximum number of tasks
+     */
+    public BoundedTaskQueue(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * @return the number of tasks the queue can hold
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of tasks in the queue
+     */
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public MpscLinkedQueue.Node<Runnable> offer(Runnable task, int tag) {
+        int current;
+        do {
+            current = size.get();
+            if (current >= capacity) {
+                return null;
+            }
+        } while (!size.compareAndSet(current, current + 1));
+
+        return queue.offer(task, tag);
+    }
+
+    @Override
+    public MpscLinkedQueue.Node<Runnable> offerAll(Runnable[] tasks, int[] tags, int count) {
+        int current;
+        do {
+            current = size.get();
+            if (current + count > capacity) {
+                return null;
+            }
+        } while (!size.compareAndSet(current, current + count));
+
+        return queue.offerAll(tasks, tags, count);
+    }
+
+    @Override
+    public MpscLinkedQueue.Node<Runnable> add(Runnable task, int tag) {
+        size.incrementAndGet();
+        return queue.offer(task, tag);
+    }
+
+    @Override
+    public boolean poll(TaskSink sink) {
+        return accept(queue.poll(), sink);
+    }
+
+    @Override
+    public boolean dropOldest(Runnable task, TaskSink sink) {
+        return accept(queue.claimOldest(), sink);
+    }
+
+    private boolean accept(MpscLinkedQueue.Node<Runnable> node, TaskSink sink) {
+        if (node == null) {
+            return false;
+        }
+
+        size.decrementAndGet();
+        sink.accept(node.take(), node.getTag());
+        return true;
+    }
+
+    @Override
+    public boolean revoke(Runnable task, MpscLinkedQueue.Node<Runnable> node) {
+        if (queue.revoke(node)) {
+            size.decrementAndGet();
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public List<Runnable> drainAll() {
+        List<Runnable> result = queue.drain();
+        size.addAndGet(-result.size());
+        return result;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+}
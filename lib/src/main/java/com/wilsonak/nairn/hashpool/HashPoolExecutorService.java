@@ -1,16 +1,25 @@
 package com.wilsonak.nairn.hashpool;
 
+import com.wilsonak.nairn.KeyHashing;
 import com.wilsonak.nairn.KeyedRunnable;
+import com.wilsonak.nairn.Priority;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * Implementation of {@link ExecutorService} with a number of thread pools. Pools are selected
@@ -19,48 +28,306 @@ import java.util.stream.IntStream;
  * same thread in the order they are presented to the {@code HashPoolExecutorService}. If the type
  * of the parameter to {@code execute} is not {@code KeyedRunnable} then requests use the first
  * thread pool.
+ * <p/>
+ * Each pool is a {@link SlotWorker}: a single thread fed by a lock-free multi-producer /
+ * single-consumer queue, which keeps the hand-off cheap for high rates of keyed tasks.
+ * <p/>
+ * Tasks may also be routed by a {@code long} key or by any object with a hash function, without
+ * wrapping them in a {@code KeyedRunnable}. Hashes are mixed with {@link KeyHashing} and masked
+ * into a bounded {@link RoutingTable}, which assigns each entry a pool by consistent hashing.
+ * <p/>
+ * The number of pools can be changed at runtime with {@link #resize(int)}. Only a small fraction
+ * of keys change pool, and a key which has tasks outstanding on its old pool has its new tasks
+ * held back until the old pool has run them, so tasks with the same key still run in order. This
+ * means counting the outstanding tasks of every key, so it must be enabled through
+ * {@link #builder(int)}.
+ * <p/>
+ * One hot key, or a few colliding keys, can saturate a pool while the others sit idle. An optional
+ * rebalancing mode, enabled through {@link #builder(int)}, moves a key to a less loaded pool when
+ * none of its tasks are queued or running.
+ * <p/>
+ * By default each pool's queue is unbounded. A capacity may be set through {@link #builder(int)},
+ * with a {@link BackpressurePolicy} deciding whether a submitter to a full pool waits, is
+ * rejected or displaces the oldest queued task.
+ * <p/>
+ * Metrics are off by default. When enabled through {@link #builder(int)} each pool records its
+ * queue depth, throughput and task wait and run time histograms, see {@link #getSlotMetrics(int)},
+ * and a sample of keyed tasks is used to report the most frequent keys, see {@link #getHotKeys()}.
+ * <p/>
+ * With priority lanes, also enabled through {@link #builder(int)}, each pool queues the tasks of
+ * each {@link Priority} given to {@link KeyedRunnable}s separately and runs urgent tasks first,
+ * under weights which stop the less urgent being starved. Tasks with the same key and priority
+ * still run in order.
  */
 public class HashPoolExecutorService extends AbstractExecutorService {
-    private final List<ExecutorService> threadPools;
-    private final int numThreads;
+    /**
+     * Default number of entries in the routing table.
+     */
+    public static final int DEFAULT_ROUTING_TABLE_SIZE = 1024;
+
+    private final Object resizeLock = new Object();
+    private final ThreadFactory threadFactory;
+    private final int queueCapacity;
+    private final BackpressurePolicy backpressurePolicy;
+    private final boolean priorityLanes;
+    private final boolean metrics;
+    private final HotKeySampler hotKeySampler;
+    private final RoutingTable routingTable;
+    private volatile SlotWorker[] threadPools;
+    private volatile int numThreads;
+    private volatile boolean shutdown;
 
     public HashPoolExecutorService(int numThreads) {
+        this(numThreads, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * Initialises a new instance of the {@code HashPoolExecutorService} class
+     *
+     * @param numThreads    number of single threaded pools
+     * @param threadFactory creates the thread for each pool
+     */
+    public HashPoolExecutorService(int numThreads, ThreadFactory threadFactory) {
+        this(numThreads, threadFactory, DEFAULT_ROUTING_TABLE_SIZE, false, false, 0, 0, BackpressurePolicy.BLOCK,
+             false, null, HashPoolExecutorService::reportRejected);
+    }
+
+    private HashPoolExecutorService(int numThreads,
+                                    ThreadFactory threadFactory,
+                                    int routingTableSize,
+                                    boolean resizable,
+                                    boolean rebalancing,
+                                    int imbalanceThreshold,
+                                    int queueCapacity,
+                                    BackpressurePolicy backpressurePolicy,
+                                    boolean priorityLanes,
+                                    HotKeySampler hotKeySampler,
+                                    Consumer<Runnable> rejectedTaskHandler) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be positive");
+        }
+
         this.numThreads = numThreads;
-        this.threadPools = IntStream.range(0, numThreads)
-                                    .mapToObj(i -> Executors.newSingleThreadExecutor())
-                                    .collect(Collectors.toUnmodifiableList());
+        this.threadFactory = threadFactory;
+        this.queueCapacity = queueCapacity;
+        this.backpressurePolicy = backpressurePolicy;
+        this.priorityLanes = priorityLanes;
+        this.metrics = hotKeySampler != null;
+        this.hotKeySampler = hotKeySampler;
+        this.routingTable = new RoutingTable(numThreads, routingTableSize, resizable, rebalancing, imbalanceThreshold,
+                                             this::dispatch, task -> rejectedTaskHandler.accept(PriorityTask.unwrap(task)),
+                                             this::closePools);
+        this.threadPools = new SlotWorker[numThreads];
+        Arrays.setAll(threadPools, i -> newSlotWorker());
+    }
+
+    /**
+     * Start building a {@code HashPoolExecutorService} with options beyond the constructors.
+     *
+     * @param numThreads number of single threaded pools
+     * @return a new builder
+     */
+    public static Builder builder(int numThreads) {
+        return new Builder(numThreads);
+    }
+
+    private SlotWorker newSlotWorker() {
+        SlotMetrics slotMetrics = metrics ? new SlotMetrics() : null;
+        return new SlotWorker(threadFactory, routingTable::release, queueCapacity, backpressurePolicy, slotMetrics, priorityLanes);
+    }
+
+    private static void reportRejected(Runnable task) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, new RejectedExecutionException("Task " + task + " refused by a shut down pool"));
+    }
+
+    private boolean dispatch(int slot, Runnable runnable, int entry, boolean held) {
+        SlotWorker pool = threadPools[slot];
+        try {
+            pool.execute(runnable, entry, held);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (pool.isShutdown()) {
+                return false;
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * @return the task to queue for a {@code KeyedRunnable}, marked with its priority if that matters
+     */
+    private Runnable taskOf(KeyedRunnable keyedRunnable) {
+        Priority priority = keyedRunnable.getPriority();
+        if (!priorityLanes || priority == Priority.NORMAL) {
+            return keyedRunnable.getRunnable();
+        }
+
+        return new PriorityTask(keyedRunnable.getRunnable(), priority);
+    }
+
+    private void route(int hash, Runnable runnable) {
+        // The pools keep taking held tasks for a while after shutting down, but nothing new
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+
+        // Apart from a full queue, a pool only refuses work when it has been shut down, either with
+        // the whole service or because a concurrent resize removed it, in which case the table
+        // holds the task until the key's earlier tasks have run
+        if (!routingTable.route(hash, runnable)) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+    }
+
+    /**
+     * Shut down every pool, once no key is moving.
+     */
+    private void closePools() {
+        synchronized (resizeLock) {
+            routingTable.close();
+            allPools().forEach(ExecutorService::shutdown);
+        }
+    }
+
+    /**
+     * @return every pool, including those beyond the current size which were removed by a resize
+     */
+    private Stream<SlotWorker> allPools() {
+        return Arrays.stream(threadPools);
+    }
+
+    /**
+     * @return the number of single threaded pools
+     */
+    public int getPoolSize() {
+        return numThreads;
     }
 
-    private ExecutorService findSlot(String id) {
-        int slot = Math.abs(id.hashCode() % numThreads);
-        return threadPools.get(slot);
+    /**
+     * @return the number of tasks discarded to make room under {@link BackpressurePolicy#DROP_OLDEST}
+     */
+    public long getDroppedTaskCount() {
+        return allPools().mapToLong(SlotWorker::getDroppedCount).sum();
     }
 
+    /**
+     * @param slot index of a pool, less than {@link #getPoolSize()}
+     * @return the metrics recorded by the pool
+     * @throws IllegalStateException if metrics are not enabled
+     */
+    public SlotMetrics getSlotMetrics(int slot) {
+        if (!metrics) {
+            throw new IllegalStateException("Metrics are not enabled");
+        }
+
+        return threadPools[slot].getMetrics();
+    }
+
+    /**
+     * Report the most frequently submitted keys, estimated from a sample of keyed tasks. Keys are
+     * reported as they were given, numeric keys as a {@code Long} however they were submitted.
+     *
+     * @return the hottest keys and the pools they are routed to, hottest first
+     * @throws IllegalStateException if metrics are not enabled
+     */
+    public List<HotKey> getHotKeys() {
+        if (!metrics) {
+            throw new IllegalStateException("Metrics are not enabled");
+        }
+
+        return hotKeySampler.report(routingTable::getSlot);
+    }
+
+    /**
+     * Change the number of single threaded pools. Added pools start taking keys straight away.
+     * Removed pools finish the tasks already queued on them before their threads exit, and their
+     * keys' new tasks wait until then so that the order of tasks for each key is kept. Growing
+     * back over a removed pool which is still running its tasks takes that pool back into use
+     * rather than starting another beside it.
+     *
+     * @param newNumThreads the new number of single threaded pools
+     * @throws IllegalStateException if resizing was not enabled through {@link #builder(int)}
+     */
+    public void resize(int newNumThreads) {
+        if (newNumThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be positive");
+        }
+
+        if (!routingTable.isTracking()) {
+            throw new IllegalStateException("Resizing is not enabled");
+        }
+
+        synchronized (resizeLock) {
+            if (shutdown) {
+                throw new IllegalStateException("Executor has been shut down");
+            }
+
+            int oldNumThreads = numThreads;
+            if (newNumThreads > oldNumThreads) {
+                // Pools beyond the current size are left over from shrinking and already shut down.
+                // One still running tasks for its keys is reopened, a second pool with the same
+                // index could run a key's new tasks before them.
+                SlotWorker[] pools = Arrays.copyOf(threadPools, Math.max(threadPools.length, newNumThreads));
+                for (int i = oldNumThreads; i < newNumThreads; i++) {
+                    if (pools[i] == null || !pools[i].reopen()) {
+                        pools[i] = newSlotWorker();
+                    }
+                }
+
+                threadPools = pools;
+            }
+
+            numThreads = newNumThreads;
+            routingTable.resize(newNumThreads);
+
+            for (int i = newNumThreads; i < oldNumThreads; i++) {
+                threadPools[i].shutdown();
+            }
+        }
+    }
+
+    /**
+     * Stop taking new tasks. Tasks already accepted are run, including those held back while
+     * their key moves pool: the pools keep taking them until every key has finished moving, and
+     * only then are shut down.
+     */
     @Override
     public void shutdown() {
-        threadPools.forEach(ExecutorService::shutdown);
+        synchronized (resizeLock) {
+            shutdown = true;
+            if (routingTable.shutdown()) {
+                closePools();
+            }
+        }
     }
 
     @Override
     public List<Runnable> shutdownNow() {
-        return threadPools.stream()
-                          .flatMap(es -> es.shutdownNow().stream())
-                          .collect(Collectors.toList());
+        synchronized (resizeLock) {
+            shutdown = true;
+            routingTable.close();
+            List<Runnable> pending = allPools().flatMap(es -> es.shutdownNow().stream())
+                                               .collect(Collectors.toList());
+            routingTable.drainHeld().forEach(task -> pending.add(PriorityTask.unwrap(task)));
+            return pending;
+        }
     }
 
     @Override
     public boolean isShutdown() {
-        return threadPools.stream().allMatch(ExecutorService::isShutdown);
+        return shutdown;
     }
 
     @Override
     public boolean isTerminated() {
-        return threadPools.stream().allMatch(ExecutorService::isTerminated);
+        return allPools().allMatch(ExecutorService::isTerminated);
     }
 
     @Override
     public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
-        Queue<ExecutorService> queue = new ArrayDeque<>(threadPools);
+        Queue<ExecutorService> queue = allPools().collect(Collectors.toCollection(ArrayDeque::new));
         long timeoutMs = unit.toMillis(timeout);
         long start = System.currentTimeMillis();
         boolean result = true;
@@ -81,10 +348,275 @@ public class HashPoolExecutorService extends AbstractExecutorService {
     public void execute(Runnable runnable) {
         if (runnable instanceof KeyedRunnable) {
             KeyedRunnable keyedRunnable = (KeyedRunnable)runnable;
-            ExecutorService svc = findSlot(keyedRunnable.getId());
-            svc.execute(keyedRunnable.getRunnable());
+            if (hotKeySampler != null && hotKeySampler.shouldSample()) {
+                hotKeySampler.record(keyedRunnable.getKey(), keyedRunnable.getHash());
+            }
+
+            route(keyedRunnable.getHash(), taskOf(keyedRunnable));
+        } else if (shutdown) {
+            throw new RejectedExecutionException("Executor has been shut down");
         } else {
-            threadPools.get(0).execute(runnable);
+            threadPools[0].execute(runnable);
+        }
+    }
+
+    /**
+     * Execute a batch of tasks. Tasks are grouped by pool and each group is queued in one
+     * operation, in the order given, waking each pool's thread at most once, which is much cheaper
+     * than calling {@link #execute(Runnable)} for each task when replaying or bulk loading. Tasks
+     * with the same identifier run in the order given, after any already submitted.
+     * <p/>
+     * With the {@link BackpressurePolicy#REJECT} policy, tasks which do not fit in their pool's
+     * queue are skipped while the rest of the batch is queued.
+     *
+     * @param runnables the tasks to run
+     * @throws RejectedExecutionException if the executor has been shut down, or if any task was
+     *                                    refused by a full pool
+     */
+    public void executeAll(Collection<? extends KeyedRunnable> runnables) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+
+        int count = runnables.size();
+        Runnable[] tasks = new Runnable[count];
+        int[] entries = new int[count];
+        int[] slots = new int[count];
+        int index = 0;
+        for (KeyedRunnable keyedRunnable : runnables) {
+            int hash = keyedRunnable.getHash();
+            if (hotKeySampler != null && hotKeySampler.shouldSample()) {
+                hotKeySampler.record(keyedRunnable.getKey(), hash);
+            }
+
+            tasks[index] = taskOf(keyedRunnable);
+            entries[index] = routingTable.tagOf(hash);
+            slots[index] = routingTable.reserve(hash, tasks[index]);
+            index++;
+        }
+
+        // Read after reserving so that any pool added by a concurrent resize is present
+        SlotWorker[] pools = threadPools;
+        int[] groupSizes = new int[pools.length];
+        for (int slot : slots) {
+            if (slot >= 0) {
+                groupSizes[slot]++;
+            }
+        }
+
+        List<Runnable> retry = new ArrayList<>();
+        List<Integer> retryEntries = new ArrayList<>();
+        int[] refused = new int[1];
+        for (int slot = 0; slot < pools.length; slot++) {
+            int size = groupSizes[slot];
+            if (size == 0) {
+                continue;
+            }
+
+            Runnable[] group = new Runnable[size];
+            int[] tags = new int[size];
+            for (int i = 0, g = 0; g < size; i++) {
+                if (slots[i] == slot) {
+                    group[g] = tasks[i];
+                    tags[g++] = entries[i];
+                }
+            }
+
+            SlotWorker pool = pools[slot];
+            pool.executeAll(group, tags, size, (task, entry) -> {
+                if (entry >= 0 && pool.isShutdown()) {
+                    // Keep the reservation until the task has been given back to the table
+                    retry.add(task);
+                    retryEntries.add(entry);
+                } else {
+                    if (entry >= 0) {
+                        routingTable.release(entry);
+                    }
+
+                    refused[0]++;
+                }
+            });
+        }
+
+        // Refused by pools removed in a concurrent resize, held until their keys' earlier tasks have
+        // run. Untracked pools are only shut down with the service, so their refusals are counted below
+        if (!retry.isEmpty() && !routingTable.requeue(retry, retryEntries)) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+
+        if (refused[0] > 0) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+
+            throw new RejectedExecutionException(refused[0] + " of " + count + " tasks refused by full pools");
+        }
+    }
+
+    /**
+     * Execute a task on the pool selected by a numeric key. All tasks with the same key are run
+     * on the same thread in the order they are presented.
+     *
+     * @param key      selects the pool, {@code int} keys are widened
+     * @param runnable the task to run
+     */
+    public void execute(long key, Runnable runnable) {
+        int hash = KeyHashing.mix(key);
+        if (hotKeySampler != null && hotKeySampler.shouldSample()) {
+            hotKeySampler.record(key, hash);
+        }
+
+        route(hash, runnable);
+    }
+
+    /**
+     * Execute a task on the pool selected by hashing a key. All tasks with equal hashes are run
+     * on the same thread in the order they are presented.
+     *
+     * @param key          selects the pool
+     * @param hashFunction computes the hash of the key
+     * @param runnable     the task to run
+     * @param <K>          the type of the key
+     */
+    public <K> void execute(K key, ToIntFunction<? super K> hashFunction, Runnable runnable) {
+        int hash = KeyHashing.mix(hashFunction.applyAsInt(key));
+        if (hotKeySampler != null && hotKeySampler.shouldSample()) {
+            hotKeySampler.record(key, hash);
+        }
+
+        route(hash, runnable);
+    }
+
+    /**
+     * Builds a {@link HashPoolExecutorService}.
+     */
+    public static class Builder {
+        private final int numThreads;
+        private ThreadFactory threadFactory = Executors.defaultThreadFactory();
+        private int routingTableSize = DEFAULT_ROUTING_TABLE_SIZE;
+        private boolean resizable;
+        private boolean rebalancing;
+        private int imbalanceThreshold;
+        private int queueCapacity;
+        private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+        private boolean priorityLanes;
+        private boolean metrics;
+        private int hotKeySampleInterval;
+        private int hotKeys;
+        private Consumer<Runnable> rejectedTaskHandler = HashPoolExecutorService::reportRejected;
+
+        private Builder(int numThreads) {
+            this.numThreads = numThreads;
+        }
+
+        /**
+         * @param threadFactory creates the thread for each pool
+         * @return this builder
+         */
+        public Builder threadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
+            return this;
+        }
+
+        /**
+         * @param routingTableSize number of entries in the routing table, rounded up to a power of
+         *                         two. Keys which share an entry always run on the same pool.
+         * @return this builder
+         */
+        public Builder routingTableSize(int routingTableSize) {
+            this.routingTableSize = routingTableSize;
+            return this;
+        }
+
+        /**
+         * Allow the number of pools to be changed with {@link HashPoolExecutorService#resize(int)}.
+         * Every keyed task then updates a shared count for its key's entry in the routing table,
+         * which the pool otherwise skips.
+         *
+         * @return this builder
+         */
+        public Builder resizable() {
+            this.resizable = true;
+            return this;
+        }
+
+        /**
+         * Move keys off overloaded pools, which also makes the executor resizable. Keys are remembered in a table of fixed size, keys which
+         * share an entry in the table are moved together.
+         *
+         * @param routingTableSize   number of entries in the routing table, rounded up to a power of two
+         * @param imbalanceThreshold how many more queued tasks a pool must have than the least loaded
+         *                           pool before keys are moved off it
+         * @return this builder
+         */
+        public Builder rebalancing(int routingTableSize, int imbalanceThreshold) {
+            this.routingTableSize = routingTableSize;
+            this.rebalancing = true;
+            this.imbalanceThreshold = imbalanceThreshold;
+            return this;
+        }
+
+        /**
+         * Bound the queue of each pool.
+         *
+         * @param queueCapacity      maximum number of tasks waiting on each pool, or zero for no limit
+         * @param backpressurePolicy what to do with a task submitted to a full pool
+         * @return this builder
+         */
+        public Builder queueCapacity(int queueCapacity, BackpressurePolicy backpressurePolicy) {
+            if (queueCapacity < 0) {
+                throw new IllegalArgumentException("queueCapacity must not be negative");
+            }
+
+            this.queueCapacity = queueCapacity;
+            this.backpressurePolicy = backpressurePolicy;
+            return this;
+        }
+
+        /**
+         * Queue each {@link Priority} of {@link KeyedRunnable} in its own lane on every pool. Urgent
+         * tasks run first, but each lane is served in proportion to its priority's weight when the
+         * pool is busy, so none is starved. With a queue capacity, each lane has that capacity.
+         *
+         * @return this builder
+         */
+        public Builder priorityLanes() {
+            this.priorityLanes = true;
+            return this;
+        }
+
+        /**
+         * Record per-pool metrics and sample keyed tasks to find the hottest keys. Recording costs
+         * an allocation and two clock reads per task.
+         *
+         * @param hotKeySampleInterval one in this many keyed tasks is sampled for the hot key report
+         * @param hotKeys              number of keys in the hot key report
+         * @return this builder
+         */
+        public Builder metrics(int hotKeySampleInterval, int hotKeys) {
+            this.metrics = true;
+            this.hotKeySampleInterval = hotKeySampleInterval;
+            this.hotKeys = hotKeys;
+            return this;
+        }
+
+        /**
+         * @param rejectedTaskHandler given tasks which were held back while their key moved pool and
+         *                            could not be queued because they raced with the executor being
+         *                            shut down. By default a {@link RejectedExecutionException} is reported to the
+         *                            uncaught exception handler of the thread that found them.
+         * @return this builder
+         */
+        public Builder rejectedTaskHandler(Consumer<Runnable> rejectedTaskHandler) {
+            this.rejectedTaskHandler = rejectedTaskHandler;
+            return this;
+        }
+
+        public HashPoolExecutorService build() {
+            HotKeySampler hotKeySampler = metrics ? new HotKeySampler(hotKeySampleInterval, hotKeys) : null;
+            return new HashPoolExecutorService(numThreads, threadFactory, routingTableSize, resizable, rebalancing,
+                                               imbalanceThreshold, queueCapacity, backpressurePolicy, priorityLanes,
+                                               hotKeySampler, rejectedTaskHandler);
         }
     }
 }
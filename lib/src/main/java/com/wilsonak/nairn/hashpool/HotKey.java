@@ -0,0 +1,44 @@
+package com.wilsonak.nairn.hashpool;
+
+/**
+ * One entry in the hot key report of a {@link HashPoolExecutorService}.
+ */
+public final class HotKey {
+    private final Object key;
+    private final long estimatedCount;
+    private final int slot;
+
+    /**
+     * Initialises a new instance of the {@code HotKey} class
+     *
+     * @param key            the key, as passed to the pool
+     * @param estimatedCount estimated number of tasks submitted for the key
+     * @param slot           the pool the key is currently routed to
+     */
+    public HotKey(Object key, long estimatedCount, int slot) {
+        this.key = key;
+        this.estimatedCount = estimatedCount;
+        this.slot = slot;
+    }
+
+    public Object getKey() {
+        return key;
+    }
+
+    /**
+     * @return the estimated number of tasks submitted for the key, scaled up from the sample and
+     * possibly an overestimate for keys which entered the report late
+     */
+    public long getEstimatedCount() {
+        return estimatedCount;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    @Override
+    public String toString() {
+        return key + "=" + estimatedCount + "@" + slot;
+    }
+}
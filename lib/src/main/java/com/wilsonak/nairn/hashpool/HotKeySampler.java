@@ -0,0 +1,103 @@
+package com.wilsonak.nairn.hashpool;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Finds the most frequently submitted keys of a {@link HashPoolExecutorService} from a random
+ * sample of its tasks.
+ * <p/>
+ * Sampled keys are counted with the Space-Saving algorithm (Metwally, Agrawal and El Abbadi) in a
+ * fixed number of counters. When every counter is in use a new key takes over the smallest one,
+ * inheriting its count, so any key with more than {@code 1 / counters} of the samples is certain
+ * to be in the table and the count of a key is never underestimated. Only sampled tasks take the
+ * lock, unsampled tasks pay for one random number.
+ */
+class HotKeySampler {
+    private static final int COUNTERS_PER_KEY = 4;
+
+    private final Map<Object, Counter> counters = new HashMap<>();
+    private final int sampleInterval;
+    private final int topKeys;
+    private final int capacity;
+
+    /**
+     * Initialises a new instance of the {@code HotKeySampler} class
+     *
+     * @param sampleInterval one in this many tasks is sampled
+     * @param topKeys        number of keys to report
+     */
+    public HotKeySampler(int sampleInterval, int topKeys) {
+        this.sampleInterval = Math.max(1, sampleInterval);
+        this.topKeys = Math.max(1, topKeys);
+        this.capacity = this.topKeys * COUNTERS_PER_KEY;
+    }
+
+    /**
+     * @return true if the current task should be recorded
+     */
+    public boolean shouldSample() {
+        return sampleInterval == 1 || ThreadLocalRandom.current().nextInt(sampleInterval) == 0;
+    }
+
+    /**
+     * Count a sampled key.
+     *
+     * @param key  the key
+     * @param hash the mixed hash the key was routed by
+     */
+    public synchronized void record(Object key, int hash) {
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            long count = 0;
+            if (counters.size() >= capacity) {
+                Counter smallest = counters.values().stream().min(Comparator.comparingLong(c -> c.count)).orElseThrow();
+                counters.remove(smallest.key);
+                count = smallest.count;
+            }
+
+            counter = new Counter(key, hash, count);
+            counters.put(key, counter);
+        }
+
+        counter.count++;
+    }
+
+    /**
+     * @param slotOf finds the slot a hash is currently routed to
+     * @return the most frequent keys, most frequent first
+     */
+    public List<HotKey> report(IntUnaryOperator slotOf) {
+        List<Counter> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(counters.size());
+            counters.values().forEach(c -> snapshot.add(new Counter(c.key, c.hash, c.count)));
+        }
+
+        snapshot.sort(Comparator.comparingLong((Counter c) -> c.count).reversed());
+        List<HotKey> result = new ArrayList<>(topKeys);
+        for (int i = 0; i < Math.min(topKeys, snapshot.size()); i++) {
+            Counter counter = snapshot.get(i);
+            result.add(new HotKey(counter.key, counter.count * sampleInterval, slotOf.applyAsInt(counter.hash)));
+        }
+
+        return result;
+    }
+
+    private static class Counter {
+        private final Object key;
+        private final int hash;
+        private long count;
+
+        public Counter(Object key, int hash, long count) {
+            this.key = key;
+            this.hash = hash;
+            this.count = count;
+        }
+    }
+}
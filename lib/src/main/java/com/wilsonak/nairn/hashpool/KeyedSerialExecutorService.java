@@ -0,0 +1,345 @@
+package com.wilsonak.nairn.hashpool;
+
+import com.wilsonak.nairn.KeyHashing;
+import com.wilsonak.nairn.KeyedRunnable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * An alternative to {@link HashPoolExecutorService} which gives every active key its own serial
+ * queue, or lane, and runs lanes on a shared {@link Executor}. Like the hash pool, all
+ * {@link KeyedRunnable}s with the same identifier are executed one at a time in the order they
+ * are presented, but unrelated keys never wait behind each other and the number of threads is
+ * whatever the shared executor provides. A slow key only delays its own tasks.
+ * <p/>
+ * A lane exists only while it has tasks queued or running. It is scheduled on the shared
+ * executor when its first task arrives, runs up to {@code throughput} tasks and then yields the
+ * thread by rescheduling itself if more are waiting. Lanes are found by the mixed hash of the
+ * key, so two keys with the same hash share a lane. Tasks which are not {@code KeyedRunnable}s
+ * have no ordering requirement and are passed straight to the shared executor.
+ * <p/>
+ * If the shared executor rejects a lane the rejection is passed to the submitter whose task
+ * started the lane, and the lane is dropped along with any tasks queued in it, so that the next
+ * task for the key starts a fresh lane.
+ * <p/>
+ * An executor passed in is not shut down by this service. On Java 21 and later a virtual thread
+ * per task executor may be passed in to give each running lane its own virtual thread, which
+ * {@link #newVirtualThreadExecutorService()} does when the runtime allows. The executor made
+ * there belongs to the service and is shut down once the service terminates.
+ */
+public class KeyedSerialExecutorService extends AbstractExecutorService {
+    /**
+     * Default number of tasks a lane runs before yielding its thread.
+     */
+    public static final int DEFAULT_THROUGHPUT = 64;
+
+    private final Map<Integer, Lane> lanes = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final int throughput;
+    private volatile boolean shutdown;
+    private volatile boolean stopped;
+
+    /**
+     * Initialises a new instance of the {@code KeyedSerialExecutorService} class running lanes on
+     * the common {@link ForkJoinPool}.
+     */
+    public KeyedSerialExecutorService() {
+        this(ForkJoinPool.commonPool(), DEFAULT_THROUGHPUT);
+    }
+
+    /**
+     * Initialises a new instance of the {@code KeyedSerialExecutorService} class
+     *
+     * @param executor   runs the lanes
+     * @param throughput number of tasks a lane runs before yielding its thread
+     */
+    public KeyedSerialExecutorService(Executor executor, int throughput) {
+        this(executor, throughput, null);
+    }
+
+    private KeyedSerialExecutorService(Executor executor, int throughput, ExecutorService ownedExecutor) {
+        this.executor = executor;
+        this.throughput = Math.max(1, throughput);
+        this.ownedExecutor = ownedExecutor;
+    }
+
+    /**
+     * Initialises a new {@code KeyedSerialExecutorService} which runs each lane on a virtual thread
+     * when the runtime has them, Java 21 and later, and otherwise on a cached pool of daemon
+     * threads. Either way a lane blocked in a task holds a thread of its own rather than one from
+     * a fixed pool, but a blocked virtual thread costs only its stack on the heap. The threads
+     * are released once the service is shut down and its lanes have finished.
+     *
+     * @return a new executor service
+     */
+    public static KeyedSerialExecutorService newVirtualThreadExecutorService() {
+        ExecutorService executor;
+        try {
+            // Looked up reflectively so that the library still builds and runs on Java 17
+            executor = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            executor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "keyed-serial-lane");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        return new KeyedSerialExecutorService(executor, DEFAULT_THROUGHPUT, executor);
+    }
+
+    private void submitToLane(int hash, Runnable runnable) {
+        Objects.requireNonNull(runnable);
+        // Counted before checking for shutdown so termination cannot be signalled while a lane is being made
+        inFlight.incrementAndGet();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+
+            Integer key = hash;
+            Lane lane;
+            do {
+                lane = lanes.computeIfAbsent(key, Lane::new);
+            } while (!lane.offer(runnable));
+        } finally {
+            finished();
+        }
+    }
+
+    private void submitKeyless(Runnable runnable) {
+        Objects.requireNonNull(runnable);
+        inFlight.incrementAndGet();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+
+            executor.execute(() -> {
+                try {
+                    runnable.run();
+                } finally {
+                    finished();
+                }
+            });
+        } catch (RuntimeException e) {
+            finished();
+            throw e;
+        }
+    }
+
+    private void finished() {
+        inFlight.decrementAndGet();
+        checkTerminated();
+    }
+
+    private void checkTerminated() {
+        if (isTerminated()) {
+            terminated.countDown();
+            if (ownedExecutor != null) {
+                ownedExecutor.shutdown();
+            }
+        }
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        if (runnable instanceof KeyedRunnable) {
+            KeyedRunnable keyedRunnable = (KeyedRunnable)runnable;
+            submitToLane(keyedRunnable.getHash(), keyedRunnable.getRunnable());
+        } else {
+            submitKeyless(runnable);
+        }
+    }
+
+    /**
+     * Execute a task in the lane for a numeric key.
+     *
+     * @param key      selects the lane, {@code int} keys are widened
+     * @param runnable the task to run
+     */
+    public void execute(long key, Runnable runnable) {
+        submitToLane(KeyHashing.mix(key), runnable);
+    }
+
+    /**
+     * Execute a task in the lane selected by hashing a key.
+     *
+     * @param key          selects the lane
+     * @param hashFunction computes the hash of the key
+     * @param runnable     the task to run
+     * @param <K>          the type of the key
+     */
+    public <K> void execute(K key, ToIntFunction<? super K> hashFunction, Runnable runnable) {
+        submitToLane(KeyHashing.mix(hashFunction.applyAsInt(key)), runnable);
+    }
+
+    /**
+     * @return the number of lanes with tasks queued or running
+     */
+    public int getActiveLanes() {
+        return lanes.size();
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        checkTerminated();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        stopped = true;
+        List<Runnable> pending = new ArrayList<>();
+        lanes.values().forEach(lane -> pending.addAll(lane.queue.drain()));
+        checkTerminated();
+        return pending;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && lanes.isEmpty() && inFlight.get() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    /**
+     * A serial queue of tasks for one key. {@code pending} counts tasks offered but not yet run.
+     * The submitter that moves it off zero schedules the lane, and the lane stops running when it
+     * brings it back to zero, so at most one thread drains a lane at a time. A lane which finds
+     * itself idle retires by setting {@code pending} to -1, after which it accepts no more tasks.
+     * A lane the shared executor will not run is abandoned in the same way and emptied.
+     */
+    private class Lane implements Runnable {
+        private final MpscLinkedQueue<Runnable> queue = new MpscLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final Integer key;
+        private volatile boolean abandoned;
+
+        public Lane(Integer key) {
+            this.key = key;
+        }
+
+        public boolean offer(Runnable runnable) {
+            int count;
+            do {
+                count = pending.get();
+                if (count < 0) {
+                    // Retired, make sure it is gone before the caller makes a new lane
+                    lanes.remove(key, this);
+                    return false;
+                }
+            } while (!pending.compareAndSet(count, count + 1));
+
+            MpscLinkedQueue.Node<Runnable> node = queue.offer(runnable, -1);
+            if (abandoned && queue.revoke(node)) {
+                throw new RejectedExecutionException("Lane was rejected by the shared executor");
+            }
+
+            if (stopped && queue.revoke(node)) {
+                // Nothing will run this lane now, unless it was already scheduled
+                if (count == 0) {
+                    retire();
+                }
+
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+
+            if (count == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    abandon();
+                    throw e;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Give up on a lane the shared executor will not run. Tasks linked after {@code abandoned}
+         * is set are revoked by their submitters, the rest are claimed and dropped here.
+         */
+        private void abandon() {
+            abandoned = true;
+            retire();
+            queue.drain();
+        }
+
+        private void retire() {
+            pending.set(-1);
+            lanes.remove(key, this);
+            checkTerminated();
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < throughput; i++) {
+                MpscLinkedQueue.Node<Runnable> node;
+                while ((node = queue.poll()) == null) {
+                    if (stopped) {
+                        retire();
+                        return;
+                    }
+
+                    // A submitter has counted its task but not linked it into the queue yet
+                    Thread.onSpinWait();
+                }
+
+                runTask(node.take());
+                if (pending.decrementAndGet() == 0) {
+                    if (pending.compareAndSet(0, -1)) {
+                        lanes.remove(key, this);
+                        checkTerminated();
+                    }
+
+                    return;
+                }
+            }
+
+            // More work waiting, give other lanes a turn on this thread
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                abandon();
+                throw e;
+            }
+        }
+
+        private void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.wilsonak.nairn.hashpool;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded, lock-free, multi-producer / single-consumer linked queue after Dmitry Vyukov's
+ * non-intrusive MPSC node queue. Producers append with a single atomic exchange on the tail,
+ * the consumer follows {@code next} links from the head and never contends with producers.
+ * <p/>
+ * Every value is claimed exactly once, either by the consumer through {@link #poll()} or by
+ * another thread through {@link #revoke(Node)} or {@link #drain()}. This lets a producer take
+ * back a value it has just offered and lets a third party empty the queue on shutdown without
+ * racing the consumer into running a task twice.
+ * <p/>
+ * Each value may carry an {@code int} tag which travels with it in the node, so callers can
+ * attach routing information without wrapping the value.
+ *
+ * @param <E> the type of value held in the queue
+ */
+class MpscLinkedQueue<E> {
+    private final AtomicReference<Node<E>> tail;
+    private volatile Node<E> head;
+
+    public MpscLinkedQueue() {
+        Node<E> stub = new Node<>(null, -1);
+        this.head = stub;
+        this.tail = new AtomicReference<>(stub);
+    }
+
+    /**
+     * Add a value to the tail of the queue. Safe to call from any thread.
+     *
+     * @param value the value to add, must not be null
+     * @param tag   carried alongside the value
+     * @return the node holding the value, may be passed to {@link #revoke(Node)}
+     */
+    public Node<E> offer(E value, int tag) {
+        Node<E> node = new Node<>(value, tag);
+        tail.getAndSet(node).next = node;
+        return node;
+    }
+
+    /**
+     * Add a group of values to the tail of the queue with a single atomic exchange, so they are
+     * kept together and in order. Safe to call from any thread.
+     *
+     * @param values the values to add, must not contain nulls
+     * @param tags   carried alongside the values
+     * @param count  number of values to add from the start of the arrays, must be positive
+     * @return the node holding the first value, the rest follow it through {@link Node#next()}
+     */
+    public Node<E> offerAll(E[] values, int[] tags, int count) {
+        Node<E> first = new Node<>(values[0], tags[0]);
+        Node<E> last = first;
+        for (int i = 1; i < count; i++) {
+            Node<E> node = new Node<>(values[i], tags[i]);
+            last.next = node;
+            last = node;
+        }
+
+        tail.getAndSet(last).next = first;
+        return first;
+    }
+
+    /**
+     * Claim the node at the head of the queue. Must only be called by the single consumer, which
+     * then owns the node and should {@link Node#take()} its value.
+     * <p/>
+     * May return null while the queue is not empty if a producer has swapped the tail but
+     * not yet linked its node; callers should check {@link #isEmpty()} before going to sleep.
+     *
+     * @return the oldest unclaimed node or null
+     */
+    public Node<E> poll() {
+        Node<E> current = head;
+        Node<E> next;
+        while ((next = current.next) != null) {
+            current = next;
+            if (next.claim()) {
+                head = current;
+                return next;
+            }
+        }
+
+        head = current;
+        return null;
+    }
+
+    /**
+     * @return true if no values have been offered since the consumer last caught up
+     */
+    public boolean isEmpty() {
+        return head == tail.get();
+    }
+
+    /**
+     * Claim back a value before the consumer gets to it.
+     *
+     * @param node returned from {@link #offer(Object, int)}
+     * @return true if the value was revoked, false if it had already been claimed
+     */
+    public boolean revoke(Node<E> node) {
+        if (node.claim()) {
+            node.take();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Claim the oldest unclaimed node from any thread, the caller then owns the node and should
+     * {@link Node#take()} its value.
+     *
+     * @return the oldest unclaimed node or null
+     */
+    public Node<E> claimOldest() {
+        Node<E> current = head;
+        while ((current = current.next) != null) {
+            if (current.claim()) {
+                return current;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Claim every value currently linked into the queue. Safe to call from any thread.
+     *
+     * @return the claimed values, oldest first
+     */
+    public List<E> drain() {
+        List<E> values = new ArrayList<>();
+        Node<E> current = head;
+        while ((current = current.next) != null) {
+            if (current.claim()) {
+                values.add(current.take());
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * A link in the queue. The claim flag lives in the node and is set through a {@code VarHandle}
+     * so claiming does not need a separate atomic object per node.
+     */
+    static class Node<E> {
+        private static final VarHandle CLAIMED;
+
+        static {
+            try {
+                CLAIMED = MethodHandles.lookup().findVarHandle(Node.class, "claimed", boolean.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final int tag;
+        private E value;
+        private volatile boolean claimed;
+        private volatile Node<E> next;
+
+        Node(E value, int tag) {
+            this.value = value;
+            this.tag = tag;
+        }
+
+        private boolean claim() {
+            return !claimed && CLAIMED.compareAndSet(this, false, true);
+        }
+
+        /**
+         * Hand over the value, only the thread that claimed the node may call this.
+         *
+         * @return the value, which is then released by the node
+         */
+        public E take() {
+            E result = value;
+            value = null;
+            return result;
+        }
+
+        public int getTag() {
+            return tag;
+        }
+
+        /**
+         * @return the node linked after this one, which for all but the last node of a group
+         * offered together is the next value of the group
+         */
+        public Node<E> next() {
+            return next;
+        }
+    }
+}
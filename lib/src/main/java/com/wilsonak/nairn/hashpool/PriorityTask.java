@@ -0,0 +1,39 @@
+package com.wilsonak.nairn.hashpool;
+
+import com.wilsonak.nairn.Priority;
+
+/**
+ * A task with a priority other than normal, on its way to a pool with priority lanes.
+ */
+class PriorityTask implements Runnable {
+    private final Runnable task;
+    private final Priority priority;
+
+    /**
+     * Initialises a new instance of the {@code PriorityTask} class
+     *
+     * @param task     the task to run
+     * @param priority selects the lane the task is queued in
+     */
+    public PriorityTask(Runnable task, Priority priority) {
+        this.task = task;
+        this.priority = priority;
+    }
+
+    /**
+     * @param task a task which may have been given a priority
+     * @return the task as it was submitted
+     */
+    public static Runnable unwrap(Runnable task) {
+        return task instanceof PriorityTask ? ((PriorityTask)task).task : task;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    @Override
+    public void run() {
+        task.run();
+    }
+}
@@ -0,0 +1,121 @@
+package com.wilsonak.nairn.hashpool;
+
+import com.wilsonak.nairn.Priority;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * A {@link TaskQueue} with a lane for each {@link Priority}, each lane a queue of its own.
+ * <p/>
+ * The worker always looks in the most urgent lane first, but each lane may only give up as many
+ * tasks as its weight before the lanes behind it get a turn. Once every lane with tasks has used
+ * its share the shares are renewed. Under load the lanes are served in proportion to their
+ * weights, and when the urgent lanes are quiet the others have the worker to themselves.
+ * <p/>
+ * Tasks of the same priority keep their order. A full lane makes room by giving up its own oldest
+ * task, the other lanes are left alone.
+ */
+class PriorityTaskQueue implements TaskQueue {
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final TaskQueue[] lanes = new TaskQueue[PRIORITIES.length];
+    private final int[] credits = new int[PRIORITIES.length];
+    private final ToIntFunction<Runnable> laneOf;
+
+    /**
+     * Initialises a new instance of the {@code PriorityTaskQueue} class
+     *
+     * @param capacity maximum number of tasks in each lane, or zero for unbounded lanes
+     * @param laneOf   finds the lane for a task, the ordinal of its {@link Priority}
+     */
+    public PriorityTaskQueue(int capacity, ToIntFunction<Runnable> laneOf) {
+        this.laneOf = laneOf;
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = capacity > 0 ? new BoundedTaskQueue(capacity) : new UnboundedTaskQueue();
+            credits[i] = PRIORITIES[i].getWeight();
+        }
+    }
+
+    @Override
+    public MpscLinkedQueue.Node<Runnable> offer(Runnable task, int tag) {
+        return lanes[laneOf.applyAsInt(task)].offer(task, tag);
+    }
+
+    @Override
+    public MpscLinkedQueue.Node<Runnable> offerAll(Runnable[] tasks, int[] tags, int count) {
+        int lane = laneOf.applyAsInt(tasks[0]);
+        for (int i = 1; i < count; i++) {
+            if (laneOf.applyAsInt(tasks[i]) != lane) {
+                // Mixed priorities, let the caller offer them one at a time
+                return null;
+            }
+        }
+
+        return lanes[lane].offerAll(tasks, tags, count);
+    }
+
+    @Override
+    public MpscLinkedQueue.Node<Runnable> add(Runnable task, int tag) {
+        return lanes[laneOf.applyAsInt(task)].add(task, tag);
+    }
+
+    @Override
+    public boolean poll(TaskSink sink) {
+        if (pollWithCredit(sink)) {
+            return true;
+        }
+
+        boolean spent = false;
+        for (int i = 0; i < lanes.length; i++) {
+            spent |= credits[i] < PRIORITIES[i].getWeight();
+            credits[i] = PRIORITIES[i].getWeight();
+        }
+
+        // Nothing was held back for want of credit, so the lanes are empty
+        return spent && pollWithCredit(sink);
+    }
+
+    private boolean pollWithCredit(TaskSink sink) {
+        for (int i = 0; i < lanes.length; i++) {
+            if (credits[i] > 0 && lanes[i].poll(sink)) {
+                credits[i]--;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean dropOldest(Runnable task, TaskSink sink) {
+        return lanes[laneOf.applyAsInt(task)].dropOldest(task, sink);
+    }
+
+    @Override
+    public boolean revoke(Runnable task, MpscLinkedQueue.Node<Runnable> node) {
+        return lanes[laneOf.applyAsInt(task)].revoke(task, node);
+    }
+
+    @Override
+    public List<Runnable> drainAll() {
+        List<Runnable> result = new ArrayList<>();
+        for (TaskQueue lane : lanes) {
+            result.addAll(lane.drainAll());
+        }
+
+        return result;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (TaskQueue lane : lanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,493 @@
+package com.wilsonak.nairn.hashpool;
+
+import com.wilsonak.nairn.KeyHashing;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * A bounded table that remembers which slot each key is routed to and how many of its tasks are
+ * queued or running, used by {@link HashPoolExecutorService} to route keyed tasks.
+ * <p/>
+ * Keys are hashed into a fixed number of entries, keys that share an entry move together. Each
+ * entry has a home slot chosen by jump consistent hashing, so changing the number of slots
+ * changes the home of only a small fraction of entries. An entry is only given a new slot when
+ * it has no outstanding tasks: nothing for that key can still be waiting on the old slot, so
+ * moving it cannot reorder its tasks.
+ * <p/>
+ * When the number of slots changes, busy entries which must move are marked as moving. New tasks
+ * for a moving entry are held back until its old slot has run everything it was given, then the
+ * held tasks are sent, in order, to the new slot. A task refused by a slot which has been removed
+ * marks its entry as moving in the same way, since earlier tasks for the key may still be queued
+ * there.
+ * <p/>
+ * Once shut down the table stops taking tasks refused by removed slots, but the slots must keep
+ * taking held tasks until every entry has finished moving. The settled listener is called when
+ * the last one has.
+ * <p/>
+ * With rebalancing enabled an idle entry on an overloaded slot is moved to the least loaded slot.
+ * <p/>
+ * Counting outstanding tasks is only needed to move entries safely, so a table which is neither
+ * resizable nor rebalancing routes every key to its home slot without touching the entries.
+ * <p/>
+ * Each entry is a single {@code long} holding a moving flag and the slot in the high word and
+ * the outstanding task count in the low word, updated with compare-and-set so routing takes no
+ * locks unless the entry is moving.
+ */
+class RoutingTable {
+    private static final long MOVING = Long.MIN_VALUE;
+
+    /**
+     * Hands routed tasks to the slots.
+     */
+    interface Dispatcher {
+        /**
+         * @param slot  the slot to run the task on
+         * @param task  the task to run
+         * @param entry to be passed back to {@link #release(int)} once the task has run, or -1 if
+         *              the table is not tracking tasks
+         * @param held  true if the task was held back while its entry moved, the slot must take
+         *              it without waiting for space in its queue
+         * @return false if the slot has been shut down
+         */
+        boolean dispatch(int slot, Runnable task, int entry, boolean held);
+    }
+
+    private final AtomicLongArray entries;
+    private final Map<Integer, Deque<Runnable>> held = new HashMap<>();
+    private final Dispatcher dispatcher;
+    private final Consumer<Runnable> rejectedTaskHandler;
+    private final Runnable settledListener;
+    private final AtomicInteger movingEntries = new AtomicInteger();
+    private final int mask;
+    private final boolean tracking;
+    private final boolean rebalancing;
+    private final int imbalanceThreshold;
+    private volatile int[] homes;
+    private volatile AtomicInteger[] slotLoads;
+    private volatile int numSlots;
+    private volatile boolean shutdown;
+    private volatile boolean closed;
+
+    /**
+     * Initialises a new instance of the {@code RoutingTable} class
+     *
+     * @param numSlots            number of slots to route to
+     * @param size                number of entries, rounded up to a power of two
+     * @param resizable           true to count outstanding tasks so that the table can be resized
+     * @param rebalancing         true to move idle entries off overloaded slots, implies resizable
+     * @param imbalanceThreshold  how many more outstanding tasks a slot must have than the least
+     *                            loaded slot before an idle entry is moved off it
+     * @param dispatcher          hands routed tasks to the slots
+     * @param rejectedTaskHandler given held tasks which could not be sent because the slots were closed
+     * @param settledListener     called when the last moving entry has finished moving after the
+     *                            table was shut down
+     */
+    public RoutingTable(int numSlots,
+                        int size,
+                        boolean resizable,
+                        boolean rebalancing,
+                        int imbalanceThreshold,
+                        Dispatcher dispatcher,
+                        Consumer<Runnable> rejectedTaskHandler,
+                        Runnable settledListener) {
+        int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        this.entries = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        this.tracking = resizable || rebalancing;
+        this.rebalancing = rebalancing;
+        this.imbalanceThreshold = Math.max(1, imbalanceThreshold);
+        this.dispatcher = dispatcher;
+        this.rejectedTaskHandler = rejectedTaskHandler;
+        this.settledListener = settledListener;
+        this.slotLoads = new AtomicInteger[0];
+        this.homes = computeHomes(numSlots);
+        this.numSlots = numSlots;
+        growLoads(numSlots);
+        for (int i = 0; i < capacity; i++) {
+            entries.set(i, pack(homes[i], 0));
+        }
+    }
+
+    private static long pack(int slot, int outstanding) {
+        return ((long)slot << 32) | outstanding;
+    }
+
+    private static int slotOf(long entry) {
+        return (int)((entry & ~MOVING) >>> 32);
+    }
+
+    private static int outstandingOf(long entry) {
+        return (int)entry;
+    }
+
+    private static boolean isMoving(long entry) {
+        return (entry & MOVING) != 0;
+    }
+
+    private int[] computeHomes(int numSlots) {
+        int[] result = new int[entries.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = KeyHashing.jump(i, numSlots);
+        }
+
+        return result;
+    }
+
+    private void growLoads(int numSlots) {
+        AtomicInteger[] current = slotLoads;
+        if (current.length < numSlots) {
+            AtomicInteger[] grown = Arrays.copyOf(current, numSlots);
+            for (int i = current.length; i < numSlots; i++) {
+                grown[i] = new AtomicInteger();
+            }
+
+            slotLoads = grown;
+        }
+    }
+
+    /**
+     * Route a task to a slot, or hold it back if its entry is moving.
+     *
+     * @param hash a mixed hash of the task's key
+     * @param task the task to run
+     * @return false if the slot has been shut down along with the table
+     * @throws java.util.concurrent.RejectedExecutionException if the slot's queue is full
+     */
+    public boolean route(int hash, Runnable task) {
+        if (!tracking) {
+            return dispatcher.dispatch(homes[hash & mask], task, -1, false);
+        }
+
+        int target = reserve(hash, task);
+        if (target < 0) {
+            return true;
+        }
+
+        int entry = hash & mask;
+        boolean accepted;
+        try {
+            accepted = dispatcher.dispatch(target, task, entry, false);
+        } catch (RuntimeException e) {
+            // Refused by a full slot, the task will never run
+            release(entry);
+            throw e;
+        }
+
+        // Refused by a slot removed in a concurrent resize, or closed while shutting down
+        return accepted || requeue(List.of(task), List.of(entry));
+    }
+
+    /**
+     * Count a task against its entry and choose its slot without dispatching it, or hold it back
+     * if its entry is moving. The caller must give the task to the slot, with {@link #tagOf(int)}
+     * as its tag, and {@link #release(int)} the entry if it cannot.
+     *
+     * @param hash a mixed hash of the task's key
+     * @param task the task to run
+     * @return the slot for the task, or -1 if it has been held back
+     */
+    public int reserve(int hash, Runnable task) {
+        int entry = hash & mask;
+        if (!tracking) {
+            return homes[entry];
+        }
+
+        while (true) {
+            long current = entries.get(entry);
+            if (isMoving(current)) {
+                if (hold(entry, task)) {
+                    return -1;
+                }
+
+                continue;
+            }
+
+            int slot = slotOf(current);
+            int outstanding = outstandingOf(current);
+            int target = outstanding == 0 ? chooseIdleSlot(entry, slot) : slot;
+            if (entries.compareAndSet(entry, current, pack(target, outstanding + 1))) {
+                if (rebalancing) {
+                    slotLoads[target].incrementAndGet();
+                }
+
+                return target;
+            }
+        }
+    }
+
+    /**
+     * Record that a routed task has run. Releasing the last outstanding task of a moving entry
+     * sends its held tasks to the new slot.
+     *
+     * @param entry index of the entry for the task's key
+     */
+    public void release(int entry) {
+        long previous = entries.getAndDecrement(entry);
+        if (rebalancing) {
+            slotLoads[slotOf(previous)].decrementAndGet();
+        }
+
+        if (isMoving(previous) && outstandingOf(previous) == 1) {
+            finishMove(entry);
+        }
+    }
+
+    /**
+     * Give back reserved tasks which a slot removed by a resize refused. Their entries are marked as
+     * moving, since earlier tasks for the keys may still be queued on the removed slot, and the
+     * tasks are held ahead of anything already held for their entries before their reservations
+     * are released. Every task must be given back before any reservation is released, otherwise
+     * releasing the last one could send later tasks for the key to the new slot first.
+     *
+     * @param tasks   the refused tasks, in the order they were reserved
+     * @param entries the entry of each task
+     * @return false if the table has been shut down, in which case the tasks were released
+     * without being held
+     */
+    public boolean requeue(List<Runnable> tasks, List<Integer> entries) {
+        // Marked before reading the shutdown flag, which is set before the moving entries are
+        // counted, so that the slots cannot be closed under the held tasks
+        entries.forEach(this::markMoving);
+        if (shutdown) {
+            entries.forEach(this::release);
+            return false;
+        }
+
+        synchronized (held) {
+            // Backwards, so that tasks for the same entry end up at the head in their original order
+            for (int i = tasks.size() - 1; i >= 0; i--) {
+                held.computeIfAbsent(entries.get(i), k -> new ArrayDeque<>()).addFirst(tasks.get(i));
+            }
+        }
+
+        entries.forEach(this::release);
+        return true;
+    }
+
+    /**
+     * Change the number of slots. New slots must be able to accept tasks before this is called;
+     * removed slots must keep running until the tasks already given to them have completed.
+     *
+     * @param newNumSlots the new number of slots
+     */
+    public void resize(int newNumSlots) {
+        if (!tracking) {
+            throw new IllegalStateException("Routing table is not resizable");
+        }
+
+        growLoads(newNumSlots);
+        int[] newHomes = computeHomes(newNumSlots);
+        homes = newHomes;
+        numSlots = newNumSlots;
+
+        // Idle entries move on their next task, busy ones must hold new tasks until they drain
+        for (int i = 0; i < newHomes.length; i++) {
+            while (true) {
+                long current = entries.get(i);
+                int slot = slotOf(current);
+                boolean mustMove = rebalancing ? slot >= newNumSlots : slot != newHomes[i];
+                if (isMoving(current) || outstandingOf(current) == 0 || !mustMove) {
+                    break;
+                }
+
+                if (entries.compareAndSet(i, current, current | MOVING)) {
+                    movingEntries.incrementAndGet();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop holding tasks refused by removed slots. Tasks already held, and those for entries still
+     * moving, are sent on as usual.
+     *
+     * @return true if no entry is moving, otherwise the settled listener is called once none is
+     */
+    public boolean shutdown() {
+        shutdown = true;
+        return movingEntries.get() == 0;
+    }
+
+    /**
+     * Record that the slots are being closed, so that held tasks they refuse are given to the
+     * rejected task handler rather than sent elsewhere. Must be called before closing them.
+     */
+    public void close() {
+        shutdown = true;
+        closed = true;
+    }
+
+    /**
+     * Remove all held tasks without running them.
+     *
+     * @return the held tasks
+     */
+    public List<Runnable> drainHeld() {
+        synchronized (held) {
+            List<Runnable> result = new ArrayList<>();
+            held.values().forEach(result::addAll);
+            held.clear();
+            return result;
+        }
+    }
+
+    /**
+     * @param hash a mixed hash of a key
+     * @return the tag to queue the key's reserved tasks with, -1 if tasks are not tracked
+     */
+    public int tagOf(int hash) {
+        return tracking ? hash & mask : -1;
+    }
+
+    /**
+     * @return true if outstanding tasks are counted, so the table can be resized
+     */
+    public boolean isTracking() {
+        return tracking;
+    }
+
+    /**
+     * @param hash a mixed hash of a key
+     * @return the slot the key is currently routed to
+     */
+    public int getSlot(int hash) {
+        return slotOf(entries.get(hash & mask));
+    }
+
+    /**
+     * @param slot a slot index
+     * @return the number of routed tasks queued or running on the slot, only tracked when rebalancing
+     */
+    public int getLoad(int slot) {
+        AtomicInteger[] loads = slotLoads;
+        return slot < loads.length ? loads[slot].get() : 0;
+    }
+
+    private void markMoving(int entry) {
+        while (true) {
+            long current = entries.get(entry);
+            if (isMoving(current) || outstandingOf(current) == 0) {
+                return;
+            }
+
+            if (entries.compareAndSet(entry, current, current | MOVING)) {
+                movingEntries.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private boolean hold(int entry, Runnable task) {
+        synchronized (held) {
+            if (!isMoving(entries.get(entry))) {
+                return false;
+            }
+
+            held.computeIfAbsent(entry, k -> new ArrayDeque<>()).add(task);
+            return true;
+        }
+    }
+
+    private void finishMove(int entry) {
+        Deque<Runnable> tasks;
+        boolean settled = false;
+        synchronized (held) {
+            long current = entries.get(entry);
+            if (!isMoving(current) || outstandingOf(current) != 0) {
+                return;
+            }
+
+            tasks = held.remove(entry);
+            if (tasks == null) {
+                tasks = new ArrayDeque<>();
+            }
+
+            while (true) {
+                // Account for the held tasks before any of them can run, still flagged as moving so
+                // that new tasks keep queuing behind them
+                int target = chooseIdleSlot(entry, slotOf(current));
+                entries.set(entry, MOVING | pack(target, tasks.size()));
+                if (rebalancing) {
+                    slotLoads[target].addAndGet(tasks.size());
+                }
+
+                while (!tasks.isEmpty()) {
+                    if (!dispatcher.dispatch(target, tasks.peek(), entry, true)) {
+                        break;
+                    }
+
+                    tasks.poll();
+                }
+
+                int undelivered = tasks.size();
+                // Until the slots are closed only a slot removed by a concurrent resize refuses
+                boolean removed = undelivered > 0 && !closed;
+                long previous;
+                do {
+                    previous = entries.get(entry);
+                    // A removed slot stays moving, holding the rest until what it was sent has
+                    // run. Otherwise clear the flag.
+                    current = (removed ? previous : previous & ~MOVING) - undelivered;
+                } while (!entries.compareAndSet(entry, previous, current));
+
+                if (rebalancing) {
+                    slotLoads[target].addAndGet(-undelivered);
+                }
+
+                if (!removed) {
+                    settled = movingEntries.decrementAndGet() == 0;
+                    break;
+                }
+
+                if (outstandingOf(current) > 0) {
+                    // The release of the last task sent finishes the move
+                    held.put(entry, tasks);
+                    return;
+                }
+            }
+        }
+
+        if (settled && shutdown) {
+            settledListener.run();
+        }
+
+        // Only left over if the slots were closed under a task which raced with shutting down
+        tasks.forEach(rejectedTaskHandler);
+    }
+
+    private int chooseIdleSlot(int entry, int slot) {
+        if (!rebalancing) {
+            return homes[entry];
+        }
+
+        int current = slot < numSlots ? slot : homes[entry];
+        AtomicInteger[] loads = slotLoads;
+        int load = loads[current].get();
+        if (load < imbalanceThreshold) {
+            return current;
+        }
+
+        int best = current;
+        int bestLoad = load;
+        int count = numSlots;
+        for (int i = 0; i < count; i++) {
+            int candidate = loads[i].get();
+            if (candidate < bestLoad) {
+                best = i;
+                bestLoad = candidate;
+            }
+        }
+
+        return load - bestLoad >= imbalanceThreshold ? best : current;
+    }
+}
@@ -0,0 +1,92 @@
+package com.wilsonak.nairn.hashpool;
+
+import com.wilsonak.nairn.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gauges and latency histograms for one pool of a {@link HashPoolExecutorService}, recorded when
+ * metrics are enabled through {@link HashPoolExecutorService.Builder#metrics(int, int)}.
+ * <p/>
+ * Wait time runs from a task being queued to it starting, run time from it starting to it
+ * finishing, both in nanoseconds.
+ */
+public final class SlotMetrics {
+    private final LongAdder enqueued = new LongAdder();
+    private final AtomicLong dequeued = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+    private final LatencyHistogram runTime = new LatencyHistogram();
+    private final long createdAt = System.nanoTime();
+
+    void onEnqueue() {
+        enqueued.increment();
+    }
+
+    void onEnqueue(int count) {
+        enqueued.add(count);
+    }
+
+    void onRevoke() {
+        enqueued.decrement();
+    }
+
+    void onDequeue() {
+        dequeued.incrementAndGet();
+    }
+
+    void onDequeue(int count) {
+        dequeued.addAndGet(count);
+    }
+
+    void onComplete(long enqueuedAt, long startedAt, long finishedAt) {
+        completed.incrementAndGet();
+        waitTime.record(startedAt - enqueuedAt);
+        runTime.record(finishedAt - startedAt);
+    }
+
+    /**
+     * @return the number of tasks waiting in the queue
+     */
+    public long getQueueDepth() {
+        return Math.max(0, enqueued.sum() - dequeued.get());
+    }
+
+    /**
+     * @return the number of tasks accepted by the pool
+     */
+    public long getSubmittedCount() {
+        return enqueued.sum();
+    }
+
+    /**
+     * @return the number of tasks run to completion, including those which threw
+     */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * @return completed tasks per second since the pool was created
+     */
+    public double getThroughput() {
+        long elapsed = System.nanoTime() - createdAt;
+        return elapsed <= 0 ? 0 : completed.get() * (double)TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    /**
+     * @return time from tasks being queued to starting, in nanoseconds
+     */
+    public LatencyHistogram getWaitTime() {
+        return waitTime;
+    }
+
+    /**
+     * @return time taken to run tasks, in nanoseconds
+     */
+    public LatencyHistogram getRunTime() {
+        return runTime;
+    }
+}
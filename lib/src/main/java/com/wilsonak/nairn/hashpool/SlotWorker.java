@@ -0,0 +1,520 @@
+package com.wilsonak.nairn.hashpool;
+
+import com.wilsonak.nairn.Priority;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * A single threaded {@link ExecutorService} backing one slot of a {@link HashPoolExecutorService}.
+ * <p/>
+ * Tasks are handed to the worker thread through a lock-free {@link MpscLinkedQueue} rather than a
+ * {@code LinkedBlockingQueue}. The worker drains the queue in batches and, when it runs dry, spins
+ * briefly before parking, so a steady stream of tasks is picked up without a park / unpark per task.
+ * The thread is started when the first task arrives.
+ * <p/>
+ * Tasks submitted with a non-negative tag are reported to a completion listener once they have
+ * run, or are dropped, which lets the owning pool track how much work is outstanding per routing entry.
+ * <p/>
+ * Given a capacity the worker uses a {@link BoundedTaskQueue} instead, and applies a
+ * {@link BackpressurePolicy} when it is full. Submitters blocked by {@link BackpressurePolicy#BLOCK}
+ * wait on a {@link Condition} which the worker only signals when someone is waiting.
+ * <p/>
+ * Given a {@link SlotMetrics} each task is wrapped with the time it was queued so the worker can
+ * record wait and run times. Without one nothing extra is allocated or timed.
+ * <p/>
+ * With priority lanes the worker uses a {@link PriorityTaskQueue}, which queues each
+ * {@link PriorityTask} in the lane for its priority and everything else as normal priority.
+ */
+class SlotWorker extends AbstractExecutorService {
+    private static final int RUNNING = 0;
+    private static final int SHUTDOWN = 1;
+    private static final int STOP = 2;
+    private static final int TERMINATED = 3;
+
+    /**
+     * Maximum number of tasks run between checks of the run state.
+     */
+    static final int BATCH_SIZE = 64;
+
+    /**
+     * Number of empty polls the worker spins for before parking.
+     */
+    static final int SPIN_TRIES = 256;
+
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicBoolean parked = new AtomicBoolean();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private final ReentrantLock spaceLock = new ReentrantLock();
+    private final Condition spaceAvailable = spaceLock.newCondition();
+    private final AtomicInteger waitingForSpace = new AtomicInteger();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final TaskQueue.TaskSink runner = this::runTask;
+    private final TaskQueue.TaskSink dropper = this::dropTask;
+    private final TaskQueue queue;
+    private final BackpressurePolicy policy;
+    private final SlotMetrics metrics;
+    private final IntConsumer completionListener;
+    private final Thread thread;
+
+    /**
+     * Initialises a new instance of the {@code SlotWorker} class
+     *
+     * @param threadFactory creates the worker thread
+     */
+    public SlotWorker(ThreadFactory threadFactory) {
+        this(threadFactory, null);
+    }
+
+    /**
+     * Initialises a new instance of the {@code SlotWorker} class
+     *
+     * @param threadFactory      creates the worker thread
+     * @param completionListener called with the tag of each tagged task after it has run, may be null
+     */
+    public SlotWorker(ThreadFactory threadFactory, IntConsumer completionListener) {
+        this(threadFactory, completionListener, 0, BackpressurePolicy.BLOCK, null);
+    }
+
+    /**
+     * Initialises a new instance of the {@code SlotWorker} class
+     *
+     * @param threadFactory      creates the worker thread
+     * @param completionListener called with the tag of each tagged task after it has run, may be null
+     * @param capacity           maximum number of queued tasks, or zero for an unbounded queue
+     * @param policy             what to do when the queue is full
+     * @param metrics            records queue depth and task timings, may be null
+     */
+    public SlotWorker(ThreadFactory threadFactory,
+                      IntConsumer completionListener,
+                      int capacity,
+                      BackpressurePolicy policy,
+                      SlotMetrics metrics) {
+        this(threadFactory, completionListener, capacity, policy, metrics, false);
+    }
+
+    /**
+     * Initialises a new instance of the {@code SlotWorker} class
+     *
+     * @param threadFactory      creates the worker thread
+     * @param completionListener called with the tag of each tagged task after it has run, may be null
+     * @param capacity           maximum number of queued tasks, or zero for an unbounded queue. With
+     *                           priority lanes the maximum for each lane.
+     * @param policy             what to do when the queue is full
+     * @param metrics            records queue depth and task timings, may be null
+     * @param priorityLanes      true to queue tasks by priority
+     */
+    public SlotWorker(ThreadFactory threadFactory,
+                      IntConsumer completionListener,
+                      int capacity,
+                      BackpressurePolicy policy,
+                      SlotMetrics metrics,
+                      boolean priorityLanes) {
+        if (priorityLanes) {
+            this.queue = new PriorityTaskQueue(capacity, SlotWorker::laneOf);
+        } else {
+            this.queue = capacity > 0 ? new BoundedTaskQueue(capacity) : new UnboundedTaskQueue();
+        }
+
+        this.policy = policy;
+        this.metrics = metrics;
+        this.completionListener = completionListener;
+        this.thread = threadFactory.newThread(this::runWorker);
+    }
+
+    private static int laneOf(Runnable task) {
+        if (task instanceof TimedTask) {
+            task = ((TimedTask)task).task;
+        }
+
+        return task instanceof PriorityTask ? ((PriorityTask)task).getPriority().ordinal() : Priority.NORMAL.ordinal();
+    }
+
+    private void ensureStarted() {
+        if (!started.get() && started.compareAndSet(false, true)) {
+            thread.start();
+        }
+    }
+
+    private void wake() {
+        if (parked.get() && parked.compareAndSet(true, false)) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void advanceState(int target) {
+        int current;
+        while ((current = state.get()) < target && !state.compareAndSet(current, target)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private void runWorker() {
+        try {
+            int spins = 0;
+            while (state.get() < STOP) {
+                if (drainBatch() > 0) {
+                    spins = 0;
+                } else if (queue.isEmpty() && state.compareAndSet(SHUTDOWN, TERMINATED)) {
+                    // Settled with a compare-and-set so that a concurrent reopen either wins or fails
+                    break;
+                } else if (spins < SPIN_TRIES) {
+                    spins++;
+                    Thread.onSpinWait();
+                } else {
+                    spins = 0;
+                    parked.set(true);
+                    if (queue.isEmpty() && state.get() == RUNNING) {
+                        LockSupport.park(this);
+                    }
+
+                    parked.set(false);
+                }
+            }
+        } finally {
+            state.set(TERMINATED);
+            terminated.countDown();
+        }
+    }
+
+    private int drainBatch() {
+        int count = 0;
+        while (count < BATCH_SIZE && state.get() < STOP && queue.poll(runner)) {
+            count++;
+        }
+
+        return count;
+    }
+
+    private void signalSpace() {
+        spaceLock.lock();
+        try {
+            spaceAvailable.signalAll();
+        } finally {
+            spaceLock.unlock();
+        }
+    }
+
+    private void runTask(Runnable task, int tag) {
+        if (waitingForSpace.get() > 0) {
+            signalSpace();
+        }
+
+        // Don't let an interrupt aimed at the previous task leak into the next one
+        if (state.get() < STOP) {
+            Thread.interrupted();
+        }
+
+        if (metrics == null) {
+            invoke(task, tag);
+            return;
+        }
+
+        TimedTask timed = (TimedTask)task;
+        metrics.onDequeue();
+        long startedAt = System.nanoTime();
+        invoke(timed.task, tag);
+        metrics.onComplete(timed.enqueuedAt, startedAt, System.nanoTime());
+    }
+
+    private void invoke(Runnable task, int tag) {
+        try {
+            task.run();
+        } catch (Throwable e) {
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        } finally {
+            if (tag >= 0 && completionListener != null) {
+                completionListener.accept(tag);
+            }
+        }
+    }
+
+    private void dropTask(Runnable task, int tag) {
+        droppedCount.incrementAndGet();
+        if (metrics != null) {
+            metrics.onDequeue();
+        }
+
+        if (tag >= 0 && completionListener != null) {
+            completionListener.accept(tag);
+        }
+    }
+
+    private MpscLinkedQueue.Node<Runnable> offer(Runnable task, int tag, boolean overflow) {
+        MpscLinkedQueue.Node<Runnable> node = queue.offer(task, tag);
+        if (node != null) {
+            return node;
+        }
+
+        if (overflow) {
+            // Already accepted by the pool, waiting here could deadlock two workers
+            return queue.add(task, tag);
+        }
+
+        switch (policy) {
+            case REJECT:
+                throw new RejectedExecutionException("Slot worker queue is full");
+            case DROP_OLDEST:
+                while ((node = queue.offer(task, tag)) == null) {
+                    queue.dropOldest(task, dropper);
+                }
+
+                return node;
+            default:
+                return awaitSpace(task, tag);
+        }
+    }
+
+    private MpscLinkedQueue.Node<Runnable> awaitSpace(Runnable task, int tag) {
+        if (Thread.currentThread() == thread) {
+            // Only this thread makes space, waiting for it would never end
+            throw new RejectedExecutionException("Slot worker queue is full and cannot wait on its own thread");
+        }
+
+        // The tasks filling the queue may not have woken the worker yet, as in a batch
+        wake();
+        spaceLock.lock();
+        waitingForSpace.incrementAndGet();
+        try {
+            MpscLinkedQueue.Node<Runnable> node;
+            while ((node = queue.offer(task, tag)) == null) {
+                if (state.get() != RUNNING) {
+                    throw new RejectedExecutionException("Slot worker has been shut down");
+                }
+
+                spaceAvailable.await();
+            }
+
+            return node;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for queue space", e);
+        } finally {
+            waitingForSpace.decrementAndGet();
+            spaceLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of tasks discarded by {@link BackpressurePolicy#DROP_OLDEST}
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the metrics recorded by this worker, or null if it has none
+     */
+    public SlotMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        execute(task, -1);
+    }
+
+    /**
+     * Queue a task, reporting the tag to the completion listener once it has run.
+     *
+     * @param task the task to run
+     * @param tag  reported on completion if non-negative
+     */
+    public void execute(Runnable task, int tag) {
+        execute(task, tag, false);
+    }
+
+    /**
+     * Queue a task, reporting the tag to the completion listener once it has run.
+     *
+     * @param task     the task to run
+     * @param tag      reported on completion if non-negative
+     * @param overflow true if the task has already been accepted by the pool and must be queued
+     *                 even if the queue is full
+     */
+    public void execute(Runnable task, int tag, boolean overflow) {
+        Objects.requireNonNull(task);
+        if (state.get() != RUNNING) {
+            throw new RejectedExecutionException("Slot worker has been shut down");
+        }
+
+        // Wake the worker before waiting for space in case it has not been started yet
+        ensureStarted();
+        Runnable queued = metrics == null ? task : new TimedTask(task);
+        MpscLinkedQueue.Node<Runnable> node = offer(queued, tag, overflow);
+        if (metrics != null) {
+            metrics.onEnqueue();
+        }
+
+        // Lost a race with shutdown, take the task back unless the worker already has it
+        if (state.get() != RUNNING && queue.revoke(queued, node)) {
+            if (metrics != null) {
+                metrics.onRevoke();
+            }
+
+            throw new RejectedExecutionException("Slot worker has been shut down");
+        }
+
+        wake();
+    }
+
+    /**
+     * Queue a group of tasks, in order, and wake the worker once. When there is room for the whole
+     * group it is added in one operation, otherwise each task is offered in turn under the
+     * backpressure policy.
+     *
+     * @param tasks    the tasks to run
+     * @param tags     reported on completion if non-negative
+     * @param count    number of tasks to queue from the start of the arrays
+     * @param rejected given any tasks that could not be queued, because the worker was shut down
+     *                 or its queue was full
+     */
+    public void executeAll(Runnable[] tasks, int[] tags, int count, TaskQueue.TaskSink rejected) {
+        if (count == 0) {
+            return;
+        }
+
+        if (state.get() != RUNNING) {
+            for (int i = 0; i < count; i++) {
+                rejected.accept(tasks[i], tags[i]);
+            }
+
+            return;
+        }
+
+        ensureStarted();
+        Runnable[] queued = tasks;
+        if (metrics != null) {
+            queued = new Runnable[count];
+            for (int i = 0; i < count; i++) {
+                queued[i] = new TimedTask(tasks[i]);
+            }
+        }
+
+        // Null for each task that was refused
+        List<MpscLinkedQueue.Node<Runnable>> nodes = new ArrayList<>(count);
+        int accepted = count;
+        MpscLinkedQueue.Node<Runnable> first = queue.offerAll(queued, tags, count);
+        if (first != null) {
+            for (MpscLinkedQueue.Node<Runnable> node = first; nodes.size() < count; node = node.next()) {
+                nodes.add(node);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                try {
+                    nodes.add(offer(queued[i], tags[i], false));
+                } catch (RejectedExecutionException e) {
+                    nodes.add(null);
+                    accepted--;
+                    rejected.accept(tasks[i], tags[i]);
+                }
+            }
+        }
+
+        if (metrics != null) {
+            metrics.onEnqueue(accepted);
+        }
+
+        // Lost a race with shutdown, take back whatever the worker has not got to
+        if (state.get() != RUNNING) {
+            for (int i = 0; i < count; i++) {
+                MpscLinkedQueue.Node<Runnable> node = nodes.get(i);
+                if (node != null && queue.revoke(queued[i], node)) {
+                    if (metrics != null) {
+                        metrics.onRevoke();
+                    }
+
+                    rejected.accept(tasks[i], tags[i]);
+                }
+            }
+        }
+
+        wake();
+    }
+
+    @Override
+    public void shutdown() {
+        advanceState(SHUTDOWN);
+
+        // Start the thread even if nothing was submitted so that it can drain and terminate
+        ensureStarted();
+        wake();
+        signalSpace();
+    }
+
+    /**
+     * Take tasks again after {@link #shutdown()}, as long as the worker is still running the tasks
+     * it was given before.
+     *
+     * @return false if the worker has already terminated or been stopped
+     */
+    public boolean reopen() {
+        return state.compareAndSet(SHUTDOWN, RUNNING);
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        advanceState(STOP);
+        ensureStarted();
+        thread.interrupt();
+        wake();
+        signalSpace();
+        List<Runnable> pending = queue.drainAll();
+        if (metrics != null) {
+            metrics.onDequeue(pending.size());
+        }
+
+        return pending.stream()
+                      .map(task -> metrics == null ? task : ((TimedTask)task).task)
+                      .map(PriorityTask::unwrap)
+                      .collect(Collectors.toList());
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return state.get() != RUNNING;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return state.get() == TERMINATED;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    /**
+     * A queued task and the time it was queued.
+     */
+    private static class TimedTask implements Runnable {
+        private final Runnable task;
+        private final long enqueuedAt = System.nanoTime();
+
+        public TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+}
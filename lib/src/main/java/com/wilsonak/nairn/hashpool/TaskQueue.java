@@ -0,0 +1,81 @@
+package com.wilsonak.nairn.hashpool;
+
+import java.util.List;
+
+/**
+ * The queue between submitters and the thread of a {@link SlotWorker}. Any thread may offer tasks,
+ * only the worker thread drains them. Each task carries an {@code int} tag.
+ */
+interface TaskQueue {
+    /**
+     * Receives tasks taken from the queue.
+     */
+    interface TaskSink {
+        void accept(Runnable task, int tag);
+    }
+
+    /**
+     * @param task the task to add
+     * @param tag  carried alongside the task
+     * @return the node holding the task, or null if the queue is full
+     */
+    MpscLinkedQueue.Node<Runnable> offer(Runnable task, int tag);
+
+    /**
+     * Add a group of tasks in one operation, keeping them in order.
+     *
+     * @param tasks the tasks to add
+     * @param tags  carried alongside the tasks
+     * @param count number of tasks to add from the start of the arrays
+     * @return the node holding the first task, the rest follow it, or null if there is not room
+     * for all of the tasks, in which case none are added
+     */
+    MpscLinkedQueue.Node<Runnable> offerAll(Runnable[] tasks, int[] tags, int count);
+
+    /**
+     * Add a task even if the queue is full.
+     *
+     * @param task the task to add
+     * @param tag  carried alongside the task
+     * @return the node holding the task
+     */
+    MpscLinkedQueue.Node<Runnable> add(Runnable task, int tag);
+
+    /**
+     * Take the oldest task. Only called by the worker thread.
+     *
+     * @param sink receives the task
+     * @return false if there was nothing to take
+     */
+    boolean poll(TaskSink sink);
+
+    /**
+     * Take the oldest task from any thread, to make room in a full queue.
+     *
+     * @param task the task which needs the room
+     * @param sink receives the task
+     * @return false if there was nothing to take
+     */
+    boolean dropOldest(Runnable task, TaskSink sink);
+
+    /**
+     * Take back a task before the worker gets to it.
+     *
+     * @param task a task offered by the calling thread
+     * @param node the node returned when the task was offered
+     * @return true if the task was taken back, false if it had already been taken
+     */
+    boolean revoke(Runnable task, MpscLinkedQueue.Node<Runnable> node);
+
+    /**
+     * Take every task in the queue from any thread.
+     *
+     * @return the tasks, oldest first
+     */
+    List<Runnable> drainAll();
+
+    /**
+     * @return true if there are no tasks in the queue or being added to it
+     */
+    boolean isEmpty();
+}
@@ -0,0 +1,57 @@
+package com.wilsonak.nairn.hashpool;
+
+import java.util.List;
+
+/**
+ * An unbounded {@link TaskQueue} over a lock-free {@link MpscLinkedQueue}.
+ */
+class UnboundedTaskQueue implements TaskQueue {
+    private final MpscLinkedQueue<Runnable> queue = new MpscLinkedQueue<>();
+
+    @Override
+    public MpscLinkedQueue.Node<Runnable> offer(Runnable task, int tag) {
+        return queue.offer(task, tag);
+    }
+
+    @Override
+    public MpscLinkedQueue.Node<Runnable> offerAll(Runnable[] tasks, int[] tags, int count) {
+        return queue.offerAll(tasks, tags, count);
+    }
+
+    @Override
+    public MpscLinkedQueue.Node<Runnable> add(Runnable task, int tag) {
+        return queue.offer(task, tag);
+    }
+
+    @Override
+    public boolean poll(TaskSink sink) {
+        MpscLinkedQueue.Node<Runnable> node = queue.poll();
+        if (node == null) {
+            return false;
+        }
+
+        sink.accept(node.take(), node.getTag());
+        return true;
+    }
+
+    @Override
+    public boolean dropOldest(Runnable task, TaskSink sink) {
+        // Never full, nothing ever needs to be dropped
+        return false;
+    }
+
+    @Override
+    public boolean revoke(Runnable task, MpscLinkedQueue.Node<Runnable> node) {
+        return queue.revoke(node);
+    }
+
+    @Override
+    public List<Runnable> drainAll() {
+        return queue.drain();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+}
@@ -1,24 +1,34 @@
 package com.wilsonak.nairn.throttler;
 
+import com.wilsonak.nairn.HashedWheelTimer;
 import com.wilsonak.nairn.RingBuffer;
 
 import java.time.temporal.ChronoUnit;
 import java.util.Queue;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 /**
  * Throttle calls to a {@code Consumer} at the specified rate, hold
  * skipped calls in a buffer to be called back later.
+ * <p/>
+ * Buffered calls are timed by a {@link HashedWheelTimer}, by default the shared timer, so any
+ * number of instances share one timer thread. The timer only hands each call on to an
+ * {@code Executor}, by default the common {@link ForkJoinPool}, so a slow consumer does not hold
+ * up the timer. Buffered calls are made one at a time, by at most one task on the executor, so
+ * a backlog never ties up more than one of the executor's threads.
  *
  * @param <T> type of the parameter to be consumed
  */
 public class ThrottledBufferedConsumer <T> implements Consumer<T> {
     private final Object bufferLocker = new Object();
+    private final AtomicInteger pendingReads = new AtomicInteger();
     private final ThrottleChecker throttleChecker;
-    private final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+    private final HashedWheelTimer timer;
+    private final Executor executor;
     private final Queue<T> buffer;
     private final Consumer<T> consumer;
 
@@ -31,6 +41,40 @@ public class ThrottledBufferedConsumer <T> implements Consumer<T> {
      * @param backlog     number of items to queue while throttling
      */
     public ThrottledBufferedConsumer(Consumer<T> consumer, int maxInPeriod, ChronoUnit timeUnit, int backlog) {
+        this(consumer, maxInPeriod, timeUnit, backlog, HashedWheelTimer.getShared());
+    }
+
+    /**
+     * Initialises a new instance of the {@code ThrottledBufferedConsumer} class
+     *
+     * @param consumer    consumer call to throttle
+     * @param maxInPeriod number of calls per time unit
+     * @param timeUnit    time units to throttle by
+     * @param backlog     number of items to queue while throttling
+     * @param timer       times the buffered calls
+     */
+    public ThrottledBufferedConsumer(Consumer<T> consumer, int maxInPeriod, ChronoUnit timeUnit, int backlog, HashedWheelTimer timer) {
+        this(consumer, maxInPeriod, timeUnit, backlog, timer, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Initialises a new instance of the {@code ThrottledBufferedConsumer} class
+     *
+     * @param consumer    consumer call to throttle
+     * @param maxInPeriod number of calls per time unit
+     * @param timeUnit    time units to throttle by
+     * @param backlog     number of items to queue while throttling
+     * @param timer       times the buffered calls
+     * @param executor    makes the buffered calls
+     */
+    public ThrottledBufferedConsumer(Consumer<T> consumer,
+                                     int maxInPeriod,
+                                     ChronoUnit timeUnit,
+                                     int backlog,
+                                     HashedWheelTimer timer,
+                                     Executor executor) {
+        this.timer = timer;
+        this.executor = executor;
         this.throttleChecker = new ThrottleChecker(maxInPeriod, timeUnit);
         this.buffer = new RingBuffer<>(backlog);
         this.consumer = consumer;
@@ -57,8 +101,36 @@ public class ThrottledBufferedConsumer <T> implements Consumer<T> {
     }
 
     /**
-     * Called by the scheduler to read the next item from the buffer. Don't bother
-     * prioritising queue items in this case.
+     * Called by the timer for each buffered item. Only the first of any number of reads due at
+     * once hands a drain to the executor, the rest are counted for it to make.
+     */
+    private void requestRead() {
+        if (pendingReads.getAndIncrement() == 0) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Called on the executor to make the reads requested by the timer, one at a time so that
+     * buffered items are not reordered by the executor's threads.
+     */
+    private void drain() {
+        try {
+            do {
+                readBuffer();
+            } while (pendingReads.decrementAndGet() != 0);
+        } catch (RuntimeException | Error e) {
+            // Leave the rest to another drain rather than strand them behind the failed read
+            if (pendingReads.decrementAndGet() != 0) {
+                executor.execute(this::drain);
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Read the next item from the buffer. Don't bother prioritising queue items in this case.
      */
     private void readBuffer() {
         T item;
@@ -79,7 +151,7 @@ public class ThrottledBufferedConsumer <T> implements Consumer<T> {
                 buffer.offer(t);
             }
 
-            scheduler.schedule(this::readBuffer, 1, TimeUnit.of(throttleChecker.getTimeUnit()));
+            timer.schedule(this::requestRead, 1, TimeUnit.of(throttleChecker.getTimeUnit()));
         }
     }
 
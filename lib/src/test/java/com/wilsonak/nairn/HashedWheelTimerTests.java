@@ -0,0 +1,146 @@
+package com.wilsonak.nairn;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link HashedWheelTimer} class.
+ */
+public class HashedWheelTimerTests {
+    /**
+     * Tasks should run in deadline order, no earlier than their delay, including those more than one turn of the
+     * wheel away.
+     */
+    @Test
+    public void testSchedule() throws Exception {
+        try (var timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, null)) {
+            var results = new CopyOnWriteArrayList<Integer>();
+            var done = new CountDownLatch(3);
+            long start = System.nanoTime();
+            List<Long> times = new CopyOnWriteArrayList<>();
+            for (int delay : new int[] {120, 10, 60}) {
+                timer.schedule(() -> {
+                    times.add(System.nanoTime() - start);
+                    results.add(delay);
+                    done.countDown();
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+
+            assertTrue("Tasks not run", done.await(1, TimeUnit.SECONDS));
+            assertEquals("Wrong order", List.of(10, 60, 120), results);
+            for (int i = 0; i < 3; i++) {
+                assertTrue("Task run early", times.get(i) >= TimeUnit.MILLISECONDS.toNanos(results.get(i)));
+            }
+
+            assertEquals("Wrong pending count", 0, timer.getPendingCount());
+        }
+    }
+
+    /**
+     * Cancelled tasks should not run, and tasks which have run cannot be cancelled.
+     */
+    @Test
+    public void testCancel() throws Exception {
+        try (var timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, null)) {
+            var results = new CopyOnWriteArrayList<String>();
+            var ran = new CountDownLatch(1);
+            var cancelled = timer.schedule(() -> results.add("cancelled"), 30, TimeUnit.MILLISECONDS);
+            var kept = timer.schedule(() -> {
+                results.add("kept");
+                ran.countDown();
+            }, 20, TimeUnit.MILLISECONDS);
+
+            assertTrue("Wrong cancel result", cancelled.cancel());
+            assertFalse("Cancelled twice", cancelled.cancel());
+            assertTrue("Task not run", ran.await(1, TimeUnit.SECONDS));
+            Thread.sleep(50);
+
+            assertEquals("Wrong tasks run", List.of("kept"), results);
+            assertTrue("Not cancelled", cancelled.isCancelled());
+            assertTrue("Not expired", kept.isExpired());
+            assertFalse("Cancelled after running", kept.cancel());
+        }
+    }
+
+    /**
+     * An exception from one task should be reported and not stop the timer.
+     */
+    @Test
+    public void testTaskException() throws Exception {
+        var errors = new CopyOnWriteArrayList<Throwable>();
+        try (var timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, errors::add)) {
+            var ran = new CountDownLatch(1);
+            timer.schedule(() -> {
+                throw new IllegalStateException();
+            }, 5, TimeUnit.MILLISECONDS);
+            timer.schedule(ran::countDown, 20, TimeUnit.MILLISECONDS);
+
+            assertTrue("Timer stopped by exception", ran.await(1, TimeUnit.SECONDS));
+            assertEquals("Wrong number of errors", 1, errors.size());
+        }
+    }
+
+    /**
+     * Without an error callback, exceptions from tasks should go to the uncaught exception handler.
+     */
+    @Test
+    public void testTaskExceptionWithoutCallback() throws Exception {
+        var errors = new CopyOnWriteArrayList<Throwable>();
+        var handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((t, e) -> errors.add(e));
+        try (var timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, null)) {
+            var ran = new CountDownLatch(1);
+            timer.schedule(() -> {
+                throw new IllegalStateException();
+            }, 5, TimeUnit.MILLISECONDS);
+            timer.schedule(ran::countDown, 20, TimeUnit.MILLISECONDS);
+
+            assertTrue("Timer stopped by exception", ran.await(1, TimeUnit.SECONDS));
+            assertEquals("Wrong number of errors", 1, errors.size());
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+    }
+
+    /**
+     * A task closing its own timer should not wait for itself, and no further tasks should run.
+     */
+    @Test
+    public void testCloseFromTask() throws Exception {
+        var timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, null);
+        var closed = new CountDownLatch(1);
+        var results = new CopyOnWriteArrayList<String>();
+        timer.schedule(() -> {
+            timer.close();
+            closed.countDown();
+        }, 5, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> results.add("late"), 50, TimeUnit.MILLISECONDS);
+
+        assertTrue("Close from task did not return", closed.await(1, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals("Task run after close", List.of(), results);
+        assertThrows(IllegalStateException.class, () -> timer.schedule(() -> {}, 5, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testSharedTimers() {
+        assertThrows(IllegalStateException.class, () -> HashedWheelTimer.getShared().close());
+        assertThrows(IllegalStateException.class, () -> HashedWheelTimer.getSharedCoarse().close());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testScheduleAfterClose() {
+        var timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, null);
+        timer.close();
+        timer.schedule(() -> {}, 5, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,51 @@
+package com.wilsonak.nairn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@link KeyHashing} class.
+ */
+public class KeyHashingTests {
+    @Test
+    public void testIndexInRange() {
+        for (int size : new int[] { 1, 3, 8, 12, 64 }) {
+            for (long key = -1000; key < 1000; key++) {
+                int index = KeyHashing.index(KeyHashing.mix(key), size);
+                assertTrue("Index out of range", index >= 0 && index < size);
+            }
+        }
+    }
+
+    /**
+     * Sequential keys should spread evenly over the slots, power of two or not.
+     */
+    @Test
+    public void testSequentialKeysSpread() {
+        for (int size : new int[] { 7, 8 }) {
+            int[] counts = new int[size];
+            int keys = 70000;
+            for (long key = 0; key < keys; key++) {
+                counts[KeyHashing.index(KeyHashing.mix(key), size)]++;
+            }
+
+            for (int count : counts) {
+                assertEquals("Uneven spread", keys / size, count, keys / size * 0.05);
+            }
+        }
+    }
+
+    @Test
+    public void testSimilarStringsSpread() {
+        int size = 16;
+        int[] counts = new int[size];
+        for (int i = 0; i < 16000; i++) {
+            counts[KeyHashing.index(KeyHashing.mix(("ORDER-" + i).hashCode()), size)]++;
+        }
+
+        for (int count : counts) {
+            assertEquals("Uneven spread", 1000, count, 100);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.wilsonak.nairn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@link LatencyHistogram} class.
+ */
+public class LatencyHistogramTests {
+    @Test
+    public void testEmpty() {
+        var histogram = new LatencyHistogram();
+        assertEquals("Wrong count", 0, histogram.getCount());
+        assertEquals("Wrong percentile", 0, histogram.getValueAtPercentile(99));
+        assertEquals("Wrong mean", 0, histogram.getMean(), 0);
+    }
+
+    /**
+     * Percentiles should be within the histogram's precision at every magnitude.
+     */
+    @Test
+    public void testPercentilesWithinPrecision() {
+        for (long scale : new long[] { 1, 1000, 1_000_000, 1_000_000_000L }) {
+            var histogram = new LatencyHistogram();
+            for (long i = 1; i <= 1000; i++) {
+                histogram.record(i * scale);
+            }
+
+            assertEquals("Wrong count", 1000, histogram.getCount());
+            assertEquals("Wrong max", 1000 * scale, histogram.getMax());
+            for (double percentile : new double[] { 50, 90, 99, 100 }) {
+                double expected = percentile * 10 * scale;
+                double actual = histogram.getValueAtPercentile(percentile);
+                assertTrue("Wrong value at " + percentile, Math.abs(actual - expected) <= expected * 0.035);
+            }
+        }
+    }
+
+    @Test
+    public void testExtremeValues() {
+        var histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals("Wrong low percentile", 0, histogram.getValueAtPercentile(50));
+        assertEquals("Wrong high percentile", Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testReset() {
+        var histogram = new LatencyHistogram();
+        histogram.record(42);
+        histogram.reset();
+        assertEquals("Wrong count", 0, histogram.getCount());
+        assertEquals("Wrong max", 0, histogram.getMax());
+    }
+}
@@ -1,9 +1,11 @@
 package com.wilsonak.nairn.cache;
 
+import com.wilsonak.nairn.HashedWheelTimer;
 import org.junit.Test;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
@@ -85,4 +87,44 @@ public class CacheFunctionTests {
         cache.clear();
         assertEquals("Wrong cache size after clear", 0, cache.size());
     }
+
+    /**
+     * Results should be recalculated once they expire.
+     */
+    @Test
+    public void testExpiry() throws Exception {
+        var callCount = new AtomicInteger(0);
+        try (var timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 64, null)) {
+            var cache = new CacheFunction<Integer, Integer>(i -> {
+                callCount.incrementAndGet();
+                return i * i;
+            }, 50, TimeUnit.MILLISECONDS, timer);
+
+            assertEquals("Wrong result", 4, (int)cache.apply(2));
+            assertEquals("Wrong result", 4, (int)cache.apply(2));
+            assertEquals("Wrong call count", 1, callCount.get());
+
+            Thread.sleep(150);
+            assertEquals("Result not expired", 0, cache.size());
+            assertEquals("Wrong result", 4, (int)cache.apply(2));
+            assertEquals("Wrong call count", 2, callCount.get());
+        }
+    }
+
+    /**
+     * Clearing the cache should cancel the expiry of the results cleared.
+     */
+    @Test
+    public void testClearCancelsExpiry() throws Exception {
+        try (var timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 64, null)) {
+            var cache = new CacheFunction<Integer, Integer>(i -> i * i, 1, TimeUnit.MINUTES, timer);
+            IntStream.rangeClosed(1, 5).forEach(cache::apply);
+            Thread.sleep(20);
+            assertEquals("Wrong pending count", 5, timer.getPendingCount());
+
+            cache.clear();
+            Thread.sleep(20);
+            assertEquals("Expiry not cancelled", 0, timer.getPendingCount());
+        }
+    }
 }
@@ -0,0 +1,54 @@
+package com.wilsonak.nairn.eventbus;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link DuplicateFilter} class
+ */
+public class DuplicateFilterTests {
+    /**
+     * A key should be a duplicate for the length of the window and forgotten after it.
+     */
+    @Test
+    public void testWindow() {
+        var clock = new AtomicLong();
+        var filter = new DuplicateFilter(Event::getId, 100, 10, 4, clock::get);
+
+        assertFalse("First event is a duplicate", filter.isDuplicate(new Person("ALLAN", 21, "London")));
+        assertTrue("Repeat not found", filter.isDuplicate(new Person("ALLAN", 22, "London")));
+        assertFalse("Other key is a duplicate", filter.isDuplicate(new Person("BRIAN", 30, "Leeds")));
+
+        clock.set(99);
+        assertTrue("Repeat forgotten within window", filter.isDuplicate(new Person("ALLAN", 23, "London")));
+
+        clock.set(125);
+        assertFalse("Repeat remembered after window", filter.isDuplicate(new Person("ALLAN", 24, "London")));
+        assertTrue("Key not remembered again", filter.isDuplicate(new Person("ALLAN", 25, "London")));
+
+        clock.set(10_000);
+        assertFalse("Key remembered after long gap", filter.isDuplicate(new Person("ALLAN", 26, "London")));
+    }
+
+    /**
+     * Keys beyond the maximum should pass without being remembered, and null keys are never duplicates.
+     */
+    @Test
+    public void testFullAndNullKeys() {
+        var filter = new DuplicateFilter(Event::getId, 1_000_000_000L, 2, 1, () -> 0L);
+        for (int i = 0; i < 5; i++) {
+            assertFalse("New key is a duplicate", filter.isDuplicate(new Person("ID" + i, 21, "London")));
+        }
+
+        assertTrue("Remembered key not found", filter.isDuplicate(new Person("ID1", 21, "London")));
+        assertFalse("Key beyond maximum remembered", filter.isDuplicate(new Person("ID4", 21, "London")));
+
+        var byAddress = new DuplicateFilter(e -> null, 1_000_000_000L, 2, 1, () -> 0L);
+        assertFalse("Null key is a duplicate", byAddress.isDuplicate(new Person("ALLAN", 21, "London")));
+        assertFalse("Null key is a duplicate", byAddress.isDuplicate(new Person("ALLAN", 21, "London")));
+    }
+}
@@ -0,0 +1,190 @@
+package com.wilsonak.nairn.eventbus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the {@link EventBridgeSender} and {@link EventBridgeReceiver} classes
+ */
+public class EventBridgeTests {
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("bridge");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * Every receiver should get every forwarded event, with each identifier's events in order.
+     */
+    @Test
+    public void testFanOut() throws Exception {
+        int events = 5000;
+        List<Map<String, List<Integer>>> results = new ArrayList<>();
+        List<EventBridgeReceiver> receivers = new ArrayList<>();
+        List<Path> peers = new ArrayList<>();
+        CountDownLatch received = new CountDownLatch(events * 2);
+        for (int i = 0; i < 2; i++) {
+            Map<String, List<Integer>> result = new ConcurrentHashMap<>();
+            EventBus remote = EventBus.newSingleThreadedEventBus();
+            remote.addSubscriber(Person.class, p -> {
+                result.computeIfAbsent(p.getName(), k -> new CopyOnWriteArrayList<>()).add(p.getAge());
+                received.countDown();
+            });
+
+            Path socket = directory.resolve("bus" + i + ".sock");
+            receivers.add(new EventBridgeReceiver(remote, socket, new PersonCodec(), null));
+            results.add(result);
+            peers.add(socket);
+        }
+
+        EventBus local = EventBus.newSingleThreadedEventBus();
+        try (var sender = new EventBridgeSender(local, new PersonCodec(), peers, null)) {
+            sender.forward(Person.class);
+            assertEquals("Wrong number of peers", 2, sender.getPeerCount());
+            for (int age = 0; age < events; age++) {
+                local.publishEvent(new Person("ID" + age % 10, age, "London"));
+            }
+
+            assertTrue("Events not received", received.await(5, TimeUnit.SECONDS));
+        }
+
+        for (Map<String, List<Integer>> result : results) {
+            assertEquals("Wrong number of identifiers", 10, result.size());
+            for (List<Integer> ages : result.values()) {
+                assertEquals("Wrong number of events", events / 10, ages.size());
+                for (int i = 1; i < ages.size(); i++) {
+                    assertTrue("Wrong order", ages.get(i - 1) < ages.get(i));
+                }
+            }
+        }
+
+        receivers.forEach(EventBridgeReceiver::close);
+        assertFalse("Socket file not removed", Files.exists(peers.get(0)));
+    }
+
+    /**
+     * Events larger than the receiver's buffer should arrive intact, and closing the forwarding
+     * subscription should stop further events.
+     */
+    @Test
+    public void testLargeEventAndStopForwarding() throws Exception {
+        List<Person> received = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(2);
+        EventBus remote = EventBus.newSingleThreadedEventBus();
+        remote.addSubscriber(Person.class, p -> {
+            received.add(p);
+            latch.countDown();
+        });
+
+        Path socket = directory.resolve("bus.sock");
+        try (var receiver = new EventBridgeReceiver(remote, socket, new PersonCodec(), null)) {
+            EventBus local = EventBus.newSingleThreadedEventBus();
+            try (var sender = new EventBridgeSender(local, new PersonCodec(), List.of(socket), null)) {
+                Subscription forwarding = sender.forward(Person.class);
+                String address = "x".repeat(200_000);
+                local.publishEvent(new Person("ALLAN", 21, address));
+                local.publishEvent(new Person("BRIAN", 30, "Leeds"));
+                assertTrue("Events not received", latch.await(5, TimeUnit.SECONDS));
+                assertEquals("Wrong number of connections", 1, receiver.getConnectionCount());
+
+                forwarding.close();
+                local.publishEvent(new Person("CAROL", 40, "York"));
+            }
+
+            assertEquals("Wrong large event", 200_000, received.get(0).getAddress().length());
+            assertEquals("Wrong events", List.of("ALLAN", "BRIAN"), received.stream().map(Person::getName).collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * A peer which stops reading should be dropped after the write timeout without holding up the others.
+     */
+    @Test
+    public void testStalledPeerDropped() throws Exception {
+        int events = 50;
+        List<Throwable> errs = new CopyOnWriteArrayList<>();
+        CountDownLatch received = new CountDownLatch(events);
+        EventBus remote = EventBus.newSingleThreadedEventBus();
+        remote.addSubscriber(Person.class, p -> received.countDown());
+
+        Path socket = directory.resolve("bus.sock");
+        Path stalled = directory.resolve("stalled.sock");
+        try (var receiver = new EventBridgeReceiver(remote, socket, new PersonCodec(), null);
+             var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            // Connections are queued by the socket but never accepted or read
+            server.bind(UnixDomainSocketAddress.of(stalled));
+
+            EventBus local = EventBus.newSingleThreadedEventBus();
+            try (var sender = new EventBridgeSender(local, new PersonCodec(), List.of(stalled, socket), errs::add, 1024, 200)) {
+                sender.forward(Person.class);
+                String address = "x".repeat(100_000);
+                for (int age = 0; age < events; age++) {
+                    local.publishEvent(new Person("ALLAN", age, address));
+                }
+
+                assertTrue("Events not received", received.await(5, TimeUnit.SECONDS));
+                assertEquals("Wrong number of peers", 1, sender.getPeerCount());
+                assertEquals("Wrong number of connections", 1, receiver.getConnectionCount());
+            }
+
+            assertEquals("Wrong number of errors", 1, errs.size());
+            assertTrue("Wrong error", errs.get(0) instanceof IOException);
+        }
+    }
+
+    /**
+     * A sender whose frame is longer than the receiver allows should be disconnected.
+     */
+    @Test
+    public void testFrameTooLong() throws Exception {
+        List<Throwable> errs = new CopyOnWriteArrayList<>();
+        EventBus remote = EventBus.newSingleThreadedEventBus();
+        Path socket = directory.resolve("bus.sock");
+        try (var receiver = new EventBridgeReceiver(remote, socket, new PersonCodec(), errs::add, 1024);
+             var client = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + 2048).putInt(2048);
+            client.write(frame.position(0));
+
+            assertEquals("Connection not closed", -1, client.read(ByteBuffer.allocate(16)));
+            assertEquals("Wrong number of errors", 1, errs.size());
+            assertTrue("Wrong error", errs.get(0) instanceof IOException);
+            for (int i = 0; i < 50 && receiver.getConnectionCount() > 0; i++) {
+                Thread.sleep(10);
+            }
+
+            assertEquals("Wrong number of connections", 0, receiver.getConnectionCount());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.wilsonak.nairn.eventbus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for the {@link EventJournal} class
+ */
+public class EventJournalTests {
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * Events should replay in order from the start or from a returned position, across several segments.
+     */
+    @Test
+    public void testAppendAndReplay() throws IOException {
+        try (var journal = new EventJournal(directory, new PersonCodec(), 128)) {
+            List<Long> positions = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                positions.add(journal.append(new Person("ALLAN", i, "London")));
+            }
+
+            try (Stream<Path> files = Files.list(directory)) {
+                assertEquals("Wrong number of segments", 5, files.count());
+            }
+
+            List<Integer> all = new ArrayList<>();
+            long end = journal.replay(0, e -> all.add(((Person)e).getAge()));
+            assertEquals("Wrong number of events", 20, all.size());
+            for (int i = 0; i < 20; i++) {
+                assertEquals("Wrong order", i, (int)all.get(i));
+            }
+
+            List<Integer> tail = new ArrayList<>();
+            journal.replay(positions.get(15), e -> tail.add(((Person)e).getAge()));
+            assertEquals("Wrong events from position", List.of(15, 16, 17, 18, 19), tail);
+
+            journal.append(new Person("BRIAN", 20, "Leeds"));
+            List<String> more = new ArrayList<>();
+            journal.replay(end, e -> more.add(((Person)e).getName()));
+            assertEquals("Wrong events after end", List.of("BRIAN"), more);
+        }
+    }
+
+    /**
+     * Reopening the journal should find its end and carry on appending after it.
+     */
+    @Test
+    public void testRecovery() throws IOException {
+        long end;
+        try (var journal = new EventJournal(directory, new PersonCodec(), 128)) {
+            for (int i = 0; i < 10; i++) {
+                journal.append(new Person("ALLAN", i, "London"));
+            }
+
+            end = journal.getPosition();
+        }
+
+        try (var journal = new EventJournal(directory, new PersonCodec(), 128)) {
+            assertEquals("Wrong position after reopening", end, journal.getPosition());
+            journal.append(new Person("ALLAN", 10, "London"));
+
+            List<Integer> all = new ArrayList<>();
+            journal.replay(0, e -> all.add(((Person)e).getAge()));
+            assertEquals("Wrong number of events", 11, all.size());
+            assertEquals("Wrong last event", 10, (int)all.get(10));
+        }
+    }
+
+    /**
+     * Looking up a time should find the first event appended at or after it.
+     */
+    @Test
+    public void testPositionAt() throws Exception {
+        try (var journal = new EventJournal(directory, new PersonCodec(), 128)) {
+            for (int i = 0; i < 10; i++) {
+                journal.append(new Person("ALLAN", i, "London"));
+            }
+
+            Thread.sleep(5);
+            long time = System.currentTimeMillis();
+            Thread.sleep(5);
+            for (int i = 10; i < 20; i++) {
+                journal.append(new Person("ALLAN", i, "London"));
+            }
+
+            assertEquals("Wrong position for early time", 0, journal.getPositionAt(0));
+            assertEquals("Wrong position for late time", journal.getPosition(), journal.getPositionAt(Long.MAX_VALUE));
+
+            List<Integer> ages = new ArrayList<>();
+            journal.replay(journal.getPositionAt(time), e -> ages.add(((Person)e).getAge()));
+            assertEquals("Wrong number of events", 10, ages.size());
+            assertEquals("Wrong first event", 10, (int)ages.get(0));
+        }
+    }
+}
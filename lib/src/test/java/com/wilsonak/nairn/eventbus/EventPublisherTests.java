@@ -0,0 +1,133 @@
+package com.wilsonak.nairn.eventbus;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit tests for the {@link EventBus} {@code Flow.Publisher} view
+ */
+public class EventPublisherTests {
+    /**
+     * Events should only be sent as they are requested, the rest waiting in the buffer.
+     */
+    @Test
+    public void testDemand() {
+        EventBus bus = EventBus.newSingleThreadedEventBus();
+        var subscriber = new TestSubscriber();
+        bus.asPublisher(Person.class, 10, OverflowStrategy.DROP).subscribe(subscriber);
+
+        publish(bus, 5);
+        assertEquals("Events sent without demand", List.of(), subscriber.ages);
+
+        subscriber.subscription.request(2);
+        assertEquals("Wrong events", List.of(0, 1), subscriber.ages);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        publish(bus, 1);
+        assertEquals("Wrong events", List.of(0, 1, 2, 3, 4, 0), subscriber.ages);
+    }
+
+    /**
+     * DROP keeps the events already buffered.
+     */
+    @Test
+    public void testDrop() {
+        EventBus bus = EventBus.newSingleThreadedEventBus();
+        var subscriber = new TestSubscriber();
+        bus.asPublisher(Person.class, 2, OverflowStrategy.DROP).subscribe(subscriber);
+
+        publish(bus, 5);
+        subscriber.subscription.request(5);
+        assertEquals("Wrong events", List.of(0, 1), subscriber.ages);
+    }
+
+    /**
+     * LATEST keeps the newest events.
+     */
+    @Test
+    public void testLatest() {
+        EventBus bus = EventBus.newSingleThreadedEventBus();
+        var subscriber = new TestSubscriber();
+        bus.asPublisher(Person.class, 2, OverflowStrategy.LATEST).subscribe(subscriber);
+
+        publish(bus, 5);
+        subscriber.subscription.request(5);
+        assertEquals("Wrong events", List.of(3, 4), subscriber.ages);
+    }
+
+    /**
+     * ERROR signals the subscriber and stops sending events.
+     */
+    @Test
+    public void testError() {
+        EventBus bus = EventBus.newSingleThreadedEventBus();
+        var subscriber = new TestSubscriber();
+        bus.asPublisher(Person.class, 2, OverflowStrategy.ERROR).subscribe(subscriber);
+
+        publish(bus, 3);
+        assertNotNull("No error signalled", subscriber.error);
+
+        subscriber.subscription.request(5);
+        assertEquals("Events sent after error", List.of(), subscriber.ages);
+    }
+
+    /**
+     * Cancelling stops events, and a non-positive request is an error.
+     */
+    @Test
+    public void testCancelAndBadRequest() {
+        EventBus bus = EventBus.newSingleThreadedEventBus();
+        var publisher = bus.asPublisher(Person.class, 2, OverflowStrategy.DROP);
+        var cancelled = new TestSubscriber();
+        var bad = new TestSubscriber();
+        publisher.subscribe(cancelled);
+        publisher.subscribe(bad);
+
+        cancelled.subscription.request(5);
+        cancelled.subscription.cancel();
+        bad.subscription.request(0);
+        publish(bus, 1);
+
+        assertEquals("Events sent after cancel", List.of(), cancelled.ages);
+        assertNull("Error after cancel", cancelled.error);
+        assertEquals("Wrong error", IllegalArgumentException.class, bad.error.getClass());
+    }
+
+    private static void publish(EventBus bus, int count) {
+        for (int i = 0; i < count; i++) {
+            bus.publishEvent(new Person("ALLAN", i, "London"));
+        }
+    }
+
+    private static class TestSubscriber implements Flow.Subscriber<Person> {
+        private final List<Integer> ages = new ArrayList<>();
+        private Flow.Subscription subscription;
+        private Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Person item) {
+            ages.add(item.getAge());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
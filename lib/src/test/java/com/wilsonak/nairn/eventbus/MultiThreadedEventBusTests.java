@@ -1,15 +1,26 @@
 package com.wilsonak.nairn.eventbus;
 
+import com.wilsonak.nairn.hashpool.HashPoolExecutorService;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
@@ -55,4 +66,121 @@ public class MultiThreadedEventBusTests {
 
         threadPool.shutdown();
     }
+
+    /**
+     * A batch published to a hash pool is handed over in one go and keeps per-identifier order, and an
+     * asynchronous publish completes after the subscribers.
+     */
+    @Test
+    public void testPublishEventsToHashPool() throws Exception {
+        HashPoolExecutorService threadPool = new HashPoolExecutorService(4);
+        EventBus mteb = EventBus.newMultiThreadedEventBus(threadPool);
+
+        Map<String, List<Integer>> results = new ConcurrentHashMap<>();
+        mteb.addSubscriber(Person.class, p -> results.computeIfAbsent(p.getName(), k -> new CopyOnWriteArrayList<>()).add(p.getAge()));
+
+        List<Person> batch = new ArrayList<>();
+        for (int age = 0; age < 100; age++) {
+            batch.add(new Person("ID" + age % 7, age, "London"));
+        }
+
+        mteb.publishEvents(batch);
+        for (int i = 0; i < 7; i++) {
+            mteb.publishEventAsync(new Person("ID" + i, 100, "London")).get(5, TimeUnit.SECONDS);
+        }
+
+        for (List<Integer> ages : results.values()) {
+            for (int i = 1; i < ages.size(); i++) {
+                assertTrue("Wrong order", ages.get(i - 1) < ages.get(i));
+            }
+
+            assertEquals("Wrong last event", 100, (int)ages.get(ages.size() - 1));
+        }
+
+        threadPool.shutdown();
+    }
+
+    /**
+     * Events without an identifier should still be delivered through the hash pool.
+     */
+    @Test
+    public void testNullIdToHashPool() throws Exception {
+        HashPoolExecutorService threadPool = new HashPoolExecutorService(4);
+        EventBus mteb = EventBus.newMultiThreadedEventBus(threadPool);
+
+        List<Integer> results = new CopyOnWriteArrayList<>();
+        mteb.addSubscriber(Person.class, p -> results.add(p.getAge()));
+        mteb.publishEvent(new Person(null, 1, "London"));
+        mteb.publishEventAsync(new Person(null, 2, "London")).get(5, TimeUnit.SECONDS);
+
+        assertEquals("Wrong events", List.of(1, 2), results);
+        threadPool.shutdown();
+    }
+
+    /**
+     * Blocked subscribers on the virtual thread bus should not hold up other identifiers, and events for one
+     * identifier should arrive in order.
+     */
+    @Test
+    public void testVirtualThreadEventBus() throws Exception {
+        EventBus vteb = EventBus.newVirtualThreadEventBus();
+
+        int ids = 50;
+        CountDownLatch started = new CountDownLatch(ids);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(ids * 2);
+        Map<String, List<Integer>> results = new ConcurrentHashMap<>();
+        vteb.addSubscriber(Person.class, p -> {
+            if (p.getAge() == 0) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            results.computeIfAbsent(p.getName(), k -> new CopyOnWriteArrayList<>()).add(p.getAge());
+            finished.countDown();
+        });
+
+        for (int age = 0; age < 2; age++) {
+            for (int i = 0; i < ids; i++) {
+                vteb.publishEvent(new Person("ID" + i, age, "London"));
+            }
+        }
+
+        assertTrue("Blocked subscribers held up other identifiers", started.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        assertTrue("Events not delivered", finished.await(5, TimeUnit.SECONDS));
+        for (List<Integer> ages : results.values()) {
+            assertEquals("Wrong order", List.of(0, 1), ages);
+        }
+    }
+
+    /**
+     * Closing the virtual thread bus should finish the events already published and then stop taking more.
+     */
+    @Test
+    public void testVirtualThreadEventBusClose() {
+        EventBus vteb = EventBus.newVirtualThreadEventBus();
+        List<Integer> results = new CopyOnWriteArrayList<>();
+        vteb.addSubscriber(Person.class, p -> {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            results.add(p.getAge());
+        });
+
+        for (int i = 0; i < 20; i++) {
+            vteb.publishEvent(new Person("ALLAN", i, "London"));
+        }
+
+        vteb.close();
+        assertEquals("Wrong number of events", 20, results.size());
+        assertThrows(RejectedExecutionException.class, () -> vteb.publishEvent(new Person("ALLAN", 20, "London")));
+    }
 }
@@ -0,0 +1,106 @@
+package com.wilsonak.nairn.eventbus;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the partitioned {@link EventBus}
+ */
+public class PartitionedEventBusTests {
+    /**
+     * Several publishers, each with their own identifiers, should have every event delivered in order per
+     * identifier, across more than one partition thread.
+     */
+    @Test
+    public void testOrdering() throws Exception {
+        Map<String, List<Integer>> results = new ConcurrentHashMap<>();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        try (EventBus bus = EventBus.newPartitionedEventBus(4)) {
+            bus.addSubscriber(Person.class, p -> {
+                threads.add(Thread.currentThread().getName());
+                results.computeIfAbsent(p.getName(), k -> new CopyOnWriteArrayList<>()).add(p.getAge());
+            });
+
+            List<Thread> publishers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int publisher = t;
+                publishers.add(new Thread(() -> {
+                    for (int age = 0; age < 1000; age++) {
+                        bus.publishEvent(new Person("ID" + publisher + "-" + age % 8, age, "London"));
+                    }
+                }));
+            }
+
+            publishers.forEach(Thread::start);
+            for (Thread publisher : publishers) {
+                publisher.join();
+            }
+        }
+
+        assertEquals("Wrong number of identifiers", 32, results.size());
+        for (List<Integer> ages : results.values()) {
+            assertEquals("Wrong number of events", 125, ages.size());
+            for (int i = 1; i < ages.size(); i++) {
+                assertTrue("Wrong order", ages.get(i - 1) < ages.get(i));
+            }
+        }
+
+        assertTrue("Events not spread over partitions", threads.size() > 1);
+    }
+
+    /**
+     * Identifier subscribers should only see their events, batches and asynchronous publishes should be
+     * delivered, and closing a subscription should stop it in every partition.
+     */
+    @Test
+    public void testSubscriptions() throws Exception {
+        List<String> all = new CopyOnWriteArrayList<>();
+        List<Integer> allan = new CopyOnWriteArrayList<>();
+        List<String> closed = new CopyOnWriteArrayList<>();
+        try (EventBus bus = EventBus.newPartitionedEventBus(3)) {
+            bus.addSubscriber(Person.class, p -> all.add(p.getName()));
+            bus.addSubscriberForId(Person.class, "ALLAN", p -> allan.add(p.getAge()));
+            bus.addSubscriber(Person.class, p -> closed.add(p.getName())).close();
+
+            bus.publishEvents(List.of(new Person("ALLAN", 21, "London"), new Person("BRIAN", 30, "Leeds"), new Person("ALLAN", 22, "London")));
+            bus.publishEventAsync(new Person("ALLAN", 23, "London")).get(5, TimeUnit.SECONDS);
+            bus.publishEvent(new Person("CAROL", 40, "York"));
+        }
+
+        assertEquals("Wrong number of events", 5, all.size());
+        assertEquals("Wrong identifier events", List.of(21, 22, 23), allan);
+        assertEquals("Closed subscriber called", List.of(), closed);
+    }
+
+    /**
+     * Events without an identifier should all be delivered, in order, through a single partition.
+     */
+    @Test
+    public void testNullId() throws Exception {
+        List<Integer> ages = new CopyOnWriteArrayList<>();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        try (EventBus bus = EventBus.newPartitionedEventBus(4)) {
+            bus.addSubscriber(Person.class, p -> {
+                ages.add(p.getAge());
+                threads.add(Thread.currentThread().getName());
+            });
+
+            bus.publishEvent(new Person(null, 1, "London"));
+            bus.publishEvents(List.of(new Person(null, 2, "London"), new Person(null, 3, "London")));
+            bus.publishEventAsync(new Person(null, 4, "London")).get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals("Wrong events", List.of(1, 2, 3, 4), ages);
+        assertEquals("Wrong number of partitions used", 1, threads.size());
+    }
+}
@@ -0,0 +1,20 @@
+package com.wilsonak.nairn.eventbus;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes Person events as text for testing
+ */
+class PersonCodec implements EventCodec {
+    @Override
+    public byte[] encode(Event event) {
+        Person person = (Person)event;
+        return (person.getName() + "|" + person.getAge() + "|" + person.getAddress()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Event decode(byte[] bytes) {
+        String[] fields = new String(bytes, StandardCharsets.UTF_8).split("\\|");
+        return new Person(fields[0], Integer.parseInt(fields[1]), fields[2]);
+    }
+}
@@ -0,0 +1,222 @@
+package com.wilsonak.nairn.eventbus;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit tests for the ring buffer {@link EventBus}
+ */
+public class RingBufferEventBusTests {
+    /**
+     * Publishes more events than the ring holds to several subscribers. Each should see every event, in order.
+     */
+    @Test
+    public void testOrdering() {
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+            List<List<Integer>> results = new ArrayList<>();
+            try (EventBus bus = EventBus.newRingBufferEventBus(8, 2, waitStrategy)) {
+                for (int i = 0; i < 3; i++) {
+                    List<Integer> result = new ArrayList<>();
+                    results.add(result);
+                    bus.addSubscriber(Person.class, p -> result.add(p.getAge()));
+                }
+
+                for (int i = 0; i < 1000; i++) {
+                    bus.publishEvent(new Person("ALLAN", i, "London"));
+                }
+            }
+
+            for (List<Integer> result : results) {
+                assertEquals("Wrong number of events for " + waitStrategy, 1000, result.size());
+                for (int i = 0; i < 1000; i++) {
+                    assertEquals("Wrong order for " + waitStrategy, i, (int)result.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Subscribers should be shared between the consumer threads, and identifier subscribers should only see their events.
+     */
+    @Test
+    public void testConsumerThreads() {
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        List<Person> allan = new CopyOnWriteArrayList<>();
+        try (EventBus bus = EventBus.builder().ringDispatcher(16, 2, WaitStrategy.BLOCKING).build()) {
+            bus.addSubscriber(Person.class, p -> threads.add(Thread.currentThread().getName()));
+            bus.addSubscriber(Person.class, p -> threads.add(Thread.currentThread().getName()));
+            bus.addSubscriberForId(Person.class, "ALLAN", allan::add);
+
+            bus.publishEvent(new Person("ALLAN", 21, "London"));
+            bus.publishEvent(new Person("BRIAN", 22, "Leeds"));
+        }
+
+        assertEquals("Wrong number of consumer threads", 2, threads.size());
+        assertEquals("Wrong number of id events", 1, allan.size());
+        assertEquals("Wrong id event", "ALLAN", allan.get(0).getName());
+    }
+
+    /**
+     * Exceptions from subscribers go to the callback and do not stop the consumer thread.
+     */
+    @Test
+    public void testException() {
+        List<Throwable> errs = new CopyOnWriteArrayList<>();
+        List<Person> results = new CopyOnWriteArrayList<>();
+        try (EventBus bus = EventBus.builder()
+                .unhandledExceptionCallback(errs::add)
+                .ringDispatcher(4, 1, WaitStrategy.SLEEPING)
+                .build()) {
+            bus.addSubscriber(Person.class, p -> {
+                if (p.getAge() == 0) {
+                    throw new IllegalArgumentException("Bad age");
+                }
+
+                results.add(p);
+            });
+
+            bus.publishEvent(new Person("ALLAN", 0, "London"));
+            bus.publishEvent(new Person("BRIAN", 22, "Leeds"));
+        }
+
+        assertEquals("Wrong number of errors", 1, errs.size());
+        assertEquals("Wrong number of events", 1, results.size());
+    }
+
+    /**
+     * An asynchronous publish completes once every consumer thread has delivered the event, and a batch is
+     * delivered in order.
+     */
+    @Test
+    public void testPublishEventAsyncAndBatch() throws Exception {
+        List<Integer> results = new CopyOnWriteArrayList<>();
+        try (EventBus bus = EventBus.newRingBufferEventBus(8, 3, WaitStrategy.BLOCKING)) {
+            bus.addSubscriber(Person.class, p -> results.add(p.getAge()));
+
+            bus.publishEvents(List.of(new Person("ALLAN", 1, "London"), new Person("BRIAN", 2, "Leeds")));
+            bus.publishEventAsync(new Person("CAROL", 3, "York")).get(5, TimeUnit.SECONDS);
+            assertEquals("Wrong events", List.of(1, 2, 3), results);
+        }
+    }
+
+    /**
+     * Closing twice is harmless, but publishing after the bus is closed should fail.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testPublishAfterClose() {
+        EventBus bus = EventBus.newRingBufferEventBus(4, 1, WaitStrategy.YIELDING);
+        bus.close();
+        bus.close();
+        bus.publishEvent(new Person("ALLAN", 21, "London"));
+    }
+
+    /**
+     * Publishers racing a close should either have their events delivered or be told the bus is closed, never
+     * have them dropped.
+     */
+    @Test
+    public void testPublishDuringClose() throws Exception {
+        for (int run = 0; run < 20; run++) {
+            AtomicInteger delivered = new AtomicInteger();
+            AtomicInteger accepted = new AtomicInteger();
+            EventBus bus = EventBus.newRingBufferEventBus(8, 2, WaitStrategy.YIELDING);
+            bus.addSubscriber(Person.class, p -> delivered.incrementAndGet());
+
+            List<Thread> publishers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                Thread publisher = new Thread(() -> {
+                    try {
+                        while (true) {
+                            bus.publishEvent(new Person("ALLAN", 21, "London"));
+                            accepted.incrementAndGet();
+                        }
+                    } catch (IllegalStateException e) {
+                        // Closed
+                    }
+                });
+                publishers.add(publisher);
+                publisher.start();
+            }
+
+            Thread.sleep(5);
+            bus.close();
+            for (Thread publisher : publishers) {
+                publisher.join(5000);
+            }
+
+            assertEquals("Wrong number of delivered events", accepted.get(), delivered.get());
+        }
+    }
+
+    /**
+     * Publishers racing each other with the same identifiers should have each identifier delivered once.
+     */
+    @Test
+    public void testDeduplicateFromManyThreads() throws Exception {
+        int keys = 20_000;
+        Set<String> delivered = ConcurrentHashMap.newKeySet();
+        AtomicInteger deliveries = new AtomicInteger();
+        try (EventBus bus = EventBus.builder()
+                .deduplicate(1, TimeUnit.MINUTES, keys)
+                .ringDispatcher(1024, 1, WaitStrategy.YIELDING)
+                .build()) {
+            bus.addSubscriber(Person.class, p -> {
+                delivered.add(p.getName());
+                deliveries.incrementAndGet();
+            });
+
+            List<Thread> publishers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int offset = t * 1000;
+                Thread publisher = new Thread(() -> {
+                    for (int i = 0; i < keys; i++) {
+                        bus.publishEvent(new Person("ID" + (i + offset) % keys, i, "London"));
+                    }
+                });
+                publishers.add(publisher);
+                publisher.start();
+            }
+
+            for (Thread publisher : publishers) {
+                publisher.join();
+            }
+        }
+
+        assertEquals("Wrong number of identifiers", keys, delivered.size());
+        assertEquals("Duplicates delivered", keys, deliveries.get());
+    }
+
+    /**
+     * The ring should not keep hold of an event once every consumer has delivered it.
+     */
+    @Test
+    public void testDeliveredEventReleased() throws Exception {
+        try (EventBus bus = EventBus.newRingBufferEventBus(64, 2, WaitStrategy.BLOCKING)) {
+            bus.addSubscriber(Person.class, p -> { });
+
+            Person person = new Person("ALLAN", 21, "London");
+            WeakReference<Person> reference = new WeakReference<>(person);
+            bus.publishEventAsync(person).get(5, TimeUnit.SECONDS);
+            bus.publishEventAsync(new Person("BRIAN", 22, "Leeds")).get(5, TimeUnit.SECONDS);
+            person = null;
+
+            for (int i = 0; i < 50 && reference.get() != null; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+
+            assertNull("Event still held by the ring", reference.get());
+        }
+    }
+}
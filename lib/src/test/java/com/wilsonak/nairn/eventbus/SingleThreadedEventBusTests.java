@@ -2,10 +2,20 @@ package com.wilsonak.nairn.eventbus;
 
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Unit tests for the single threaded {@link EventBus}
@@ -81,6 +91,398 @@ public class SingleThreadedEventBusTests {
         assertEquals("Exception not found", 1, errs.size());
     }
 
+    /**
+     * Fused dispatch submits one task per event, which calls every subscriber in order.
+     */
+    @Test
+    public void testFusedDispatch() {
+        AtomicInteger tasks = new AtomicInteger(0);
+        EventBus steb = EventBus.builder()
+                                .executor(r -> {
+                                    tasks.incrementAndGet();
+                                    r.run();
+                                })
+                                .fusedDispatch()
+                                .build();
+
+        List<String> results = new ArrayList<>();
+        steb.addSubscriber(Person.class, p -> results.add("A" + p.getName()));
+        steb.addSubscriber(Person.class, p -> results.add("B" + p.getName()));
+        steb.addSubscriberForFilteredEvents(Person.class, p -> results.add("C" + p.getName()), p -> p.getAge() > 20);
+
+        steb.publishEvent(new Person("ALLAN", 21, "London"));
+        steb.publishEvent(new Person("FRODO", 18, "The Shire"));
+
+        assertEquals("Wrong number of tasks", 2, tasks.get());
+        assertEquals("Wrong events", List.of("AALLAN", "BALLAN", "CALLAN", "AFRODO", "BFRODO"), results);
+    }
+
+    /**
+     * Subtype subscribers see events of subclasses and implementing classes, exact subscribers
+     * only their own class, all in the order they subscribed.
+     */
+    @Test
+    public void testSubtypeSubscribers() {
+        EventBus steb = EventBus.newSingleThreadedEventBus();
+
+        List<String> results = new ArrayList<>();
+        steb.addSubscriberForSubtypes(Event.class, e -> results.add("EVENT " + e.getId()));
+        steb.addSubscriber(Person.class, p -> results.add("PERSON " + p.getName()));
+        steb.addSubscriberForSubtypes(Person.class, p -> results.add("ANY PERSON " + p.getName()));
+        steb.addSubscriber(Employee.class, p -> results.add("EMPLOYEE " + p.getName()));
+
+        steb.publishEvent(new Person("ALLAN", 21, "London"));
+        steb.publishEvent(new Employee("FRODO"));
+        steb.publishEvent(new StringWrapper("TEXT"));
+
+        assertEquals("Wrong events",
+                     List.of("EVENT ALLAN", "PERSON ALLAN", "ANY PERSON ALLAN",
+                             "EVENT FRODO", "ANY PERSON FRODO", "EMPLOYEE FRODO",
+                             "EVENT TEXT"),
+                     results);
+    }
+
+    /**
+     * A subscription made after a class has been published must see its later events.
+     */
+    @Test
+    public void testLateSubtypeSubscriber() {
+        EventBus steb = EventBus.newSingleThreadedEventBus();
+
+        List<Person> results = new ArrayList<>();
+        steb.publishEvent(new Employee("FRODO"));
+        steb.addSubscriberForSubtypes(Person.class, results::add);
+        steb.publishEvent(new Employee("SAM"));
+
+        assertEquals("Wrong number of events", 1, results.size());
+        assertEquals("Wrong event", "SAM", results.get(0).getName());
+    }
+
+    /**
+     * Subscribing to and closing an interface subscription after several classes have been
+     * published must reach every class below it, and leave unrelated classes alone.
+     */
+    @Test
+    public void testLateInterfaceSubscriber() {
+        EventBus steb = EventBus.newSingleThreadedEventBus();
+
+        List<String> results = new ArrayList<>();
+        steb.addSubscriber(StringWrapper.class, s -> results.add("STRING " + s.getId()));
+        steb.publishEvent(new Person("ALLAN", 21, "London"));
+        steb.publishEvent(new Employee("FRODO"));
+        steb.publishEvent(new StringWrapper("A"));
+
+        var subscription = steb.addSubscriberForSubtypes(Event.class, e -> results.add("EVENT " + e.getId()));
+        steb.publishEvent(new Person("BILBO", 111, "Shire"));
+        steb.publishEvent(new Employee("SAM"));
+        steb.publishEvent(new StringWrapper("B"));
+
+        subscription.close();
+        steb.publishEvent(new Person("MERRY", 36, "Shire"));
+        steb.publishEvent(new Employee("PIPPIN"));
+        steb.publishEvent(new StringWrapper("C"));
+
+        assertEquals("Wrong events",
+                     List.of("STRING A", "EVENT BILBO", "EVENT SAM", "STRING B", "EVENT B", "STRING C"),
+                     results);
+    }
+
+    /**
+     * Identifier subscribers only see events with their identifier, after the type's other subscribers.
+     */
+    @Test
+    public void testIdSubscribers() {
+        EventBus steb = EventBus.newSingleThreadedEventBus();
+
+        List<String> results = new ArrayList<>();
+        steb.addSubscriberForId(Person.class, "ALLAN", p -> results.add("ID1 " + p.getName()));
+        steb.addSubscriber(Person.class, p -> results.add("ALL " + p.getName()));
+        steb.addSubscriberForId(Person.class, "FRODO", p -> results.add("ID2 " + p.getName()));
+        steb.addSubscriberForId(Person.class, "ALLAN", p -> results.add("ID3 " + p.getName()));
+        steb.addSubscriberForId(StringWrapper.class, "ALLAN", s -> results.add("STR " + s.getStr()));
+
+        steb.publishEvent(new Person("ALLAN", 21, "London"));
+        steb.publishEvent(new Person("GANDALF", 101, "Middle Earth"));
+        steb.publishEvent(new Person("FRODO", 18, "The Shire"));
+
+        assertEquals("Wrong events",
+                     List.of("ALL ALLAN", "ID1 ALLAN", "ID3 ALLAN", "ALL GANDALF", "ALL FRODO", "ID2 FRODO"),
+                     results);
+    }
+
+    /**
+     * Closing a subscription stops its events without affecting other subscribers.
+     */
+    @Test
+    public void testCloseSubscription() {
+        EventBus steb = EventBus.newSingleThreadedEventBus();
+
+        List<String> results = new ArrayList<>();
+        Subscription all = steb.addSubscriber(Person.class, p -> results.add("ALL " + p.getName()));
+        Subscription any = steb.addSubscriberForSubtypes(Event.class, e -> results.add("ANY " + e.getId()));
+        Subscription id1 = steb.addSubscriberForId(Person.class, "ALLAN", p -> results.add("ID1 " + p.getName()));
+        steb.addSubscriberForId(Person.class, "ALLAN", p -> results.add("ID2 " + p.getName()));
+
+        steb.publishEvent(new Person("ALLAN", 21, "London"));
+        all.close();
+        any.close();
+        id1.close();
+        id1.close();
+        steb.publishEvent(new Person("ALLAN", 21, "London"));
+
+        assertEquals("Wrong events",
+                     List.of("ALL ALLAN", "ANY ALLAN", "ID1 ALLAN", "ID2 ALLAN", "ID2 ALLAN"),
+                     results);
+    }
+
+    /**
+     * Closing a subscription from inside a subscriber stops later subscribers in the same dispatch.
+     */
+    @Test
+    public void testCloseDuringDispatch() {
+        EventBus steb = EventBus.newSingleThreadedEventBus();
+
+        List<String> results = new ArrayList<>();
+        Subscription[] second = new Subscription[1];
+        steb.addSubscriber(Person.class, p -> second[0].close());
+        second[0] = steb.addSubscriber(Person.class, p -> results.add(p.getName()));
+
+        steb.publishEvent(new Person("ALLAN", 21, "London"));
+        assertEquals("Closed subscriber called", 0, results.size());
+    }
+
+    /**
+     * While delivery is held up a conflating subscriber keeps only the latest event for each identifier,
+     * with one task per identifier, and ordinary subscribers still get every event.
+     */
+    @Test
+    public void testConflatingSubscriber() {
+        List<Runnable> tasks = new ArrayList<>();
+        EventBus bus = EventBus.builder().executor(tasks::add).build();
+
+        List<Integer> latest = new ArrayList<>();
+        List<Integer> all = new ArrayList<>();
+        bus.addConflatingSubscriber(Person.class, p -> latest.add(p.getAge()));
+        bus.addSubscriber(Person.class, p -> all.add(p.getAge()));
+
+        bus.publishEvent(new Person("ALLAN", 21, "London"));
+        bus.publishEvent(new Person("BRIAN", 30, "Leeds"));
+        bus.publishEvent(new Person("ALLAN", 22, "London"));
+        bus.publishEvent(new Person("ALLAN", 23, "London"));
+        assertEquals("Wrong number of tasks", 6, tasks.size());
+
+        tasks.forEach(Runnable::run);
+        tasks.clear();
+        assertEquals("Wrong conflated events", List.of(23, 30), latest);
+        assertEquals("Wrong events", List.of(21, 30, 22, 23), all);
+
+        bus.publishEvent(new Person("ALLAN", 24, "London"));
+        tasks.forEach(Runnable::run);
+        assertEquals("Wrong event after delivery", List.of(23, 30, 24), latest);
+    }
+
+    /**
+     * The future from an asynchronous publish completes once the subscriber tasks have run, exceptionally if
+     * one of them threw.
+     */
+    @Test
+    public void testPublishEventAsync() {
+        List<Runnable> tasks = new ArrayList<>();
+        List<Throwable> errs = new ArrayList<>();
+        EventBus bus = EventBus.builder().executor(tasks::add).unhandledExceptionCallback(errs::add).build();
+
+        assertTrue("No subscribers should complete at once", bus.publishEventAsync(new Person("ALLAN", 21, "London")).isDone());
+
+        List<String> results = new ArrayList<>();
+        bus.addSubscriber(Person.class, p -> results.add(p.getName()));
+        bus.addSubscriberForId(Person.class, "BRIAN", p -> {
+            throw new IllegalStateException("Bad person");
+        });
+
+        var allan = bus.publishEventAsync(new Person("ALLAN", 21, "London"));
+        var brian = bus.publishEventAsync(new Person("BRIAN", 22, "Leeds"));
+        assertFalse("Completed before subscribers ran", allan.isDone());
+
+        tasks.forEach(Runnable::run);
+        assertEquals("Wrong events", List.of("ALLAN", "BRIAN"), results);
+        assertTrue("Not completed", allan.isDone() && !allan.isCompletedExceptionally());
+        assertTrue("Not completed exceptionally", brian.isCompletedExceptionally());
+        assertEquals("Wrong number of errors", 1, errs.size());
+    }
+
+    /**
+     * A batch publish delivers every event in order.
+     */
+    @Test
+    public void testPublishEvents() {
+        for (EventBusBuilder builder : List.of(EventBus.builder(), EventBus.builder().fusedDispatch())) {
+            EventBus bus = builder.build();
+
+            List<String> results = new ArrayList<>();
+            bus.addSubscriber(Person.class, p -> results.add(p.getName()));
+            bus.addSubscriberForSubtypes(Event.class, e -> results.add(e.getId()));
+
+            bus.publishEvents(List.of(new Person("ALLAN", 21, "London"), new Employee("BILBO"), new Person("CAROL", 23, "York")));
+            assertEquals("Wrong events", List.of("ALLAN", "ALLAN", "BILBO", "CAROL", "CAROL"), results);
+        }
+    }
+
+    /**
+     * A subscriber with replay gets the journalled events of its class, then the live ones.
+     */
+    @Test
+    public void testReplay() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        try (var journal = new EventJournal(directory, new PersonCodec(), 4096)) {
+            EventBus bus = EventBus.builder().journal(journal).build();
+            bus.publishEvent(new Person("ALLAN", 21, "London"));
+            long position = journal.getPosition();
+            bus.publishEvents(List.of(new Person("BRIAN", 22, "Leeds"), new Person("CAROL", 23, "York")));
+
+            List<String> all = new ArrayList<>();
+            List<String> later = new ArrayList<>();
+            bus.addSubscriberWithReplay(Person.class, 0, p -> all.add(p.getName()));
+            bus.addSubscriberWithReplay(Person.class, position, p -> later.add(p.getName()));
+            bus.publishEvent(new Person("DAVID", 24, "Bath"));
+
+            assertEquals("Wrong events from start", List.of("ALLAN", "BRIAN", "CAROL", "DAVID"), all);
+            assertEquals("Wrong events from position", List.of("BRIAN", "CAROL", "DAVID"), later);
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Annotated methods, including private and inherited ones, are subscribed in order, identifier subscribers
+     * after the others, and unsubscribed together.
+     */
+    @Test
+    public void testRegisterSubscribers() {
+        EventBus steb = EventBus.newSingleThreadedEventBus();
+
+        var handlers = new Handlers();
+        Subscription subscription = steb.registerSubscribers(handlers);
+        steb.publishEvent(new Person("ALLAN", 21, "London"));
+        steb.publishEvent(new Person("BRIAN", 22, "Leeds"));
+        assertEquals("Wrong calls", List.of("first ALLAN", "person ALLAN", "base ALLAN", "allan ALLAN", "first BRIAN", "person BRIAN", "base BRIAN"), handlers.calls);
+
+        subscription.close();
+        steb.publishEvent(new Person("ALLAN", 21, "London"));
+        assertEquals("Called after close", 7, handlers.calls.size());
+    }
+
+    /**
+     * Annotated methods which cannot take events are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterBadSubscriber() {
+        EventBus steb = EventBus.newSingleThreadedEventBus();
+        steb.registerSubscribers(new Object() {
+            @Subscribe
+            public void onString(String str) {
+            }
+        });
+    }
+
+    /**
+     * Publishes should be counted by class, and each subscriber's deliveries, filtered events, failures and
+     * timings recorded until it unsubscribes.
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        List<Runnable> tasks = new ArrayList<>();
+        EventBus bus = EventBus.builder().executor(tasks::add).metrics().build();
+
+        bus.addSubscriber(Person.class, p -> {});
+        bus.addSubscriberForFilteredEvents(Person.class, p -> {}, p -> p.getAge() > 25);
+        Subscription byId = bus.addSubscriberForId(Person.class, "ALLAN", p -> {
+            throw new IllegalStateException();
+        });
+
+        bus.publishEvent(new Person("ALLAN", 21, "London"));
+        bus.publishEvent(new Person("BRIAN", 30, "Leeds"));
+        bus.publishEvent(new Person("ALLAN", 22, "London"));
+        Thread.sleep(5);
+        tasks.forEach(Runnable::run);
+
+        EventBusMetrics metrics = bus.getMetrics();
+        assertEquals("Wrong published count", 3, metrics.getPublishedCount(Person.class));
+        assertEquals("Wrong published counts", Map.of(Person.class, 3L), metrics.getPublishedCounts());
+        assertTrue("Wrong publish rate", metrics.getPublishRate(Person.class) > 0);
+
+        List<SubscriberMetrics> subscribers = metrics.getSubscribers(Person.class);
+        assertEquals("Wrong number of subscribers", 3, subscribers.size());
+        assertEquals("Wrong delivered count", 3, subscribers.get(0).getDeliveredCount());
+        assertEquals("Wrong delivered count for filter", 1, subscribers.get(1).getDeliveredCount());
+        assertEquals("Wrong filtered count", 2, subscribers.get(1).getFilteredCount());
+        assertEquals("Wrong identifier", "ALLAN", subscribers.get(2).getId());
+        assertEquals("Wrong failed count", 2, subscribers.get(2).getFailedCount());
+        assertEquals("Wrong number of wait times", 3, subscribers.get(0).getWaitTime().getCount());
+        assertTrue("Wait time too short", subscribers.get(0).getWaitTime().getMax() >= TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals("Wrong number of run times", 1, subscribers.get(1).getRunTime().getCount());
+
+        byId.close();
+        assertEquals("Subscriber kept after close", 2, metrics.getSubscribers().size());
+    }
+
+    /**
+     * Repeated identifiers within the window should be dropped, from single and batch publishes, and counted.
+     */
+    @Test
+    public void testDeduplicate() {
+        EventBus bus = EventBus.builder().deduplicate(1, TimeUnit.MINUTES, 100).metrics().build();
+        List<Integer> ages = new ArrayList<>();
+        bus.addSubscriber(Person.class, p -> ages.add(p.getAge()));
+
+        bus.publishEvent(new Person("ALLAN", 21, "London"));
+        bus.publishEvent(new Person("ALLAN", 22, "London"));
+        assertTrue("Duplicate future not complete", bus.publishEventAsync(new Person("ALLAN", 23, "London")).isDone());
+        bus.publishEvents(List.of(new Person("BRIAN", 30, "Leeds"), new Person("BRIAN", 31, "Leeds"), new Person("ALLAN", 24, "London")));
+
+        assertEquals("Wrong events", List.of(21, 30), ages);
+        assertEquals("Wrong duplicate count", 4, bus.getMetrics().getDuplicateCount());
+        assertEquals("Wrong published count", 2, bus.getMetrics().getPublishedCount(Person.class));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMetricsDisabled() {
+        EventBus.newSingleThreadedEventBus().getMetrics();
+    }
+
+    private static class BaseHandlers {
+        protected final List<String> calls = new ArrayList<>();
+
+        @Subscribe(order = 1)
+        public void onBase(Person person) {
+            calls.add("base " + person.getName());
+        }
+    }
+
+    private static class Handlers extends BaseHandlers {
+        @Subscribe
+        private void onPerson(Person person) {
+            calls.add("person " + person.getName());
+        }
+
+        @Subscribe(id = "ALLAN")
+        void onAllan(Person person) {
+            calls.add("allan " + person.getName());
+        }
+
+        @Subscribe(order = -1)
+        public void onFirst(Person person) {
+            calls.add("first " + person.getName());
+        }
+    }
+
+    private static class Employee extends Person {
+        public Employee(String name) {
+            super(name, 30, "Bag End");
+        }
+    }
+
     private static class StringWrapper implements Event {
         private final String str;
 
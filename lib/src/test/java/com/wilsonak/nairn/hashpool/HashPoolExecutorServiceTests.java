@@ -1,11 +1,20 @@
 package com.wilsonak.nairn.hashpool;
 
+import com.wilsonak.nairn.KeyHashing;
 import com.wilsonak.nairn.KeyedRunnable;
+import com.wilsonak.nairn.Priority;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import static org.junit.Assert.*;
 
@@ -63,6 +72,602 @@ public class HashPoolExecutorServiceTests {
         assertEquals("Tasks incomplete", 3, counter.get());
     }
 
+    @Test
+    public void testLongKeyHit() throws Exception {
+        var hpe = new HashPoolExecutorService(4);
+        var threadIds = new CopyOnWriteArraySet<String>();
+        var counter = new AtomicInteger(0);
+        Runnable r = () -> {
+            threadIds.add(Thread.currentThread().getName());
+            counter.incrementAndGet();
+        };
+
+        for (int i = 0; i < 10; i++) {
+            hpe.execute(12345L, r);
+            hpe.execute(new KeyedRunnable(12345L, r));
+        }
+
+        hpe.shutdown();
+        assertTrue("Tasks incomplete", hpe.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals("Wrong thread used", 1, threadIds.size());
+        assertEquals("Tasks incomplete", 20, counter.get());
+    }
+
+    @Test
+    public void testNullId() throws Exception {
+        var hpe = new HashPoolExecutorService(3);
+        var threadIds = new CopyOnWriteArraySet<String>();
+        Runnable r = () -> threadIds.add(Thread.currentThread().getName());
+
+        for (int i = 0; i < 5; i++) {
+            hpe.execute(new KeyedRunnable((String) null, r));
+        }
+
+        hpe.shutdown();
+        assertTrue("Tasks incomplete", hpe.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals("Wrong thread used", 1, threadIds.size());
+        assertNull("Wrong id", new KeyedRunnable((String) null, r).getId());
+        assertEquals("Wrong hash", new KeyedRunnable((String) null, r).getHash(),
+                new KeyedRunnable((String) null, Priority.HIGH, r).getHash());
+    }
+
+    @Test
+    public void testHashFunctionKey() throws Exception {
+        var hpe = new HashPoolExecutorService(4);
+        var threadIds = new CopyOnWriteArraySet<String>();
+        Runnable r = () -> threadIds.add(Thread.currentThread().getName());
+
+        hpe.execute(new Person("ALLAN"), p -> p.name.hashCode(), r);
+        hpe.execute(new Person("ALLAN"), p -> p.name.hashCode(), r);
+        hpe.execute(new KeyedRunnable(new Person("ALLAN"), p -> p.name.hashCode(), r));
+
+        hpe.shutdown();
+        assertTrue("Tasks incomplete", hpe.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals("Wrong thread used", 1, threadIds.size());
+    }
+
+    /**
+     * With rebalancing, keys that would share a pool with a blocked key are moved elsewhere.
+     */
+    @Test
+    public void testRebalanceAroundHotKey() throws Exception {
+        var hpe = HashPoolExecutorService.builder(2).rebalancing(4096, 1).build();
+        var blocker = new CountDownLatch(1);
+        var counter = new AtomicInteger(0);
+
+        hpe.execute(new KeyedRunnable("HOT", () -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }));
+        for (int i = 0; i < 10; i++) {
+            hpe.execute(new KeyedRunnable("KEY" + i, counter::incrementAndGet));
+            Thread.sleep(5);
+        }
+
+        Thread.sleep(100);
+        assertEquals("Tasks stuck behind hot key", 10, counter.get());
+        blocker.countDown();
+        hpe.shutdown();
+        assertTrue("Tasks incomplete", hpe.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Keys moving between pools must still see their tasks run in order.
+     */
+    @Test
+    public void testRebalanceKeepsKeyOrder() throws Exception {
+        var hpe = HashPoolExecutorService.builder(4).rebalancing(16, 2).build();
+        int keys = 50;
+        int perKey = 2000;
+        var lastSeen = new int[keys];
+        var errors = new AtomicInteger(0);
+        var threadIds = new CopyOnWriteArraySet<String>();
+
+        for (int i = 0; i < perKey; i++) {
+            for (int k = 0; k < keys; k++) {
+                int key = k;
+                int seq = i;
+                hpe.execute(key, () -> {
+                    threadIds.add(Thread.currentThread().getName());
+                    if (lastSeen[key] != seq) {
+                        errors.incrementAndGet();
+                    }
+
+                    lastSeen[key] = seq + 1;
+                });
+            }
+        }
+
+        hpe.shutdown();
+        assertTrue("Tasks incomplete", hpe.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals("Tasks out of order", 0, errors.get());
+        assertEquals("Wrong number of threads used", 4, threadIds.size());
+    }
+
+    /**
+     * Growing the pool should move only a small fraction of keys to a different thread.
+     */
+    @Test
+    public void testResizeMovesFewKeys() throws Exception {
+        var hpe = HashPoolExecutorService.builder(4).resizable().build();
+        int keys = 1000;
+        var before = new String[keys];
+        var after = new String[keys];
+
+        for (int k = 0; k < keys; k++) {
+            int key = k;
+            hpe.execute(key, () -> before[key] = Thread.currentThread().getName());
+        }
+
+        hpe.resize(5);
+        for (int k = 0; k < keys; k++) {
+            int key = k;
+            hpe.execute(key, () -> after[key] = Thread.currentThread().getName());
+        }
+
+        hpe.shutdown();
+        assertTrue("Tasks incomplete", hpe.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals("Wrong pool size", 5, hpe.getPoolSize());
+        int moved = 0;
+        for (int k = 0; k < keys; k++) {
+            if (!before[k].equals(after[k])) {
+                moved++;
+            }
+        }
+
+        assertTrue("Too many keys moved: " + moved, moved > 0 && moved < keys * 0.3);
+    }
+
+    /**
+     * Tasks must stay in order, and never run concurrently, while the pool grows and shrinks under load.
+     */
+    @Test
+    public void testResizeKeepsKeyOrder() throws Exception {
+        var hpe = HashPoolExecutorService.builder(2).resizable().build();
+        int keys = 32;
+        int perKey = 3000;
+        var lastSeen = new int[keys];
+        var running = new AtomicInteger[keys];
+        var errors = new AtomicInteger(0);
+        for (int k = 0; k < keys; k++) {
+            running[k] = new AtomicInteger(0);
+        }
+
+        Thread resizer = new Thread(() -> {
+            int[] sizes = { 5, 3, 8, 1, 4 };
+            for (int size : sizes) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+
+                hpe.resize(size);
+            }
+        });
+        resizer.start();
+
+        for (int i = 0; i < perKey; i++) {
+            for (int k = 0; k < keys; k++) {
+                int key = k;
+                int seq = i;
+                hpe.execute(new KeyedRunnable("KEY" + key, () -> {
+                    if (running[key].incrementAndGet() != 1 || lastSeen[key] != seq) {
+                        errors.incrementAndGet();
+                    }
+
+                    lastSeen[key] = seq + 1;
+                    running[key].decrementAndGet();
+                }));
+            }
+        }
+
+        resizer.join();
+        hpe.shutdown();
+        assertTrue("Tasks incomplete", hpe.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals("Tasks out of order or concurrent", 0, errors.get());
+        for (int k = 0; k < keys; k++) {
+            assertEquals("Tasks incomplete", perKey, lastSeen[k]);
+        }
+    }
+
+    /**
+     * A bounded pool which drops its oldest tasks still runs the newest tasks for the key in order.
+     */
+    @Test
+    public void testBoundedQueueDropOldest() throws Exception {
+        var hpe = HashPoolExecutorService.builder(1).queueCapacity(2, BackpressurePolicy.DROP_OLDEST).build();
+        var blocker = new CountDownLatch(1);
+        var results = new CopyOnWriteArrayList<Integer>();
+
+        hpe.execute(1L, () -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(50);
+        for (int i = 0; i < 10; i++) {
+            int value = i;
+            hpe.execute(1L, () -> results.add(value));
+        }
+
+        blocker.countDown();
+        hpe.shutdown();
+        assertTrue("Tasks incomplete", hpe.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals("Wrong dropped count", 8, hpe.getDroppedTaskCount());
+        assertEquals("Wrong tasks run", List.of(8, 9), results);
+    }
+
+    /**
+     * Urgent tasks queued behind a busy worker run first, the less urgent still get a turn, and each priority
+     * keeps its order.
+     */
+    @Test
+    public void testPriorityLanes() throws Exception {
+        var hpe = HashPoolExecutorService.builder(1).priorityLanes().build();
+        var blocker = new CountDownLatch(1);
+        var results = new CopyOnWriteArrayList<String>();
+
+        hpe.execute(1L, () -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(50);
+        for (int i = 0; i < 20; i++) {
+            String low = "L" + i;
+            hpe.execute(new KeyedRunnable("LOW", Priority.LOW, () -> results.add(low)));
+        }
+
+        for (int i = 0; i < 20; i++) {
+            String high = "H" + i;
+            hpe.execute(new KeyedRunnable("HIGH", Priority.HIGH, () -> results.add(high)));
+        }
+
+        blocker.countDown();
+        hpe.shutdown();
+        assertTrue("Tasks incomplete", hpe.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals("Wrong number of tasks run", 40, results.size());
+        for (int i = 0; i < 16; i++) {
+            assertEquals("Urgent task not run first", "H" + i, results.get(i));
+        }
+
+        assertEquals("Less urgent task starved", "L0", results.get(16));
+        assertEquals("Wrong order of urgent tasks", "H19", results.get(20));
+        for (int i = 1; i < 20; i++) {
+            assertEquals("Wrong order of less urgent tasks", "L" + i, results.get(20 + i));
+        }
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testBoundedQueueReject() throws Exception {
+        var hpe = HashPoolExecutorService.builder(1).queueCapacity(1, BackpressurePolicy.REJECT).build();
+        var blocker = new CountDownLatch(1);
+        try {
+            hpe.execute(1L, () -> {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            Thread.sleep(50);
+            hpe.execute(1L, () -> {});
+            hpe.execute(1L, () -> {});
+        } finally {
+            blocker.countDown();
+            hpe.shutdown();
+        }
+    }
+
+    @Test
+    public void testSlotMetrics() throws Exception {
+        var hpe = HashPoolExecutorService.builder(2).metrics(1, 3).build();
+        for (int i = 0; i < 100; i++) {
+            hpe.execute(7L, () -> {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+
+        hpe.shutdown();
+        assertTrue("Tasks incomplete", hpe.awaitTermination(5, TimeUnit.SECONDS));
+        int slot = hpe.getHotKeys().get(0).getSlot();
+        var metrics = hpe.getSlotMetrics(slot);
+        assertEquals("Wrong submitted count", 100, metrics.getSubmittedCount());
+        assertEquals("Wrong completed count", 100, metrics.getCompletedCount());
+        assertEquals("Wrong queue depth", 0, metrics.getQueueDepth());
+        assertTrue("Run time not recorded", metrics.getRunTime().getValueAtPercentile(50) >= 1_000_000);
+        assertTrue("Wait time not recorded", metrics.getWaitTime().getMax() >= 1_000_000);
+        assertEquals("Wrong completed count", 0, hpe.getSlotMetrics(1 - slot).getCompletedCount());
+    }
+
+    /**
+     * The hot key report should pick out the most frequent keys in order.
+     */
+    @Test
+    public void testHotKeys() throws Exception {
+        var hpe = HashPoolExecutorService.builder(4).metrics(1, 2).build();
+        for (int i = 0; i < 1000; i++) {
+            hpe.execute(1L, () -> {});
+            if (i % 2 == 0) {
+                hpe.execute(new KeyedRunnable("HOT", () -> {}));
+            }
+
+            hpe.execute((long)(i + 100), () -> {});
+        }
+
+        hpe.shutdown();
+        assertTrue("Tasks incomplete", hpe.awaitTermination(5, TimeUnit.SECONDS));
+        var hotKeys = hpe.getHotKeys();
+        assertEquals("Wrong number of keys", 2, hotKeys.size());
+        assertEquals("Wrong hottest key", 1L, hotKeys.get(0).getKey());
+        assertEquals("Wrong second key", "HOT", hotKeys.get(1).getKey());
+        assertEquals("Wrong count", 1000, hotKeys.get(0).getEstimatedCount());
+    }
+
+    /**
+     * A numeric key is counted as one key whether or not it was wrapped in a {@code KeyedRunnable}.
+     */
+    @Test
+    public void testHotKeysNumericKeyNormalised() throws Exception {
+        var hpe = HashPoolExecutorService.builder(2).metrics(1, 2).build();
+        for (int i = 0; i < 500; i++) {
+            hpe.execute(7L, () -> {});
+            hpe.execute(new KeyedRunnable(7L, () -> {}));
+        }
+
+        hpe.shutdown();
+        assertTrue("Tasks incomplete", hpe.awaitTermination(5, TimeUnit.SECONDS));
+        var hotKeys = hpe.getHotKeys();
+        assertEquals("Wrong number of keys", 1, hotKeys.size());
+        assertEquals("Wrong hottest key", 7L, hotKeys.get(0).getKey());
+        assertEquals("Wrong count", 1000, hotKeys.get(0).getEstimatedCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMetricsDisabled() {
+        new HashPoolExecutorService(1).getHotKeys();
+    }
+
+    /**
+     * A batch should run every task, each key in order and on one thread, across several pools.
+     */
+    @Test
+    public void testExecuteAllKeepsKeyOrder() throws Exception {
+        var hpe = new HashPoolExecutorService(4);
+        int keys = 16;
+        int perKey = 500;
+        var lastSeen = new int[keys];
+        var threadIds = new ArrayList<CopyOnWriteArraySet<String>>();
+        var errors = new AtomicInteger(0);
+        var batch = new ArrayList<KeyedRunnable>();
+        for (int k = 0; k < keys; k++) {
+            threadIds.add(new CopyOnWriteArraySet<>());
+        }
+
+        for (int i = 0; i < perKey; i++) {
+            for (int k = 0; k < keys; k++) {
+                int key = k;
+                int seq = i;
+                batch.add(new KeyedRunnable("KEY" + key, () -> {
+                    threadIds.get(key).add(Thread.currentThread().getName());
+                    if (lastSeen[key] != seq) {
+                        errors.incrementAndGet();
+                    }
+
+                    lastSeen[key] = seq + 1;
+                }));
+            }
+
+            if (batch.size() >= 100) {
+                hpe.executeAll(batch);
+                batch.clear();
+            }
+        }
+
+        hpe.executeAll(batch);
+        hpe.shutdown();
+        assertTrue("Tasks incomplete", hpe.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals("Tasks out of order", 0, errors.get());
+        for (int k = 0; k < keys; k++) {
+            assertEquals("Tasks incomplete", perKey, lastSeen[k]);
+            assertEquals("Wrong thread used", 1, threadIds.get(k).size());
+        }
+    }
+
+    /**
+     * A batch larger than a bounded queue falls back to the backpressure policy for each task.
+     */
+    @Test
+    public void testExecuteAllBounded() throws Exception {
+        var hpe = HashPoolExecutorService.builder(2).queueCapacity(4, BackpressurePolicy.BLOCK).build();
+        var results = new CopyOnWriteArrayList<Integer>();
+        var batch = new ArrayList<KeyedRunnable>();
+        for (int i = 0; i < 50; i++) {
+            int value = i;
+            batch.add(new KeyedRunnable(3L, () -> results.add(value)));
+        }
+
+        hpe.executeAll(batch);
+        hpe.shutdown();
+        assertTrue("Tasks incomplete", hpe.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals("Tasks incomplete", 50, results.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals("Out of order", i, (int)results.get(i));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testResizeNotEnabled() {
+        var hpe = new HashPoolExecutorService(2);
+        hpe.resize(3);
+    }
+
+    /**
+     * Tasks held back while their key moves are still run if the executor is shut down before the
+     * key's old pool has drained.
+     */
+    @Test
+    public void testHeldTasksRunOnShutdown() throws Exception {
+        var rejected = new CopyOnWriteArrayList<Runnable>();
+        var hpe = HashPoolExecutorService.builder(2).resizable().rejectedTaskHandler(rejected::add).build();
+        long key = 0;
+        while (KeyHashing.jump(KeyHashing.mix(key) & (HashPoolExecutorService.DEFAULT_ROUTING_TABLE_SIZE - 1), 2) != 1) {
+            key++;
+        }
+
+        var running = new CountDownLatch(1);
+        var blocker = new CountDownLatch(1);
+        hpe.execute(key, () -> {
+            running.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        running.await();
+
+        hpe.resize(1);
+        var results = new CopyOnWriteArrayList<Integer>();
+        hpe.execute(key, () -> results.add(1));
+        hpe.execute(key, () -> results.add(2));
+        hpe.shutdown();
+        long movedKey = key;
+        assertThrows(RejectedExecutionException.class, () -> hpe.execute(movedKey, () -> results.add(3)));
+        assertFalse("Terminated with tasks held", hpe.isTerminated());
+        blocker.countDown();
+
+        assertTrue("Tasks incomplete", hpe.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals("Wrong tasks run", List.of(1, 2), results);
+        assertEquals("Wrong rejected tasks", List.of(), rejected);
+    }
+
+    /**
+     * Keys must keep their order, and no task may be rejected, while several producers submit and
+     * the pool is resized as fast as it can be, growing back over pools which are still draining.
+     */
+    @Test
+    public void testConcurrentResizeKeepsKeyOrder() throws Exception {
+        var rejected = new CopyOnWriteArrayList<Runnable>();
+        var hpe = HashPoolExecutorService.builder(4).resizable().rejectedTaskHandler(rejected::add).build();
+        int producers = 4;
+        int keys = 50;
+        int perKey = 200;
+        var lastSeen = new int[producers * keys];
+        var errors = new AtomicInteger(0);
+
+        var threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            int first = p * keys;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perKey; i++) {
+                    for (int k = first; k < first + keys; k++) {
+                        int key = k;
+                        int seq = i;
+                        hpe.execute(key, () -> {
+                            if (lastSeen[key] != seq) {
+                                errors.incrementAndGet();
+                            }
+
+                            lastSeen[key] = seq + 1;
+                            // Slow enough for removed pools to still be draining when they come back
+                            LockSupport.parkNanos(1000);
+                        });
+                    }
+                }
+            }));
+        }
+
+        threads.forEach(Thread::start);
+        var random = new Random(42);
+        while (threads.stream().anyMatch(Thread::isAlive)) {
+            hpe.resize(1 + random.nextInt(8));
+            Thread.sleep(1);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        hpe.shutdown();
+        assertTrue("Tasks incomplete", hpe.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals("Tasks out of order", 0, errors.get());
+        assertEquals("Wrong rejected task count", 0, rejected.size());
+        for (int key = 0; key < producers * keys; key++) {
+            assertEquals("Tasks incomplete", perKey, lastSeen[key]);
+        }
+    }
+
+    @Test
+    public void testExecuteAllDuringResize() throws Exception {
+        var hpe = HashPoolExecutorService.builder(2).resizable().build();
+        int keys = 32;
+        int batches = 300;
+        int perBatch = 4;
+        var lastSeen = new int[keys];
+        var errors = new AtomicInteger(0);
+
+        Thread resizer = new Thread(() -> {
+            int[] sizes = { 5, 3, 8, 1, 4, 2, 6 };
+            for (int size : sizes) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+
+                hpe.resize(size);
+            }
+        });
+        resizer.start();
+
+        for (int b = 0; b < batches; b++) {
+            var batch = new ArrayList<KeyedRunnable>();
+            for (int i = 0; i < perBatch; i++) {
+                for (int k = 0; k < keys; k++) {
+                    int key = k;
+                    int seq = b * perBatch + i;
+                    batch.add(new KeyedRunnable("KEY" + key, () -> {
+                        if (lastSeen[key] != seq) {
+                            errors.incrementAndGet();
+                        }
+
+                        lastSeen[key] = seq + 1;
+                    }));
+                }
+            }
+
+            hpe.executeAll(batch);
+        }
+
+        resizer.join();
+        hpe.shutdown();
+        assertTrue("Tasks incomplete", hpe.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals("Tasks out of order", 0, errors.get());
+        for (int k = 0; k < keys; k++) {
+            assertEquals("Tasks incomplete", batches * perBatch, lastSeen[k]);
+        }
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testExecuteAllAfterShutdown() {
+        var hpe = new HashPoolExecutorService(2);
+        hpe.shutdown();
+        hpe.executeAll(List.of(new KeyedRunnable("AAA", () -> {})));
+    }
+
     @Test
     public void testShutdown() throws Exception {
         var hpe = new HashPoolExecutorService(3);
@@ -116,4 +721,12 @@ public class HashPoolExecutorServiceTests {
         boolean res = hpe.awaitTermination(100, TimeUnit.MILLISECONDS);
         assertFalse(res);
     }
+
+    private static class Person {
+        private final String name;
+
+        public Person(String name) {
+            this.name = name;
+        }
+    }
 }
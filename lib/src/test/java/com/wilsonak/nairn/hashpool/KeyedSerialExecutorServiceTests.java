@@ -0,0 +1,165 @@
+package com.wilsonak.nairn.hashpool;
+
+import com.wilsonak.nairn.KeyedRunnable;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@link KeyedSerialExecutorService} class.
+ */
+public class KeyedSerialExecutorServiceTests {
+    /**
+     * Tasks for each key must run one at a time and in order, even on a multi-threaded pool.
+     */
+    @Test
+    public void testKeyOrder() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        var kse = new KeyedSerialExecutorService(pool, 8);
+        int keys = 20;
+        int perKey = 5000;
+        var lastSeen = new int[keys];
+        var running = new AtomicInteger[keys];
+        var errors = new AtomicInteger(0);
+        for (int k = 0; k < keys; k++) {
+            running[k] = new AtomicInteger(0);
+        }
+
+        for (int i = 0; i < perKey; i++) {
+            for (int k = 0; k < keys; k++) {
+                int key = k;
+                int seq = i;
+                kse.execute(new KeyedRunnable("KEY" + key, () -> {
+                    if (running[key].incrementAndGet() != 1 || lastSeen[key] != seq) {
+                        errors.incrementAndGet();
+                    }
+
+                    lastSeen[key] = seq + 1;
+                    running[key].decrementAndGet();
+                }));
+            }
+        }
+
+        kse.shutdown();
+        assertTrue("Tasks incomplete", kse.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals("Tasks out of order or concurrent", 0, errors.get());
+        assertEquals("Lanes not retired", 0, kse.getActiveLanes());
+        pool.shutdown();
+    }
+
+    /**
+     * A blocked key must not hold up other keys.
+     */
+    @Test
+    public void testNoHeadOfLineBlocking() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        var kse = new KeyedSerialExecutorService(pool, 8);
+        var blocker = new CountDownLatch(1);
+        var counter = new AtomicInteger(0);
+
+        kse.execute(1L, () -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        kse.execute(1L, counter::incrementAndGet);
+        for (long key = 2; key < 100; key++) {
+            kse.execute(key, counter::incrementAndGet);
+        }
+
+        Thread.sleep(100);
+        assertEquals("Other keys held up", 98, counter.get());
+        blocker.countDown();
+        kse.shutdown();
+        assertTrue("Tasks incomplete", kse.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals("Tasks incomplete", 99, counter.get());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testShutdownNowReturnsPending() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        var kse = new KeyedSerialExecutorService(pool, 8);
+        var running = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+
+        kse.execute(1L, () -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        running.await();
+        kse.execute(1L, () -> {});
+        kse.execute(1L, () -> {});
+
+        assertEquals("Wrong number of pending tasks", 2, kse.shutdownNow().size());
+        release.countDown();
+        assertTrue("Did not terminate", kse.awaitTermination(1, TimeUnit.SECONDS));
+        pool.shutdown();
+    }
+
+    /**
+     * A lane the shared executor rejects must not leave its key stuck.
+     */
+    @Test
+    public void testRejectedLaneRecovers() throws Exception {
+        var reject = new AtomicInteger(1);
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        var kse = new KeyedSerialExecutorService(runnable -> {
+            if (reject.getAndDecrement() > 0) {
+                throw new RejectedExecutionException("Rejected for test");
+            }
+
+            pool.execute(runnable);
+        }, 8);
+
+        assertThrows(RejectedExecutionException.class, () -> kse.execute(1L, () -> {}));
+        assertEquals("Rejected lane kept", 0, kse.getActiveLanes());
+
+        var ran = new CountDownLatch(1);
+        kse.execute(1L, ran::countDown);
+        assertTrue("Key stopped making progress", ran.await(1, TimeUnit.SECONDS));
+        kse.shutdown();
+        assertTrue("Did not terminate", kse.awaitTermination(1, TimeUnit.SECONDS));
+        pool.shutdown();
+    }
+
+    /**
+     * Termination waits for tasks without a key as well as lanes.
+     */
+    @Test
+    public void testTerminationWaitsForKeylessTasks() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        var kse = new KeyedSerialExecutorService(pool, 8);
+        var running = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+
+        kse.execute(() -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        running.await();
+        kse.shutdown();
+
+        assertFalse("Terminated with a task running", kse.awaitTermination(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue("Did not terminate", kse.awaitTermination(1, TimeUnit.SECONDS));
+        pool.shutdown();
+    }
+}
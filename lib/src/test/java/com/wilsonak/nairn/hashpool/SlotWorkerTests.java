@@ -0,0 +1,342 @@
+package com.wilsonak.nairn.hashpool;
+
+import com.wilsonak.nairn.Priority;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@link SlotWorker} class.
+ */
+public class SlotWorkerTests {
+    /**
+     * Tasks from several producers should all run, each producer's tasks in the order submitted.
+     */
+    @Test
+    public void testOrderFromManyProducers() throws Exception {
+        var worker = new SlotWorker(Executors.defaultThreadFactory());
+        int producers = 4;
+        int perProducer = 10000;
+        var results = new ArrayList<List<Integer>>();
+        for (int p = 0; p < producers; p++) {
+            results.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+
+        var start = new CountDownLatch(1);
+        var threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            List<Integer> result = results.get(p);
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+
+                for (int i = 0; i < perProducer; i++) {
+                    int value = i;
+                    worker.execute(() -> result.add(value));
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        worker.shutdown();
+        assertTrue("Worker did not terminate", worker.awaitTermination(5, TimeUnit.SECONDS));
+        for (List<Integer> result : results) {
+            assertEquals("Tasks incomplete", perProducer, result.size());
+            for (int i = 0; i < perProducer; i++) {
+                assertEquals("Out of order", i, (int)result.get(i));
+            }
+        }
+    }
+
+    /**
+     * A task that throws must not stop the worker running later tasks.
+     */
+    @Test
+    public void testExceptionDoesNotKillWorker() throws Exception {
+        var worker = new SlotWorker(r -> {
+            Thread t = new Thread(r);
+            t.setUncaughtExceptionHandler((th, e) -> {});
+            return t;
+        });
+        var counter = new AtomicInteger(0);
+
+        worker.execute(() -> {
+            throw new IllegalStateException("ERROR");
+        });
+        worker.execute(counter::incrementAndGet);
+        worker.shutdown();
+
+        assertTrue("Worker did not terminate", worker.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals("Task after failure not run", 1, counter.get());
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testRejectAfterShutdown() {
+        var worker = new SlotWorker(Executors.defaultThreadFactory());
+        worker.shutdown();
+        worker.execute(() -> {});
+    }
+
+    @Test
+    public void testShutdownWithoutTasks() throws Exception {
+        var worker = new SlotWorker(Executors.defaultThreadFactory());
+        worker.shutdown();
+        assertTrue("Worker did not terminate", worker.awaitTermination(1, TimeUnit.SECONDS));
+        assertTrue("Terminate flag incorrect", worker.isTerminated());
+    }
+
+    /**
+     * Tasks queued behind a running task are returned from shutdownNow rather than run.
+     */
+    @Test
+    public void testShutdownNowReturnsPending() throws Exception {
+        var worker = new SlotWorker(Executors.defaultThreadFactory());
+        var running = new CountDownLatch(1);
+        var counter = new AtomicInteger(0);
+
+        worker.execute(() -> {
+            running.countDown();
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                // expected
+            }
+        });
+        running.await();
+        worker.execute(counter::incrementAndGet);
+        worker.execute(counter::incrementAndGet);
+
+        List<Runnable> pending = worker.shutdownNow();
+        assertEquals("Wrong number of pending tasks", 2, pending.size());
+        assertTrue("Worker did not terminate", worker.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals("Pending tasks should not run", 0, counter.get());
+    }
+
+    /**
+     * A full queue under the reject policy refuses tasks until the worker makes room.
+     */
+    @Test
+    public void testRejectWhenFull() throws Exception {
+        var worker = new SlotWorker(Executors.defaultThreadFactory(), null, 2, BackpressurePolicy.REJECT, null);
+        var running = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var counter = new AtomicInteger(0);
+
+        worker.execute(() -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        running.await();
+        worker.execute(counter::incrementAndGet);
+        worker.execute(counter::incrementAndGet);
+        try {
+            worker.execute(counter::incrementAndGet);
+            fail("Task accepted by full queue");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+
+        release.countDown();
+        worker.shutdown();
+        assertTrue("Worker did not terminate", worker.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals("Wrong number of tasks run", 2, counter.get());
+    }
+
+    /**
+     * The drop oldest policy discards queued tasks and reports their tags as complete.
+     */
+    @Test
+    public void testDropOldestWhenFull() throws Exception {
+        var completed = Collections.synchronizedList(new ArrayList<Integer>());
+        var worker = new SlotWorker(Executors.defaultThreadFactory(), completed::add, 2, BackpressurePolicy.DROP_OLDEST, null);
+        var running = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var results = Collections.synchronizedList(new ArrayList<Integer>());
+
+        worker.execute(() -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }, 0);
+        running.await();
+        for (int i = 1; i <= 4; i++) {
+            int value = i;
+            worker.execute(() -> results.add(value), i);
+        }
+
+        assertEquals("Wrong dropped count", 2, worker.getDroppedCount());
+        release.countDown();
+        worker.shutdown();
+        assertTrue("Worker did not terminate", worker.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals("Wrong tasks run", List.of(3, 4), results);
+        assertEquals("Dropped tasks not completed", 5, completed.size());
+    }
+
+    /**
+     * With priority lanes the drop oldest policy makes room in the full lane, leaving the others alone.
+     */
+    @Test
+    public void testDropOldestFromOwnLane() throws Exception {
+        var worker = new SlotWorker(Executors.defaultThreadFactory(), null, 2, BackpressurePolicy.DROP_OLDEST, null, true);
+        var running = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var results = Collections.synchronizedList(new ArrayList<String>());
+
+        worker.execute(() -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        running.await();
+        for (String name : List.of("L1", "L2", "N1", "H1", "H2", "H3")) {
+            Priority priority = name.startsWith("H") ? Priority.HIGH : name.startsWith("N") ? Priority.NORMAL : Priority.LOW;
+            worker.execute(new PriorityTask(() -> results.add(name), priority));
+        }
+
+        assertEquals("Wrong dropped count", 1, worker.getDroppedCount());
+        release.countDown();
+        worker.shutdown();
+        assertTrue("Worker did not terminate", worker.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals("Wrong tasks run", List.of("H2", "H3", "N1", "L1", "L2"), results);
+    }
+
+    /**
+     * The block policy holds the submitter until there is room, then runs every task in order.
+     */
+    @Test
+    public void testBlockWhenFull() throws Exception {
+        var worker = new SlotWorker(Executors.defaultThreadFactory(), null, 1, BackpressurePolicy.BLOCK, null);
+        var running = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var results = Collections.synchronizedList(new ArrayList<Integer>());
+
+        worker.execute(() -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        running.await();
+        worker.execute(() -> results.add(1));
+
+        var submitted = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            worker.execute(() -> results.add(2));
+            submitted.countDown();
+        });
+        producer.start();
+        assertFalse("Submitter not blocked", submitted.await(100, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue("Submitter still blocked", submitted.await(1, TimeUnit.SECONDS));
+        worker.shutdown();
+        assertTrue("Worker did not terminate", worker.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals("Wrong tasks run", List.of(1, 2), results);
+    }
+
+    /**
+     * A task which submits to its own full queue is rejected rather than waiting for itself.
+     */
+    @Test
+    public void testBlockOnOwnThreadRejects() throws Exception {
+        var worker = new SlotWorker(Executors.defaultThreadFactory(), null, 1, BackpressurePolicy.BLOCK, null);
+        var outcome = new ArrayList<String>();
+        var done = new CountDownLatch(1);
+
+        worker.execute(() -> {
+            worker.execute(() -> {});
+            try {
+                worker.execute(() -> {});
+                outcome.add("queued");
+            } catch (RejectedExecutionException e) {
+                outcome.add("rejected");
+            }
+
+            done.countDown();
+        });
+
+        assertTrue("Worker deadlocked", done.await(1, TimeUnit.SECONDS));
+        worker.shutdown();
+        assertTrue("Worker did not terminate", worker.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals("Wrong outcome", List.of("rejected"), outcome);
+    }
+
+    /**
+     * A submitter blocked on a full queue is released with a rejection when the worker shuts down.
+     */
+    @Test
+    public void testShutdownReleasesBlockedSubmitter() throws Exception {
+        var worker = new SlotWorker(Executors.defaultThreadFactory(), null, 1, BackpressurePolicy.BLOCK, null);
+        var running = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var rejected = new CountDownLatch(1);
+
+        worker.execute(() -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        running.await();
+        worker.execute(() -> {});
+
+        Thread producer = new Thread(() -> {
+            try {
+                worker.execute(() -> {});
+            } catch (RejectedExecutionException e) {
+                rejected.countDown();
+            }
+        });
+        producer.start();
+        Thread.sleep(50);
+        worker.shutdown();
+
+        assertTrue("Blocked submitter not rejected", rejected.await(1, TimeUnit.SECONDS));
+        release.countDown();
+        assertTrue("Worker did not terminate", worker.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A batch after shutdown is handed back to the caller rather than thrown away.
+     */
+    @Test
+    public void testExecuteAllAfterShutdown() {
+        var worker = new SlotWorker(Executors.defaultThreadFactory());
+        var rejected = new ArrayList<Integer>();
+        worker.shutdown();
+        worker.executeAll(new Runnable[] { () -> {}, () -> {} }, new int[] { 4, 5 }, 2, (task, tag) -> rejected.add(tag));
+        assertEquals("Wrong tasks rejected", List.of(4, 5), rejected);
+    }
+}
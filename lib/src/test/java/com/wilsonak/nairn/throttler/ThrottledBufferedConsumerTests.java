@@ -1,13 +1,21 @@
 package com.wilsonak.nairn.throttler;
 
+import com.wilsonak.nairn.HashedWheelTimer;
 import org.hamcrest.MatcherAssert;
 import org.junit.Test;
 
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static org.hamcrest.Matchers.containsInAnyOrder;
@@ -92,6 +100,64 @@ public class ThrottledBufferedConsumerTests {
         MatcherAssert.assertThat("Wrong keys", res.keySet(), containsInAnyOrder("AAP", "AAQ", "AAR", "AAS", "AAT"));
     }
 
+    /**
+     * Buffered calls should be made on the executor, not the timer thread, and in order.
+     */
+    @Test
+    public void testBufferedCallsOnExecutor() throws Exception {
+        List<String> threads = new CopyOnWriteArrayList<>();
+        List<String> items = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4, r -> new Thread(r, "drain"));
+        try (var timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 64, null)) {
+            ThrottledBufferedConsumer<String> cut = new ThrottledBufferedConsumer<>(s -> {
+                items.add(s);
+                threads.add(Thread.currentThread().getName());
+            }, 2, ChronoUnit.SECONDS, 10, timer, executor);
+
+            IntStream.range(0, 4).forEach(i -> cut.accept("A" + i));
+            Thread.sleep(1100);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals("Wrong items", List.of("A0", "A1", "A2", "A3"), items);
+        assertEquals("Wrong threads", List.of("drain", "drain"), threads.subList(2, 4));
+    }
+
+    /**
+     * A backlog falling due at once should be drained by one task on the executor, not one task per
+     * item waiting for its turn.
+     */
+    @Test
+    public void testOneDrainAtATime() throws Exception {
+        List<String> items = new CopyOnWriteArrayList<>();
+        AtomicInteger inFlight = new AtomicInteger(0);
+        AtomicInteger maxInFlight = new AtomicInteger(0);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        Executor executor = r -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            pool.execute(() -> {
+                try {
+                    r.run();
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
+        };
+
+        try (var timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 64, null)) {
+            ThrottledBufferedConsumer<String> cut = new ThrottledBufferedConsumer<>(items::add, 10, ChronoUnit.SECONDS, 50, timer, executor);
+
+            IntStream.range(0, 30).forEach(i -> cut.accept("A" + i));
+            Thread.sleep(2300);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals("Wrong items", IntStream.range(0, 30).mapToObj(i -> "A" + i).collect(Collectors.toList()), items);
+        assertEquals("Wrong number of drains in flight", 1, maxInFlight.get());
+    }
+
     @Test
     public void testLaterAddWhileItemsQueued() throws Exception {
         Map<String, LocalDateTime> res = new ConcurrentHashMap<>();